@@ -0,0 +1,534 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 无界面的压测客户端：用虚拟线程模拟成千上万个用户，按客户端的协议
+ * （LOGIN / SEND / GROUP_MSG| / CREATE_GROUP| / JOIN_GROUP|，可选二进制协议）连到服务器收发消息，
+ * 输出吞吐和延迟分位数。每个用户一个发送线程、一个接收线程，都是虚拟线程。
+ *
+ * 运行（在项目根目录）：
+ *   javac -encoding UTF-8 -d out/bench Chatsever/src/*.java Chatsever/bench/*.java
+ *   java -cp out/bench LoadGenerator --embedded --users=2000 --rate=5000
+ *   java -cp out/bench LoadGenerator --host=10.0.0.5 --users=5000 --churn.per.s=20 --ramp.s=10
+ *
+ * 参数（--key=value）：
+ *   --host / --port        目标服务器，默认 127.0.0.1:8070
+ *   --embedded             在本进程内启动一个服务器（临时数据目录），其余参数也传给它，如 --io=nio
+ *   --users=1000           模拟用户数，用户名为 <prefix>0 .. <prefix>N-1（--prefix 默认 load）
+ *   --groups=50            群数；--group.size=20 每群人数（按用户编号依次分配）
+ *   --group.join           群只建空壳，成员登录后各自发 JOIN_GROUP（默认建群时直接带上成员）
+ *   --rate=2000            全体每秒发送的消息数；--group.ratio=0.3 其中群消息的比例
+ *   --size=64              每条消息内容的字节数
+ *   --ramp.s=0             登录在这么多秒内均匀展开；0 表示同时登录（登录风暴）
+ *   --churn.per.s=0        每秒随机断开并重连的用户数
+ *   --duration.s=30        收发阶段的时长；--report.s=5 中途打印间隔
+ *   --binary=true          是否协商二进制协议
+ *
+ * 延迟：消息内容开头带发送时刻（同一进程内的 System.nanoTime()），收到时相减，即“发出到收到”。
+ * 发送时刻取按速率排定的时刻而不是实际写出的时刻，服务器变慢导致发送被拖后时，拖后的时间也算进延迟。
+ * 收到数 / 应收数：私聊应收 1 条，群聊应收群人数条（含发送者自己）。重连期间的私聊走离线暂存，登录后补收；
+ * 群消息没有离线暂存，开了 --churn.per.s 时收到数会略少于应收数。
+ */
+public class LoadGenerator {
+
+    private final String host;
+    private final int port;
+    private final String prefix;
+    private final int users;
+    private final int groups;
+    private final int groupSize;
+    private final boolean joinGroups;
+    private final double rate;
+    private final double groupRatio;
+    private final int durationS;
+    private final int reportS;
+    private final int rampS;
+    private final double churnPerS;
+    private final boolean binary;
+    private final String padding;
+
+    private final SimUser[] sims;
+    private final List<List<Integer>> members = new ArrayList<>();   // 群 -> 成员编号
+
+    // 统计：记录不分配内存，分位数直接用服务器的直方图
+    private final Metrics.Histogram delivery = new Metrics.Histogram(1e9, 10, 36);
+    private final Metrics.Histogram login = new Metrics.Histogram(1e9, 10, 36);
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder expected = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder logins = new LongAdder();
+    private final LongAdder reconnects = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    private volatile boolean sending;
+    private volatile boolean running = true;
+    private int userListVersion;
+    private String lastUserName = "";
+
+    LoadGenerator(ServerConfig config) {
+        this.host = config.get("host", "127.0.0.1");
+        this.port = config.getPort();
+        this.prefix = config.get("prefix", "load");
+        this.users = Math.max(2, config.getInt("users", 1000));
+        this.groups = Math.max(0, config.getInt("groups", 50));
+        this.groupSize = Math.max(1, Math.min(users, config.getInt("group.size", 20)));
+        this.joinGroups = Boolean.parseBoolean(config.get("group.join", "false"));
+        this.rate = Double.parseDouble(config.get("rate", "2000"));
+        this.groupRatio = groups == 0 ? 0 : Double.parseDouble(config.get("group.ratio", "0.3"));
+        this.durationS = config.getInt("duration.s", 30);
+        this.reportS = Math.max(1, config.getInt("report.s", 5));
+        this.rampS = config.getInt("ramp.s", 0);
+        this.churnPerS = Double.parseDouble(config.get("churn.per.s", "0"));
+        this.binary = Boolean.parseBoolean(config.get("binary", "true"));
+        char[] pad = new char[Math.max(0, config.getInt("size", 64) - 21)];   // 21 为时间戳前缀的大致长度
+        Arrays.fill(pad, 'x');
+        this.padding = new String(pad);
+
+        // 第 g 个群从编号 g * stride 开始连续取 groupSize 人，群之间均匀错开
+        int stride = groups == 0 ? 0 : Math.max(1, users / groups);
+        List<List<String>> groupsOf = new ArrayList<>();
+        for (int u = 0; u < users; u++) groupsOf.add(new ArrayList<>());
+        for (int g = 0; g < groups; g++) {
+            List<Integer> m = new ArrayList<>(groupSize);
+            for (int k = 0; k < groupSize; k++) {
+                int u = (g * stride + k) % users;
+                m.add(u);
+                groupsOf.get(u).add(groupId(g));
+            }
+            members.add(m);
+        }
+        this.sims = new SimUser[users];
+        for (int u = 0; u < users; u++) sims[u] = new SimUser(u, groupsOf.get(u).toArray(new String[0]));
+    }
+
+    public static void main(String[] args) throws Exception {
+        ServerConfig config = ServerConfig.fromArgs(args);
+        if (Boolean.parseBoolean(config.get("embedded", "false"))) startEmbedded(args, config.getPort());
+        new LoadGenerator(config).run();
+        System.exit(0);
+    }
+
+    /* =============================================================
+       阶段：准备（注册、建群）-> 登录 -> 收发 -> 汇总
+       ============================================================= */
+    private void run() throws Exception {
+        System.out.printf("目标 %s:%d  用户 %d  群 %d x %d 人  速率 %.0f 条/秒（群消息 %.0f%%）  %s 协议%n",
+                host, port, users, groups, groupSize, rate, groupRatio * 100, binary ? "二进制" : "文本");
+        long t0 = System.nanoTime();
+        setup();
+        System.out.printf("准备完成: %d ms%n", (System.nanoTime() - t0) / 1_000_000);
+
+        ExecutorService threads = Executors.newVirtualThreadPerTaskExecutor();
+        long loginStart = System.nanoTime();
+        for (SimUser s : sims) {
+            long delayMs = rampS <= 0 ? 0 : (long) s.index * rampS * 1000L / users;
+            threads.execute(() -> s.run(delayMs));
+        }
+        long deadline = loginStart + TimeUnit.SECONDS.toNanos(rampS + 60);
+        while (logins.sum() < users && System.nanoTime() < deadline) Thread.sleep(100);
+        System.out.printf("登录完成: %d / %d，用时 %d ms，登录耗时 %s%n", logins.sum(), users,
+                (System.nanoTime() - loginStart) / 1_000_000, percentiles(login));
+
+        if (churnPerS > 0) startChurn(threads);
+        sending = true;
+        long start = System.nanoTime();
+        long lastSent = 0, lastReceived = 0, lastReport = start;
+        long end = start + TimeUnit.SECONDS.toNanos(durationS);
+        while (System.nanoTime() < end) {
+            Thread.sleep(Math.min(reportS * 1000L, Math.max(1, (end - System.nanoTime()) / 1_000_000)));
+            long now = System.nanoTime();
+            double secs = (now - lastReport) / 1e9;
+            long s = sent.sum(), r = received.sum();
+            System.out.printf("[%3ds] 发送 %8.0f/s  收到 %8.0f/s  延迟 %s  重连 %d  错误 %d%n",
+                    (now - start) / 1_000_000_000, (s - lastSent) / secs, (r - lastReceived) / secs,
+                    percentiles(delivery), reconnects.sum(), errors.sum());
+            lastSent = s;
+            lastReceived = r;
+            lastReport = now;
+        }
+        sending = false;
+        double secs = (System.nanoTime() - start) / 1e9;
+        Thread.sleep(2000);                                  // 等路上的消息收完
+        running = false;
+
+        System.out.println("==== 汇总 ====");
+        System.out.printf("发送 %d 条（%.0f 条/秒），收到 %d / 应收 %d（%.2f%%，%.0f 条/秒）%n",
+                sent.sum(), sent.sum() / secs, received.sum(), expected.sum(),
+                expected.sum() == 0 ? 100.0 : received.sum() * 100.0 / expected.sum(), received.sum() / secs);
+        System.out.println("投递延迟 " + percentiles(delivery));
+        System.out.println("登录耗时 " + percentiles(login) + "（共 " + login.count() + " 次，含重连）");
+        System.out.printf("重连 %d 次，错误 %d 次%n", reconnects.sum(), errors.sum());
+        for (SimUser s : sims) s.close();
+        threads.shutdownNow();
+    }
+
+    /** 用一条文本连接注册全部用户、建群，最后取一次全量用户列表：命令按序处理，收到列表时前面的都已完成 */
+    private void setup() throws IOException {
+        try (Socket s = new Socket(host, port)) {
+            InputStream in = new BufferedInputStream(s.getInputStream(), 64 * 1024);
+            OutputStream out = new BufferedOutputStream(s.getOutputStream(), 64 * 1024);
+            for (int u = 0; u < users; u++) writeLine(out, "REGISTER:" + userName(u) + ":pw");
+            for (int g = 0; g < groups; g++) {
+                List<Integer> m = members.get(g);
+                // 成员列表不能为空（服务器按 '|' 切分时会丢掉空的末段），加群模式下只带创建者
+                StringBuilder list = new StringBuilder(userName(m.get(0)));
+                if (!joinGroups) {
+                    for (int k = 1; k < m.size(); k++) list.append(',').append(userName(m.get(k)));
+                }
+                writeLine(out, "CREATE_GROUP|" + groupId(g) + "|压测群" + g + "|" + userName(m.get(0)) + "|" + list);
+            }
+            writeLine(out, "USERLIST_SYNC|0|");
+            out.flush();
+
+            s.setSoTimeout(60_000);
+            String line;
+            while ((line = readLine(in)) != null) {
+                if (!line.startsWith("USERLIST_FULL|")) continue;
+                String[] p = line.split("\\|", 3);
+                userListVersion = Integer.parseInt(p[1]);
+                String entries = p[2].endsWith(";") ? p[2].substring(0, p[2].length() - 1) : p[2];
+                String last = entries.substring(entries.lastIndexOf(';') + 1);
+                lastUserName = last.contains(",") ? last.substring(0, last.indexOf(',')) : last;
+                return;
+            }
+            throw new IOException("准备阶段连接被关闭");
+        }
+    }
+
+    /** 每秒随机断开 churnPerS 个用户，由各自的发送线程重新连接、登录 */
+    private void startChurn(ExecutorService threads) {
+        threads.execute(() -> {
+            long interval = (long) (1e9 / churnPerS);
+            long next = System.nanoTime();
+            try {
+                while (running) {
+                    next += interval;
+                    sleepUntil(next);
+                    sims[ThreadLocalRandom.current().nextInt(users)].churn();
+                }
+            } catch (InterruptedException ignored) {
+            }
+        });
+    }
+
+    /* =============================================================
+       一个模拟用户
+       ============================================================= */
+    private final class SimUser {
+        final int index;
+        final String name;
+        final String[] myGroups;
+        private volatile Connection conn;
+        private volatile boolean churnRequested;
+        private boolean joined;
+
+        SimUser(int index, String[] myGroups) {
+            this.index = index;
+            this.name = userName(index);
+            this.myGroups = myGroups;
+        }
+
+        void run(long delayMs) {
+            try {
+                Thread.sleep(delayMs);
+                while (running && !connect()) Thread.sleep(1000);
+                logins.increment();
+
+                // 发送间隔服从指数分布（泊松到达），平均 users / rate 秒
+                double meanNanos = 1e9 * users / Math.max(rate, 1e-9);
+                long next = System.nanoTime();
+                while (running) {
+                    if (!sending) {
+                        Thread.sleep(20);
+                        next = System.nanoTime();
+                        continue;
+                    }
+                    next += (long) (-Math.log(1 - ThreadLocalRandom.current().nextDouble()) * meanNanos);
+                    sleepUntil(next);
+                    if (!sending) continue;
+                    if (churnRequested) reconnect();
+                    try {
+                        sendOne(next);
+                    } catch (IOException e) {
+                        if (!churnRequested && running) errors.increment();
+                        reconnect();
+                    }
+                }
+            } catch (InterruptedException ignored) {
+            }
+        }
+
+        private void sendOne(long intendedNanos) throws IOException {
+            ThreadLocalRandom r = ThreadLocalRandom.current();
+            String content = "L" + intendedNanos + " " + padding;
+            Connection c = conn;
+            if (myGroups.length > 0 && r.nextDouble() < groupRatio) {
+                int g = r.nextInt(myGroups.length);
+                String gid = myGroups[g];
+                if (binary) c.write(new BinaryProtocol.Encoder(BinaryProtocol.OP_GROUP_SEND).string(gid).string(content).frame());
+                else c.write(("GROUP_MSG|" + gid + "|" + content + "\n").getBytes(StandardCharsets.UTF_8));
+                expected.add(members.get(groupIndex(gid)).size());
+            } else {
+                int to = r.nextInt(users - 1);
+                if (to >= index) to++;                       // 不发给自己
+                String recipient = userName(to);
+                if (binary) c.write(new BinaryProtocol.Encoder(BinaryProtocol.OP_SEND).string(recipient).string(content).frame());
+                else c.write(("SEND:" + recipient + ":" + content + "\n").getBytes(StandardCharsets.UTF_8));
+                expected.increment();
+            }
+            sent.increment();
+        }
+
+        private void reconnect() throws InterruptedException {
+            close();
+            churnRequested = false;
+            reconnects.increment();
+            while (running && !connect()) Thread.sleep(1000);
+        }
+
+        void churn() {
+            churnRequested = true;
+            close();
+        }
+
+        void close() {
+            Connection c = conn;
+            if (c != null) c.close();
+        }
+
+        /** 连接、协商、登录，等到登录应答（GROUP_SNAPSHOT）为止 */
+        private boolean connect() {
+            long t0 = System.nanoTime();
+            Connection c = null;
+            try {
+                c = new Connection(new Socket(host, port));
+                if (binary) c.negotiate();
+                c.command("USERLIST_SYNC|" + userListVersion + "|" + lastUserName);   // 本地用户列表已是最新
+                c.command("LOGIN:" + name);
+                conn = c;
+                Connection reading = c;
+                Thread.ofVirtual().start(() -> reading.readLoop());
+                if (!c.loggedIn.await(30, TimeUnit.SECONDS)) throw new IOException("登录超时");
+                login.recordSince(t0);
+                if (joinGroups && !joined) {
+                    for (String gid : myGroups) {
+                        if (members.get(groupIndex(gid)).get(0) != index) c.command("JOIN_GROUP|" + gid + "|" + name);
+                    }
+                    joined = true;
+                }
+                return true;
+            } catch (IOException | InterruptedException e) {
+                errors.increment();
+                if (c != null) c.close();
+                return false;
+            }
+        }
+    }
+
+    /* =============================================================
+       一条连接：发送线程写，接收线程读
+       ============================================================= */
+    private final class Connection {
+        final Socket socket;
+        final InputStream in;
+        final OutputStream out;
+        final CountDownLatch loggedIn = new CountDownLatch(1);
+        boolean binaryMode;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream(), 8 * 1024);
+            this.out = new BufferedOutputStream(socket.getOutputStream(), 8 * 1024);
+        }
+
+        void negotiate() throws IOException {
+            writeLine(out, BinaryProtocol.HELLO);
+            out.flush();
+            socket.setSoTimeout(5000);
+            try {
+                String line;
+                while ((line = readLine(in)) != null) {
+                    if (line.startsWith("PROTO_OK|")) {
+                        binaryMode = BinaryProtocol.HELLO_OK.equals(line);
+                        return;
+                    }
+                }
+                throw new IOException("协商时连接被关闭");
+            } catch (SocketTimeoutException e) {
+                binaryMode = false;                          // 旧服务器：继续用文本
+            } finally {
+                socket.setSoTimeout(0);
+            }
+        }
+
+        void command(String line) throws IOException {
+            if (binaryMode) write(new BinaryProtocol.Encoder(BinaryProtocol.OP_TEXT).string(line).frame());
+            else write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        void write(byte[] data) throws IOException {
+            out.write(data);
+            out.flush();
+        }
+
+        void readLoop() {
+            try {
+                while (true) {
+                    if (binaryMode) {
+                        byte[] frame = BinaryProtocol.readFrame(in, BinaryProtocol.MAX_DOWNSTREAM_FRAME_BYTES);
+                        if (frame == null) break;
+                        onFrame(frame);
+                    } else {
+                        String line = readLine(in);
+                        if (line == null) break;
+                        onLine(line);
+                    }
+                }
+            } catch (IOException ignored) {
+                // 连接被关闭（重连、结束）
+            }
+        }
+
+        private void onFrame(byte[] frame) throws ProtocolException {
+            BinaryProtocol.Decoder d = new BinaryProtocol.Decoder(frame, 0, frame.length);
+            switch (d.op()) {
+                case BinaryProtocol.OP_SERVER_TEXT:
+                    onLine(d.string());
+                    break;
+                case BinaryProtocol.OP_MSG:
+                    d.string();
+                    d.string();
+                    d.varint();
+                    onMessage(d.string());
+                    break;
+                case BinaryProtocol.OP_GROUP_MSG:
+                    d.string();
+                    d.string();
+                    d.string();
+                    d.varint();
+                    onMessage(d.string());
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void onLine(String line) {
+            if (line.startsWith("MSG:")) onMessage(after(line, ':', 4));
+            else if (line.startsWith("GROUP_MSG|")) onMessage(after(line, '|', 5));
+            else if (line.startsWith("GROUP_SNAPSHOT|")) loggedIn.countDown();
+        }
+
+        private void onMessage(String content) {
+            if (content == null || !content.startsWith("L")) return;
+            int end = content.indexOf(' ');
+            try {
+                long sentAt = Long.parseLong(end < 0 ? content.substring(1) : content.substring(1, end));
+                delivery.recordSince(sentAt);
+                received.increment();
+            } catch (NumberFormatException ignored) {
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /* ============================================================= */
+    private String userName(int u) {
+        return prefix + u;
+    }
+
+    private String groupId(int g) {
+        return prefix + "-g" + g;
+    }
+
+    private int groupIndex(String gid) {
+        return Integer.parseInt(gid.substring(prefix.length() + 2));
+    }
+
+    /** 第 n 个分隔符之后的部分 */
+    private static String after(String s, char sep, int n) {
+        int at = -1;
+        for (int i = 0; i < n; i++) {
+            at = s.indexOf(sep, at + 1);
+            if (at < 0) return null;
+        }
+        return s.substring(at + 1);
+    }
+
+    private static String percentiles(Metrics.Histogram h) {
+        return String.format("p50=%.3f p90=%.3f p99=%.3f p99.9=%.3f ms",
+                h.quantile(0.50) / 1e6, h.quantile(0.90) / 1e6, h.quantile(0.99) / 1e6, h.quantile(0.999) / 1e6);
+    }
+
+    private static void sleepUntil(long nanos) throws InterruptedException {
+        long wait = nanos - System.nanoTime();
+        if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+    }
+
+    private static void writeLine(OutputStream out, String line) throws IOException {
+        out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) return line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8);
+            if (b != '\r') line.write(b);
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    /** 在本进程内启动服务器：临时数据目录、日志默认只输出 warn 以上，命令行参数照样生效 */
+    private static void startEmbedded(String[] args, int port) throws Exception {
+        Path dir = Files.createTempDirectory("chat-load");
+        String[] all = new String[args.length + 2];
+        all[0] = "--data.dir=" + dir;
+        all[1] = "--log.level=warn";
+        System.arraycopy(args, 0, all, 2, args.length);
+        ServerConfig config = ServerConfig.fromArgs(all);
+        Log.configure(config);
+        PersistenceJournal journal = new PersistenceJournal(config);
+        journal.recover();
+        OfflineSpool spool = new OfflineSpool(config);
+        spool.recover();
+        ChatServer server = new ChatServer(config, journal, spool, new MessageStore(config));
+        Thread t = new Thread(server::start, "embedded-server");
+        t.setDaemon(true);
+        t.start();
+        for (int i = 0; i < 100; i++) {                      // 等端口就绪
+            try (Socket probe = new Socket("127.0.0.1", port)) {
+                System.out.println("内置服务器已启动，数据目录 " + dir);
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IOException("内置服务器未能启动");
+    }
+}
@@ -0,0 +1,579 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 浸泡测试：长时间反复执行“登录 -> 收发消息 / 传文件 -> 断开”，每轮结束、服务器空闲下来后，
+ * 检查在线表、线程数、打开的文件描述符、GC 后的堆是否回到基线；发现泄漏时输出报告，退出码为 1。
+ *
+ * 运行（在项目根目录）：
+ *   javac -encoding UTF-8 -d out/bench Chatsever/src/*.java Chatsever/bench/*.java
+ *   java -Xmx256m -cp out/bench SoakTest --embedded --duration.m=180
+ *   java -cp out/bench SoakTest --host=10.0.0.5 --metrics.port=9464 --duration.m=600
+ *
+ * 每轮：
+ *   1. 全部用户连接、登录（与 LoadGenerator 相同的文本协议，先报用户列表版本）
+ *   2. --active.s 秒内按 --rate 收发私聊和群聊，约 1% 是没人应答的 FILE_OFFER；
+ *      同时向文件服务器（--file.port，默认 9000）上传、再下载 --files 个 --file.kb KB 的群文件
+ *   3. 断开，三种方式轮换：先发 LOGOUT 再关闭；直接关闭连接；同账号再登录一次把旧连接顶掉，再关闭新连接
+ *   4. 等 --quiet.s 秒，采样
+ *
+ * 采样来自服务器的指标（见 Metrics）：内置模式直接读，远程模式抓 http://host:--metrics.port/metrics。
+ * 内置模式采样前先 System.gc()；远程服务器不会被强制 GC，堆读数是它最近一次 GC 后的值。
+ *
+ * 判定：前 --warmup.cycles 轮（默认 2）留给类加载、线程池、JIT 的一次性增长，之后第一轮的采样为基线。
+ *   在线人数 / 进行中的文件传输    必须回到 0
+ *   离线暂存条数                  不超过基线
+ *   线程数 / fd                   不超过基线 + --threads.slack（默认 8）/ --fds.slack（默认 16）
+ *                                 （消息存储、离线暂存会保持一批文件打开，内置模式把上限压到 4 个，
+ *                                  远程服务器请用较小的 --store.open.conversations / --offline.open.files 启动）
+ *   GC 后的堆                     不超过基线 + max(--heap.slack.mb（默认 32）, 基线 x --heap.slack.pct%（默认 25）)
+ * 连续 3 轮超限判为泄漏并提前结束，偶发的一轮（GC 时机、线程池回收）不算。
+ * 内置模式的报告还列出残留的在线用户、比基线多出的线程（按名字归类）和 fd（按类型归类）。
+ *
+ * 其他参数（--key=value）：
+ *   --duration.m=120   总时长；--cycles=N 改为跑固定轮数
+ *   --users=200        用户名为 <prefix>0 .. <prefix>N-1（--prefix 默认 soak）
+ *   --groups=10        群数；--group.size=10 每群人数
+ *   --embedded         在本进程内启动服务器（临时数据目录），其余参数也传给它，如 --io=nio
+ */
+public class SoakTest {
+
+    private static final int STRIKES = 3;                 // 连续超限几轮判为泄漏
+
+    private final String host;
+    private final int port;
+    private final int metricsPort;
+    private final int filePort;
+    private final boolean embedded;
+    private final String prefix;
+    private final int users;
+    private final int groups;
+    private final int groupSize;
+    private final double rate;
+    private final int activeS;
+    private final int quietS;
+    private final int files;
+    private final int fileBytes;
+    private final long durationNanos;
+    private final int maxCycles;
+    private final int warmupCycles;
+    private final int threadsSlack;
+    private final int fdsSlack;
+    private final long heapSlackBytes;
+    private final double heapSlackPct;
+
+    private final List<List<Integer>> members = new ArrayList<>();   // 群 -> 成员编号
+    private final int[] groupOf;                                      // 用户 -> 所在的一个群，没有为 -1
+    private int userListVersion;
+    private String lastUserName = "";
+
+    // 本轮的收发统计
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder expected = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder filesOk = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    SoakTest(ServerConfig config) {
+        this.host = config.get("host", "127.0.0.1");
+        this.port = config.getPort();
+        this.metricsPort = config.getInt("metrics.port", 9464);
+        this.filePort = config.getInt("file.port", 9000);
+        this.embedded = Boolean.parseBoolean(config.get("embedded", "false"));
+        this.prefix = config.get("prefix", "soak");
+        this.users = Math.max(3, config.getInt("users", 200));
+        this.groups = Math.max(0, config.getInt("groups", 10));
+        this.groupSize = Math.max(1, Math.min(users, config.getInt("group.size", 10)));
+        this.rate = Double.parseDouble(config.get("rate", "200"));
+        this.activeS = Math.max(1, config.getInt("active.s", 30));
+        this.quietS = Math.max(0, config.getInt("quiet.s", 5));
+        this.files = groups == 0 ? 0 : Math.max(0, config.getInt("files", 10));
+        this.fileBytes = Math.max(1, config.getInt("file.kb", 64)) * 1024;
+        this.durationNanos = TimeUnit.MINUTES.toNanos(config.getInt("duration.m", 120));
+        this.maxCycles = config.getInt("cycles", 0);
+        this.warmupCycles = Math.max(0, config.getInt("warmup.cycles", 2));
+        this.threadsSlack = config.getInt("threads.slack", 8);
+        this.fdsSlack = config.getInt("fds.slack", 16);
+        this.heapSlackBytes = config.getInt("heap.slack.mb", 32) * 1024L * 1024L;
+        this.heapSlackPct = Double.parseDouble(config.get("heap.slack.pct", "25"));
+
+        groupOf = new int[users];
+        Arrays.fill(groupOf, -1);
+        int stride = groups == 0 ? 0 : Math.max(1, users / groups);
+        for (int g = 0; g < groups; g++) {
+            List<Integer> m = new ArrayList<>(groupSize);
+            for (int k = 0; k < groupSize; k++) {
+                int u = (g * stride + k) % users;
+                m.add(u);
+                if (groupOf[u] < 0) groupOf[u] = g;
+            }
+            members.add(m);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        ServerConfig config = ServerConfig.fromArgs(args);
+        if (Boolean.parseBoolean(config.get("embedded", "false"))) startEmbedded(args, config.getPort());
+        boolean ok = new SoakTest(config).run();
+        System.exit(ok ? 0 : 1);
+    }
+
+    /* =============================================================
+       主循环
+       ============================================================= */
+    private boolean run() throws Exception {
+        System.out.printf("目标 %s:%d  用户 %d  群 %d x %d 人  每轮 %d s（%.0f 条/秒，%d 个文件）+ 空闲 %d s%n",
+                host, port, users, groups, groupSize, activeS, rate, files, quietS);
+        setup();
+
+        long start = System.nanoTime();
+        Sample baseline = null;
+        Snapshot baseSnapshot = null;
+        List<Sample> history = new ArrayList<>();
+        int strikes = 0;
+        List<String> problems = List.of();
+        for (int cycle = 1; ; cycle++) {
+            if (maxCycles > 0 ? cycle > maxCycles : System.nanoTime() - start >= durationNanos) break;
+            sent.reset();
+            expected.reset();
+            received.reset();
+            filesOk.reset();
+            errors.reset();
+
+            runCycle(cycle);
+            Thread.sleep(quietS * 1000L);
+            Sample s = sample();
+            history.add(s);
+            System.out.printf("[轮 %3d %5.1f min] %s | 收到 %d / 应收 %d  文件 %d / %d  错误 %d%n",
+                    cycle, (System.nanoTime() - start) / 6e10, s, received.sum(), expected.sum(),
+                    filesOk.sum(), files, errors.sum());
+
+            if (cycle == warmupCycles + 1) {
+                baseline = s;
+                baseSnapshot = embedded ? Snapshot.take() : null;
+                System.out.println("基线: " + s);
+                continue;
+            }
+            if (baseline == null) continue;
+            problems = check(baseline, history);
+            strikes = problems.isEmpty() ? 0 : strikes + 1;
+            if (strikes >= STRIKES) break;
+        }
+
+        if (baseline == null) {
+            System.out.println("轮数不足，没有得到基线（需要多于 --warmup.cycles 轮）");
+            return true;
+        }
+        if (strikes < STRIKES) {
+            System.out.printf("==== 通过：%d 轮，资源均回到基线 ====%n", history.size());
+            return true;
+        }
+        System.out.printf("==== 发现泄漏：连续 %d 轮超出基线 ====%n", STRIKES);
+        for (String p : problems) System.out.println("  " + p);
+        if (embedded) report(baseSnapshot, Snapshot.take());
+        return false;
+    }
+
+    /** 一轮：登录 -> 收发和传文件 -> 断开 */
+    private void runCycle(int cycle) throws InterruptedException {
+        Session[] sessions = new Session[users];
+        List<Thread> logins = new ArrayList<>();
+        for (int u = 0; u < users; u++) {
+            int index = u;
+            logins.add(Thread.ofVirtual().start(() -> sessions[index] = login(userName(index))));
+        }
+        for (Thread t : logins) t.join();
+
+        Thread fileWorker = Thread.ofVirtual().start(() -> transferFiles(cycle));
+        traffic(sessions);
+        fileWorker.join();
+        Thread.sleep(1000);                                  // 等路上的消息收完
+
+        for (int u = 0; u < users; u++) {
+            Session s = sessions[u];
+            if (s == null) continue;
+            switch ((u + cycle) % 3) {
+                case 0:                                      // 正常登出
+                    s.command("LOGOUT:" + s.name);
+                    s.close();
+                    break;
+                case 1:                                      // 掉线
+                    s.close();
+                    break;
+                default:                                     // 被同账号的新登录顶掉，新连接随后掉线
+                    Session again = login(s.name);
+                    if (again != null) again.close();
+                    s.close();
+                    break;
+            }
+        }
+    }
+
+    /** 按 --rate 从随机用户发私聊 / 群聊，偶尔发一个没人应答的文件请求 */
+    private void traffic(Session[] sessions) throws InterruptedException {
+        long interval = (long) (1e9 / Math.max(rate, 1e-9));
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(activeS);
+        long next = System.nanoTime();
+        ThreadLocalRandom r = ThreadLocalRandom.current();
+        while ((next += interval) < end) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+            int from = r.nextInt(users);
+            Session s = sessions[from];
+            if (s == null) continue;
+            int to = r.nextInt(users - 1);
+            if (to >= from) to++;
+            int dice = r.nextInt(100);
+            if (dice == 0) {
+                s.command("FILE_OFFER " + userName(to) + " soak.bin 1024");
+            } else if (dice < 30 && groupOf[from] >= 0) {
+                s.command("GROUP_MSG|" + groupId(groupOf[from]) + "|S " + r.nextLong());
+                expected.add(members.get(groupOf[from]).size());
+            } else {
+                s.command("SEND:" + userName(to) + ":S " + r.nextLong());
+                expected.increment();
+            }
+            sent.increment();
+        }
+    }
+
+    /** 上传后下载同一个文件，核对长度；文件名每轮相同，服务器上的文件被覆盖，磁盘不增长 */
+    private void transferFiles(int cycle) {
+        byte[] data = new byte[fileBytes];
+        ThreadLocalRandom.current().nextBytes(data);
+        for (int i = 0; i < files; i++) {
+            String gid = groupId(i % groups);
+            String name = prefix + "-" + i + ".bin";
+            try {
+                try (Socket s = new Socket(host, filePort)) {
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+                    out.writeUTF("UPLOAD " + gid + " " + name + " " + data.length);
+                    out.write(data);
+                    out.flush();
+                    s.shutdownOutput();
+                    s.setSoTimeout(30_000);
+                    while (s.getInputStream().read() >= 0) {
+                        // 服务器写完文件后关闭连接
+                    }
+                }
+                try (Socket s = new Socket(host, filePort)) {
+                    DataOutputStream out = new DataOutputStream(s.getOutputStream());
+                    out.writeUTF("DOWNLOAD " + gid + " " + name);
+                    out.flush();
+                    s.setSoTimeout(30_000);
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+                    long len = in.readLong();
+                    in.readFully(new byte[(int) len]);
+                    if (len == data.length) filesOk.increment();
+                    else errors.increment();
+                }
+                Thread.sleep(activeS * 1000L / Math.max(1, files));
+            } catch (IOException e) {
+                errors.increment();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /* =============================================================
+       采样与判定
+       ============================================================= */
+    private static final class Sample {
+        long online, threads, fds, heap, offline, fileTransfers;
+
+        @Override
+        public String toString() {
+            return String.format("在线 %d  线程 %d  fd %d  堆 %.1f MB  离线暂存 %d  文件传输 %d",
+                    online, threads, fds, heap / 1048576.0, offline, fileTransfers);
+        }
+    }
+
+    private Sample sample() throws IOException {
+        String text;
+        if (embedded) {
+            System.gc();
+            System.gc();
+            text = Metrics.scrape();
+        } else {
+            try (InputStream in = URI.create("http://" + host + ":" + metricsPort + "/metrics").toURL().openStream()) {
+                text = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+        }
+        Map<String, Long> m = new HashMap<>();
+        for (String line : text.split("\n")) {
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            int sp = line.lastIndexOf(' ');
+            try {
+                m.put(line.substring(0, sp), (long) Double.parseDouble(line.substring(sp + 1)));
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        Sample s = new Sample();
+        s.online = m.getOrDefault("chat_online_users", -1L);
+        s.threads = m.getOrDefault("jvm_threads_live", -1L);
+        s.fds = m.getOrDefault("process_open_fds", -1L);
+        s.heap = m.getOrDefault("jvm_heap_after_gc_bytes", m.getOrDefault("jvm_heap_used_bytes", -1L));
+        s.offline = m.getOrDefault("chat_offline_queued_messages", -1L);
+        s.fileTransfers = m.getOrDefault("chat_file_transfers_active", -1L);
+        return s;
+    }
+
+    /** 本轮超出基线的项，空表示正常 */
+    private List<String> check(Sample base, List<Sample> history) {
+        Sample s = history.get(history.size() - 1);
+        List<String> problems = new ArrayList<>();
+        if (s.online > 0) problems.add("在线人数 " + s.online + "，所有连接已断开，应为 0");
+        if (s.fileTransfers > 0) problems.add("进行中的文件传输 " + s.fileTransfers + "，应为 0");
+        if (s.offline > base.offline) problems.add("离线暂存 " + s.offline + " 条，基线 " + base.offline);
+        if (s.threads > base.threads + threadsSlack) {
+            problems.add("线程 " + s.threads + "，基线 " + base.threads + "，上限 " + (base.threads + threadsSlack));
+        }
+        if (s.fds >= 0 && s.fds > base.fds + fdsSlack) {
+            problems.add("fd " + s.fds + "，基线 " + base.fds + "，上限 " + (base.fds + fdsSlack));
+        }
+        // 堆取最近 3 轮的最小值，单轮的 GC 时机不影响判断
+        long heap = Long.MAX_VALUE;
+        for (int i = Math.max(0, history.size() - 3); i < history.size(); i++) heap = Math.min(heap, history.get(i).heap);
+        long limit = base.heap + Math.max(heapSlackBytes, (long) (base.heap * heapSlackPct / 100));
+        if (heap > limit) {
+            problems.add(String.format("GC 后的堆 %.1f MB，基线 %.1f MB，上限 %.1f MB",
+                    heap / 1048576.0, base.heap / 1048576.0, limit / 1048576.0));
+        }
+        return problems;
+    }
+
+    /* =============================================================
+       内置模式的泄漏明细：残留的在线用户、多出的线程和 fd
+       ============================================================= */
+    private static final class Snapshot {
+        final Map<String, Integer> threads = new TreeMap<>();   // 线程名（数字换成 #）-> 个数
+        final Map<String, Integer> fds = new TreeMap<>();       // fd 类型或文件路径 -> 个数
+
+        static Snapshot take() {
+            Snapshot s = new Snapshot();
+            for (Thread t : Thread.getAllStackTraces().keySet()) {
+                s.threads.merge(t.getName().replaceAll("\\d+", "#"), 1, Integer::sum);
+            }
+            Path fdDir = Paths.get("/proc/self/fd");
+            if (Files.isDirectory(fdDir)) {
+                try (DirectoryStream<Path> dir = Files.newDirectoryStream(fdDir)) {
+                    for (Path fd : dir) {
+                        try {
+                            String target = Files.readSymbolicLink(fd).toString();
+                            s.fds.merge(target.replaceAll(":\\[\\d+]$", ""), 1, Integer::sum);   // socket:[123] -> socket
+                        } catch (IOException ignored) {
+                            // 读取期间已关闭
+                        }
+                    }
+                } catch (IOException ignored) {
+                }
+            }
+            return s;
+        }
+    }
+
+    private static void report(Snapshot base, Snapshot now) {
+        Set<String> online = ChatServer.onlineUsers();
+        if (!online.isEmpty()) {
+            System.out.println("残留的在线用户（" + online.size() + "）: " + abbreviate(new ArrayList<>(online)));
+        }
+        printGrowth("多出的线程", base.threads, now.threads);
+        printGrowth("多出的 fd", base.fds, now.fds);
+    }
+
+    private static void printGrowth(String title, Map<String, Integer> base, Map<String, Integer> now) {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, Integer> e : now.entrySet()) {
+            int diff = e.getValue() - base.getOrDefault(e.getKey(), 0);
+            if (diff > 0) lines.add(String.format("    %-48s +%d（共 %d）", e.getKey(), diff, e.getValue()));
+        }
+        if (lines.isEmpty()) return;
+        System.out.println(title + ":");
+        for (String l : lines.subList(0, Math.min(lines.size(), 30))) System.out.println(l);
+        if (lines.size() > 30) System.out.println("    ... 另有 " + (lines.size() - 30) + " 项");
+    }
+
+    private static String abbreviate(List<String> names) {
+        if (names.size() <= 20) return String.join(", ", names);
+        return String.join(", ", names.subList(0, 20)) + " ...";
+    }
+
+    /* =============================================================
+       准备：注册用户、建群，取用户列表版本（登录时报上去，服务器就不推全量列表）
+       ============================================================= */
+    private void setup() throws IOException {
+        try (Socket s = new Socket(host, port)) {
+            InputStream in = new BufferedInputStream(s.getInputStream(), 64 * 1024);
+            OutputStream out = new BufferedOutputStream(s.getOutputStream(), 64 * 1024);
+            for (int u = 0; u < users; u++) writeLine(out, "REGISTER:" + userName(u) + ":pw");
+            for (int g = 0; g < groups; g++) {
+                List<Integer> m = members.get(g);
+                StringBuilder list = new StringBuilder(userName(m.get(0)));
+                for (int k = 1; k < m.size(); k++) list.append(',').append(userName(m.get(k)));
+                writeLine(out, "CREATE_GROUP|" + groupId(g) + "|浸泡群" + g + "|" + userName(m.get(0)) + "|" + list);
+            }
+            writeLine(out, "USERLIST_SYNC|0|");
+            out.flush();
+
+            s.setSoTimeout(60_000);
+            String line;
+            while ((line = readLine(in)) != null) {
+                if (!line.startsWith("USERLIST_FULL|")) continue;
+                String[] p = line.split("\\|", 3);
+                userListVersion = Integer.parseInt(p[1]);
+                String entries = p[2].endsWith(";") ? p[2].substring(0, p[2].length() - 1) : p[2];
+                String last = entries.substring(entries.lastIndexOf(';') + 1);
+                lastUserName = last.contains(",") ? last.substring(0, last.indexOf(',')) : last;
+                return;
+            }
+            throw new IOException("准备阶段连接被关闭");
+        }
+    }
+
+    /* =============================================================
+       一条文本连接：调用方写，虚拟线程读
+       ============================================================= */
+    private Session login(String name) {
+        Session s = null;
+        try {
+            s = new Session(name, new Socket(host, port));
+            s.command("USERLIST_SYNC|" + userListVersion + "|" + lastUserName);
+            s.command("LOGIN:" + name);
+            Session reading = s;
+            Thread.ofVirtual().start(reading::readLoop);
+            if (!s.loggedIn.await(30, TimeUnit.SECONDS)) throw new IOException("登录超时");
+            return s;
+        } catch (IOException | InterruptedException e) {
+            errors.increment();
+            if (s != null) s.close();
+            return null;
+        }
+    }
+
+    private final class Session {
+        final String name;
+        final Socket socket;
+        final InputStream in;
+        final OutputStream out;
+        final CountDownLatch loggedIn = new CountDownLatch(1);
+
+        Session(String name, Socket socket) throws IOException {
+            this.name = name;
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream(), 8 * 1024);
+            this.out = new BufferedOutputStream(socket.getOutputStream(), 8 * 1024);
+        }
+
+        synchronized void command(String line) {
+            try {
+                writeLine(out, line);
+                out.flush();
+            } catch (IOException e) {
+                errors.increment();
+            }
+        }
+
+        void readLoop() {
+            try {
+                String line;
+                while ((line = readLine(in)) != null) {
+                    if (line.startsWith("MSG:") || line.startsWith("GROUP_MSG|")) received.increment();
+                    else if (line.startsWith("GROUP_SNAPSHOT|")) loggedIn.countDown();
+                    else if (line.equals("ACCOUNT_CONFLICT")) break;     // 与真实客户端一样，被顶号后退出
+                }
+            } catch (IOException ignored) {
+                // 连接被关闭
+            } finally {
+                close();
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /* ============================================================= */
+    private String userName(int u) {
+        return prefix + u;
+    }
+
+    private String groupId(int g) {
+        return prefix + "-g" + g;
+    }
+
+    private static void writeLine(OutputStream out, String line) throws IOException {
+        out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) return line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8);
+            if (b != '\r') line.write(b);
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 在本进程内启动服务器：临时数据目录、日志默认只输出 warn 以上、保持打开的存储文件最多 4 个
+     * （否则缓存填满前的增长会被当成 fd 泄漏），命令行参数照样生效
+     */
+    private static void startEmbedded(String[] args, int port) throws Exception {
+        Path dir = Files.createTempDirectory("chat-soak");
+        String[] all = new String[args.length + 4];
+        all[0] = "--data.dir=" + dir;
+        all[1] = "--log.level=warn";
+        all[2] = "--store.open.conversations=4";
+        all[3] = "--offline.open.files=4";
+        System.arraycopy(args, 0, all, 4, args.length);
+        ServerConfig config = ServerConfig.fromArgs(all);
+        Log.configure(config);
+        PersistenceJournal journal = new PersistenceJournal(config);
+        journal.recover();
+        OfflineSpool spool = new OfflineSpool(config);
+        spool.recover();
+        ChatServer server = new ChatServer(config, journal, spool, new MessageStore(config));
+        Thread t = new Thread(server::start, "embedded-server");
+        t.setDaemon(true);
+        t.start();
+        for (int i = 0; i < 100; i++) {                      // 等端口就绪
+            try (Socket probe = new Socket("127.0.0.1", port)) {
+                System.out.println("内置服务器已启动，数据目录 " + dir);
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IOException("内置服务器未能启动");
+    }
+}
@@ -0,0 +1,203 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 二进制协议（协商后启用；不协商的旧客户端一直走文本行协议）
+ *
+ * 协商：客户端发文本行 PROTO|BIN1，服务器回文本行 PROTO_OK|BIN1，此后双方都只发二进制帧。
+ *   客户端收到应答前不发别的命令，所以服务器读到 PROTO 行就可以切换读取方式；
+ *   服务器的写线程写出应答那一帧后才切换，之前已入队的帧仍按文本写出，顺序不乱。
+ *   不认识的版本回 PROTO_OK|TEXT，客户端继续用文本。
+ *
+ * 帧格式：varint 帧长 | 1 字节操作码 | 字段...
+ *   数字字段为 varint（无符号 LEB128），字符串字段为 varint 字节数 + UTF-8 内容。
+ *   内容不再按 ':' / '|' 切分，可以包含任意字符（包括换行）。
+ *
+ * 操作码（客户端 -> 服务器）：
+ *   0x00 TEXT        一行文本命令（没有专用操作码的命令都走这里）
+ *   0x01 SEND        接收者, 内容
+ *   0x02 GROUP_SEND  群ID, 内容
+ * 操作码（服务器 -> 客户端）：
+ *   0x80 TEXT        一行文本消息
+ *   0x81 MSG         发送者, 接收者, 序号, 内容
+ *   0x82 GROUP_MSG   发送者, 群ID, 群名, 序号, 内容
+ *   0x83 MSG_ACK     接收者, 序号
+ */
+final class BinaryProtocol {
+    static final String HELLO = "PROTO|BIN1";
+    static final String HELLO_OK = "PROTO_OK|BIN1";
+    static final String HELLO_TEXT = "PROTO_OK|TEXT";
+    static final int MAX_FRAME_BYTES = 1024 * 1024;          // 上行（客户端 -> 服务器）上限，与文本协议的单行上限相同
+    // 下行不受上行上限约束：用户列表全量快照是一帧，十万账号时超过 1 MB，文本客户端也是一整行照收
+    static final int MAX_DOWNSTREAM_FRAME_BYTES = 256 * 1024 * 1024;
+
+    static final int OP_TEXT = 0x00;
+    static final int OP_SEND = 0x01;
+    static final int OP_GROUP_SEND = 0x02;
+    static final int OP_SERVER_TEXT = 0x80;
+    static final int OP_MSG = 0x81;
+    static final int OP_GROUP_MSG = 0x82;
+    static final int OP_MSG_ACK = 0x83;
+
+    private BinaryProtocol() {
+    }
+
+    /* =============================================================
+       编码：先写操作码和字段，frame() 时补上帧长前缀
+       ============================================================= */
+    static final class Encoder {
+        private byte[] buf = new byte[64];
+        private int len;
+
+        Encoder(int op) {
+            buf[len++] = (byte) op;
+        }
+
+        Encoder varint(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                buf[len++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[len++] = (byte) v;
+            return this;
+        }
+
+        Encoder string(String s) {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            varint(b.length);
+            ensure(b.length);
+            System.arraycopy(b, 0, buf, len, b.length);
+            len += b.length;
+            return this;
+        }
+
+        byte[] frame() {
+            byte[] out = new byte[varintSize(len) + len];
+            int p = 0;
+            int v = len;
+            while ((v & ~0x7F) != 0) {
+                out[p++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            out[p++] = (byte) v;
+            System.arraycopy(buf, 0, out, p, len);
+            return out;
+        }
+
+        private void ensure(int extra) {
+            if (len + extra > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + extra));
+        }
+    }
+
+    /* =============================================================
+       解码：字符串直接从帧缓冲区的切片解码，不再先拼成整行再切分
+       ============================================================= */
+    static final class Decoder {
+        private final byte[] buf;
+        private int pos;
+        private final int end;
+
+        Decoder(byte[] buf, int off, int len) {
+            this.buf = buf;
+            this.pos = off;
+            this.end = off + len;
+        }
+
+        int op() throws ProtocolException {
+            if (pos >= end) throw new ProtocolException("空帧");
+            return buf[pos++] & 0xFF;
+        }
+
+        long varint() throws ProtocolException {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (pos >= end) throw new ProtocolException("varint 超出帧尾");
+                byte b = buf[pos++];
+                v |= (long) (b & 0x7F) << shift;
+                if (b >= 0) return v;
+            }
+            throw new ProtocolException("varint 过长");
+        }
+
+        String string() throws ProtocolException {
+            long n = varint();
+            if (n < 0 || n > end - pos) throw new ProtocolException("字符串长度不合法: " + n);
+            String s = new String(buf, pos, (int) n, StandardCharsets.UTF_8);
+            pos += (int) n;
+            return s;
+        }
+    }
+
+    /* =============================================================
+       帧长前缀
+       ============================================================= */
+    static int varintSize(int v) {
+        int n = 1;
+        while ((v & ~0x7F) != 0) {
+            v >>>= 7;
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * buf[off, limit) 开头的帧长前缀占几个字节
+     * @return 0 表示数据还不够，需要等下一次读
+     */
+    static int headerSize(byte[] buf, int off, int limit) throws ProtocolException {
+        for (int i = 0; i < 5; i++) {
+            if (off + i >= limit) return 0;
+            if (buf[off + i] >= 0) return i + 1;
+        }
+        throw new ProtocolException("帧长前缀过长");
+    }
+
+    /** 读出 off 处的帧长（调用前已用 headerSize 确认前缀完整），超过上限抛异常 */
+    static int frameLength(byte[] buf, int off) throws ProtocolException {
+        int v = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buf[off++];
+            v |= (b & 0x7F) << shift;
+            if (b >= 0) break;
+        }
+        if (v <= 0 || v > MAX_FRAME_BYTES) throw new ProtocolException("帧长不合法: " + v);
+        return v;
+    }
+
+    /** 阻塞读一帧上行帧（服务器读客户端），上限 MAX_FRAME_BYTES */
+    static byte[] readFrame(InputStream in) throws IOException {
+        return readFrame(in, MAX_FRAME_BYTES);
+    }
+
+    /**
+     * 阻塞读一帧（不含帧长前缀）；客户端读下行帧时传 MAX_DOWNSTREAM_FRAME_BYTES
+     * @return 帧内容；在帧边界上遇到连接关闭返回 null
+     */
+    static byte[] readFrame(InputStream in, int maxBytes) throws IOException {
+        int v = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                if (shift == 0) return null;
+                throw new EOFException("帧长前缀不完整");
+            }
+            if (shift >= 35) throw new ProtocolException("帧长前缀过长");
+            v |= (b & 0x7F) << shift;
+            if (b < 0x80) break;
+        }
+        if (v <= 0 || v > maxBytes) throw new ProtocolException("帧长不合法: " + v);
+        byte[] frame = new byte[v];
+        int read = 0;
+        while (read < v) {
+            int n = in.read(frame, read, v - read);
+            if (n < 0) throw new EOFException("帧不完整");
+            read += n;
+        }
+        return frame;
+    }
+}
@@ -11,44 +11,162 @@ import java.util.concurrent.*;
  */
 public class ChatServer {
 
-    private static final int PORT = 8070;                       // 监听端口
-    private final ExecutorService threadPool = Executors.newCachedThreadPool();
+    private final ServerConfig config;
+    private final int port;                                     // 监听端口
+    private final ExecutorService threadPool;
+    private final SlowConsumerPolicy slowConsumerPolicy;
+
+    /* 用户 / 群组变更只追加日志，不再整文件重写（内部用 ReentrantLock，不会钉住虚拟线程） */
+    private final PersistenceJournal journal;
 
     /** ★ 在线用户表：用户名 -> 该用户当前唯一连接 */
     private static final Map<String, ClientHandler> ONLINE = new ConcurrentHashMap<>();
-    // 离线消息队列：用户名 → 待投递消息列表
-    public final Map<String, List<String>> offlineQueue = new ConcurrentHashMap<>();
+    // 离线消息暂存：按收件人分段落盘，有上限，重启不丢
+    private final OfflineSpool offlineSpool;
+    // 服务器端历史：每个会话独立递增序号，分段落盘
+    private final MessageStore messageStore;
+    // 上下线通知只推给关注者（私聊过、同群、显式订阅）
+    private final PresenceIndex presenceIndex;
+    private final PresenceAggregator presenceAggregator;
+
+
+    // 群消息实际推送到的在线成员数
+    private static final Metrics.Histogram GROUP_FANOUT = Metrics.sizes("chat_group_fanout_recipients",
+            "Online members a group message was delivered to", 14);
+
+    public ChatServer() {
+        this(ServerConfig.defaults());
+    }
 
+    public ChatServer(ServerConfig config) {
+        this(config, new PersistenceJournal(config), new OfflineSpool(config), new MessageStore(config));
+    }
 
-    /* --- 如果你需要服务器保存群对象可继续使用 --- */
-    private final List<Group> groups = new ArrayList<>();
+    public ChatServer(ServerConfig config, PersistenceJournal journal, OfflineSpool offlineSpool, MessageStore messageStore) {
+        this.config = config;
+        this.journal = journal;
+        this.offlineSpool = offlineSpool;
+        this.messageStore = messageStore;
+        this.port = config.getPort();
+        this.threadPool = config.getThreadMode() == ServerConfig.ThreadMode.VIRTUAL
+                ? Executors.newVirtualThreadPerTaskExecutor()
+                : Executors.newCachedThreadPool();
+        this.slowConsumerPolicy = new SlowConsumerPolicy(config);
+        this.presenceIndex = new PresenceIndex(config);
+        this.presenceAggregator = new PresenceAggregator(config, presenceIndex, ONLINE::get);
+    }
 
     /* ============================================================= */
     public void start() {
-        new Thread(new FileServer()).start();
-        System.out.println("聊天服务器已启动 (支持群聊和私聊)，正在监听端口: " + PORT);
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
+        messageStore.forEachPrivateConversation(presenceIndex::addContact);
+        presenceAggregator.start();
+        ClientHandler.COMMANDS.startReporter(config.getInt("commands.report.s", 60));
+        registerGauges();
+        Metrics.startHttp(config);
+        new Thread(new FileServer(threadPool)).start();
+        if (config.getIoMode() == ServerConfig.IoMode.NIO) {
+            startNio();
+            return;
+        }
+        Log.info("聊天服务器已启动 (支持群聊和私聊, {} 线程)，正在监听端口: {}", config.getThreadMode(), port);
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
             while (true) {
                 Socket clientSocket = serverSocket.accept();
-                System.out.println("新客户端连接: " + clientSocket.getInetAddress());
+                Log.debug("新客户端连接: {}", clientSocket.getInetAddress());
                 ClientHandler handler = new ClientHandler(clientSocket, this);
                 threadPool.execute(handler);
             }
         } catch (IOException e) {
-            System.err.println("服务器错误: " + e.getMessage());
-            e.printStackTrace();
+            Log.error("服务器错误: " + e.getMessage(), e);
+        }
+    }
+
+    /* =============================================================
+       指标：抓取时才读取的仪表（计数器和直方图在各自的类里记录）
+       ============================================================= */
+    private void registerGauges() {
+        Metrics.gauge("chat_online_users", "Users currently logged in", ONLINE::size);
+        Metrics.gauge("chat_offline_queued_messages", "Messages waiting in the offline spool", offlineSpool::totalSize);
+        Metrics.gauge("chat_offline_queued_recipients", "Users with messages in the offline spool",
+                offlineSpool::recipientCount);
+        Metrics.gauge("chat_outbound_queued_messages", "Frames waiting in all outbound queues", () -> {
+            long n = 0;
+            for (ClientHandler h : ONLINE.values()) n += h.getPendingMessages();
+            return n;
+        });
+        Metrics.gauge("chat_outbound_queued_bytes", "Bytes waiting in all outbound queues", () -> {
+            long n = 0;
+            for (ClientHandler h : ONLINE.values()) n += h.getPendingBytes();
+            return n;
+        });
+        Metrics.gauge("chat_outbound_queued_messages_max", "Longest single outbound queue", () -> {
+            long max = 0;
+            for (ClientHandler h : ONLINE.values()) max = Math.max(max, h.getPendingMessages());
+            return max;
+        });
+        Metrics.gauge("chat_log_dropped_total", "Log entries dropped because the log buffer was full", Log::getDropped);
+        Runtime rt = Runtime.getRuntime();
+        Metrics.gauge("jvm_heap_used_bytes", "Used heap", () -> rt.totalMemory() - rt.freeMemory());
+        Metrics.gauge("jvm_heap_max_bytes", "Maximum heap", rt::maxMemory);
+        Metrics.gauge("jvm_heap_after_gc_bytes", "Heap in use right after the most recent collection", () -> {
+            long n = 0;
+            for (java.lang.management.MemoryPoolMXBean pool : java.lang.management.ManagementFactory.getMemoryPoolMXBeans()) {
+                java.lang.management.MemoryUsage u = pool.getCollectionUsage();
+                if (pool.getType() == java.lang.management.MemoryType.HEAP && u != null) n += u.getUsed();
+            }
+            return n;
+        });
+        Metrics.gauge("jvm_threads_live", "Live platform threads",
+                java.lang.management.ManagementFactory.getThreadMXBean()::getThreadCount);
+        java.lang.management.OperatingSystemMXBean os = java.lang.management.ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.UnixOperatingSystemMXBean) {
+            com.sun.management.UnixOperatingSystemMXBean unix = (com.sun.management.UnixOperatingSystemMXBean) os;
+            Metrics.gauge("process_open_fds", "Open file descriptors", unix::getOpenFileDescriptorCount);
+        }
+    }
+
+    /** 当前在线表里的用户名（浸泡测试报告残留用） */
+    static Set<String> onlineUsers() {
+        return new TreeSet<>(ONLINE.keySet());
+    }
+
+    ServerConfig getConfig() {
+        return config;
+    }
+
+    SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    /** 阻塞模式下各连接写任务运行的线程池（平台线程或虚拟线程，与读线程相同） */
+    Executor getWriterExecutor() {
+        return threadPool;
+    }
+
+    /** 非阻塞模式：固定数量的 Reactor 线程承载全部连接 */
+    private void startNio() {
+        int reactors = config.getReactorCount();
+        Log.info("聊天服务器已启动 (NIO 模式, {} 个 Reactor)，正在监听端口: {}", reactors, port);
+        try {
+            new NioServer(this, port, reactors).start();
+        } catch (IOException e) {
+            Log.error("服务器错误: " + e.getMessage(), e);
         }
     }
 
     public static void main(String[] args) {
-        System.out.println("正在加载用户数据...");
-        user.loadUsersFromFile("users.txt");
+        ServerConfig config = ServerConfig.fromArgs(args);
+        Log.configure(config);
+
+        // 加载快照并重放日志
+        PersistenceJournal journal = new PersistenceJournal(config);
+        journal.recover();
 
-        System.out.println("正在加载群组数据...");
-        Group.loadGroupsFromFile("groups.txt");
+        OfflineSpool offlineSpool = new OfflineSpool(config);
+        offlineSpool.recover();
 
-        System.out.println("启动聊天服务器...");
-        new ChatServer().start();
+        Log.info("启动聊天服务器...");
+        new ChatServer(config, journal, offlineSpool, new MessageStore(config)).start();
     }
     /**
      * 处理用户需要保持在线状态的请求
@@ -59,133 +177,381 @@ public class ChatServer {
     /* =============================================================
        用户登录：加入 ONLINE，如果已有旧连接则踢下线
        ============================================================= */
-    public synchronized void userLogin(String username, ClientHandler handler)
+    public void userLogin(String username, ClientHandler handler)
     {
         /* ★★★ 单点登录核心逻辑 ★★★ */
         ClientHandler old = ONLINE.put(username, handler);   // 原子替换并取旧值
         if (old != null && old != handler) {
-            old.sendMessage("ACCOUNT_CONFLICT");             // 告知旧客户端
-            // old.close();                                     // 关闭旧 socket
+            old.forceLogout();                               // 告知旧客户端，写完后关闭旧连接
         }
 
-        System.out.println("用户 " + username + " 已登录 (当前在线数: " + ONLINE.size() + ")");
+        Log.info("用户 {} 已登录 (当前在线数: {})", username, ONLINE.size());
 
-        // 更新用户列表状态
-        for (user u : user.userList) {
-            if (u.getName().equals(username)) {
-                u.setStatus(true); break;
-            }
-        }
-        user.saveUsersToFile("users.txt");
+        deliverOffline(username, handler);
 
-        System.out.println("登陆时进行发送旧的信息");
-
-        List<String> pending = offlineQueue.remove(username);
-        if (pending != null && !pending.isEmpty()) {
-            handler.sendMessage("SYSTEM: 您有 " + pending.size() + " 条离线消息，正在推送…");
+        if (handler.isDeltaClient()) sendInterestingOnline(username, handler);
+        else sendFullUserList(handler);
+        if (handler.isDeltaClient()) sendGroupSnapshot(username, handler);
+        else sendAllGroups(handler);
+        broadcastPresence(username, true);
+    }
 
-            for (String raw : pending) {
-                handler.sendMessage(raw);           // ★ 直接下发，无需再 split/forward
-            }
-            handler.sendMessage("SYSTEM: 离线消息推送完毕。");
-        }
+    /**
+     * 在线状态只由内存中的 ONLINE 表决定，不再写入 users.txt：
+     * 上下线不触发任何磁盘写，服务器崩溃重启后也不会残留“在线”标记。
+     * 被顶号 / 断线但仍留在表里的旧连接已关闭，不算在线。
+     */
+    public boolean isOnline(String username) {
+        ClientHandler h = ONLINE.get(username);
+        return h != null && !h.isClosed();
+    }
 
-        sendFullUserList(handler);
-        sendAllGroups(handler);
-        broadcastToAll("STATUSON: " + username);
+    /** 登录时下发离线消息：不在这里一次读完，由连接随发送进度分段取回 */
+    void deliverOffline(String username, ClientHandler handler) {
+        int pending = offlineSpool.size(username);
+        if (pending > 0) handler.startBacklogDelivery(pending);
     }
 
     /* =============================================================
        仅把完整用户和群信息发给某个刚连上的客户端
        ============================================================= */
     public void userToLogin(ClientHandler handler) {
+        if (handler.isDeltaClient()) return;            // 还没登录，群组等 LOGIN 时按成员关系下发
         sendFullUserList(handler);
         sendAllGroups(handler);
     }
 
-    private void sendFullUserList(ClientHandler handler) {
+    /** 旧客户端：每次登录下发全部账号（包内可见，供基准测试调用） */
+    void sendFullUserList(ClientHandler handler) {
         StringBuilder sb = new StringBuilder("USERLIST:");
-        for (user u : user.userList) {
+        appendUserEntries(sb, user.directory.values());
+        handler.sendMessage(sb.toString());
+    }
+
+    /* =============================================================
+       增量用户列表
+       客户端: USERLIST_SYNC|本地账号数|本地最后一个账号名
+       版本号就是按注册顺序的账号数（账号只增不删）。
+       本地最后一个账号与服务器同一位置的账号一致，且落后不超过 --userlist.delta.max 个时回增量：
+         USERLIST_DELTA|起始版本|新版本|name,pw,status;...
+       否则（首次、缓存损坏、落后太多）回全量：
+         USERLIST_FULL|版本|name,pw,status;...
+       ============================================================= */
+    public void syncUserList(ClientHandler handler, int clientVersion, String lastName) {
+        int version = user.directory.version();
+        int maxDelta = config.getInt("userlist.delta.max", 5000);
+        boolean valid = clientVersion > 0 && clientVersion <= version
+                && user.directory.at(clientVersion - 1).getName().equals(lastName);
+
+        if (valid && version - clientVersion <= maxDelta) {
+            StringBuilder sb = new StringBuilder("USERLIST_DELTA|")
+                    .append(clientVersion).append('|').append(version).append('|');
+            appendUserEntries(sb, user.directory.since(clientVersion));
+            handler.sendMessage(sb.toString());
+        } else {
+            StringBuilder sb = new StringBuilder("USERLIST_FULL|").append(version).append('|');
+            appendUserEntries(sb, user.directory.since(0).subList(0, version));
+            handler.sendMessage(sb.toString());
+        }
+    }
+
+    /**
+     * 慢客户端丢过上下线通知、发送队列写空之后调用：整体补发一次在线状态。
+     * 增量客户端收 ONLINE_LIST|，旧客户端只认识 USERLIST:（带每个账号的在线状态）。
+     */
+    void resendPresence(ClientHandler handler) {
+        if (handler.isDeltaClient()) sendInterestingOnline(handler.getUsername(), handler);
+        else sendFullUserList(handler);
+    }
+
+    /** 登录时告诉增量客户端：他关注的人里谁在线（本地缓存里的在线状态已过期） */
+    private void sendInterestingOnline(String username, ClientHandler handler) {
+        StringBuilder sb = new StringBuilder("ONLINE_LIST|");
+        boolean first = true;
+        for (String name : presenceIndex.interestsOf(username)) {
+            if (!isOnline(name)) continue;
+            if (!first) sb.append(',');
+            sb.append(name);
+            first = false;
+        }
+        handler.sendMessage(sb.toString());
+    }
+
+    private void appendUserEntries(StringBuilder sb, List<user> users) {
+        for (user u : users) {
             sb.append(u.getName()).append(',')
                     .append(u.getPassword()).append(',')
-                    .append(u.isStatus()).append(';');
+                    .append(isOnline(u.getName())).append(';');
         }
-        handler.sendMessage(sb.toString());
     }
 
+    /** 旧客户端：逐条下发全部群（包括不在其中的群，旧客户端按本地列表加群） */
     private void sendAllGroups(ClientHandler handler) {
-        for (Group g : Group.groupList) {
-            handler.sendMessage("ADDGROUP|" + g.getId() + "|" + g.getGroupName() + "|" +
-                    g.getCreatorUsername() + "|" + String.join(",", g.getMembers()));
+        for (Group g : Group.registry.values()) {
+            handler.sendMessage(addGroupLine(g));
         }
     }
 
+    /**
+     * 新版客户端：只发自己所在的群，合成一帧写出
+     *   GROUP_SNAPSHOT|群数
+     *   ADDGROUP|... （群数行）
+     * 不在其中的群通过 DISCOVER_GROUPS 分页查找。
+     */
+    private void sendGroupSnapshot(String username, ClientHandler handler) {
+        List<String> lines = new ArrayList<>();
+        lines.add("");                                    // 占位，填群数
+        for (Group g : Group.registry.groupsOf(username)) lines.add(addGroupLine(g));
+        lines.set(0, "GROUP_SNAPSHOT|" + (lines.size() - 1));
+        handler.sendBatch(lines);
+    }
+
+    private static String addGroupLine(Group g) {
+        return "ADDGROUP|" + g.getId() + "|" + g.getGroupName() + "|" +
+                g.getCreatorUsername() + "|" + String.join(",", g.getMembers());
+    }
+
+    /** 群信息有变：旧客户端照旧人人都发，新版客户端只发给群成员 */
+    private void announceGroup(Group g) {
+        Frame frame = Frame.of(addGroupLine(g));
+        for (ClientHandler h : ONLINE.values()) {
+            if (!h.isDeltaClient() || g.isMember(h.getUsername())) h.sendFrame(frame);
+        }
+    }
+
+    /* =============================================================
+       找群：DISCOVER_GROUPS|起始位置|条数|关键字(可空)
+       按创建顺序分页，关键字匹配群名包含或群 ID 相等；每页最多 --groups.discover.page 条
+       回复（合成一帧）：
+         GROUP_DIRECTORY|群ID|群名|创建者|成员数   （每个群一行）
+         GROUP_DIRECTORY_END|下一页起始位置|匹配总数   （没有下一页时起始位置为 -1）
+       ============================================================= */
+    public void discoverGroups(ClientHandler handler, int offset, int limit, String keyword) {
+        int pageMax = Math.max(1, config.getInt("groups.discover.page", 50));
+        limit = Math.min(Math.max(1, limit), pageMax);
+        offset = Math.max(0, offset);
+
+        List<String> lines = new ArrayList<>();
+        int matched = 0;
+        for (Group g : Group.registry.values()) {
+            if (!keyword.isEmpty() && !g.getGroupName().contains(keyword) && !g.getId().equals(keyword)) continue;
+            if (matched >= offset && matched < offset + limit) {
+                lines.add("GROUP_DIRECTORY|" + g.getId() + "|" + g.getGroupName() + "|"
+                        + g.getCreatorUsername() + "|" + g.getMemberCount());
+            }
+            matched++;
+        }
+        int next = offset + limit < matched ? offset + limit : -1;
+        lines.add("GROUP_DIRECTORY_END|" + next + "|" + matched);
+        handler.sendBatch(lines);
+    }
+
     /* =============================================================
        用户登出
        ============================================================= */
-    public synchronized void userLogout(String username) {
-
-        //判断用户是被顶号还是登出，只有username开头为_no时才表示顶号，此时不除去用户在线
-        //取出username后三个字符与_no比较
-        if (username.endsWith("_no")) {
-            username = username.substring(0, username.length() - 3);
-            System.out.println("用户 " + username + " 其他设备登陆");
-            return ;}
+    public void userLogout(String username) {
         ONLINE.remove(username);
-        System.out.println("用户 " + username + " 已登出");
+        Log.info("用户 {} 已登出", username);
+        presenceIndex.clearSubscriptions(username);
+        markOffline(username);
+    }
 
-        for (user u : user.userList) {
-            if (u.getName().equals(username)) {
-                u.setStatus(false); break;
-            }
+    /**
+     * 连接断开（掉线、客户端退出、被顶号的旧连接关闭）：移出在线表并通知其他人下线。
+     * 与 evictSlowConsumer 相同，只在 ONLINE 中仍是该连接时才移除：
+     * 被顶号的旧连接断开时表里已是新连接，什么也不做；已经 LOGOUT 过的连接也不会重复通知。
+     */
+    void connectionClosed(ClientHandler handler) {
+        String username = handler.getUsername();
+        if (username == null || !ONLINE.remove(username, handler)) return;
+        Log.info("用户 {} 已断开", username);
+        presenceIndex.clearSubscriptions(username);
+        markOffline(username);
+    }
+
+    /**
+     * 发送队列超过断开水位的慢客户端：移出在线表并通知其他人下线。
+     * 只在 ONLINE 中仍是该连接时才移除，避免误删同账号的新连接。
+     */
+    void evictSlowConsumer(ClientHandler handler) {
+        String username = handler.getUsername();
+        if (username == null || !ONLINE.remove(username, handler)) return;
+        Log.warn("用户 {} 发送积压过多，已断开", username);
+        presenceIndex.clearSubscriptions(username);
+        markOffline(username);
+    }
+
+    private void markOffline(String username) {
+        broadcastPresence(username, false);
+    }
+
+    /** 上下线只通知关注者中在线的人，经合并窗口后按接收者批量推送（见 PresenceAggregator） */
+    private void broadcastPresence(String username, boolean online) {
+        presenceAggregator.changed(username, online);
+    }
+
+    /**
+     * 显式订阅：SUBSCRIBE|a,b,...  之后这些人的上下线也会推给该用户（本次登录期间有效）。
+     * 新订阅的人立刻回一次当前状态。
+     */
+    public void subscribePresence(ClientHandler handler, List<String> names) {
+        String me = handler.getUsername();
+        if (me == null) return;
+        for (String name : presenceIndex.subscribe(me, names)) {
+            handler.sendMessage((isOnline(name) ? "STATUSON: " : "STATUSOFF: ") + name);
         }
-        user.saveUsersToFile("users.txt");
-        broadcastToAll("STATUSOFF: " + username);
+    }
+
+    public void unsubscribePresence(ClientHandler handler, List<String> names) {
+        String me = handler.getUsername();
+        if (me != null) presenceIndex.unsubscribe(me, names);
     }
 
     /* =============================================================
        注册新用户
        ============================================================= */
-    public synchronized void registerNewUser(String username, String password) {
-        user.userList.add(new user(username, password, false));
-        user.saveUsersToFile("users.txt");
-        broadcastUserListUpdate();
-        System.out.println("新用户注册成功: " + username);
+    public void registerNewUser(String username, String password) {
+        int index = user.directory.registerIndexed(new user(username, password));
+        if (index < 0) {
+            Log.info("注册失败，用户名已存在: {}", username);
+            return;
+        }
+        journal.userRegistered(username, password);
+        broadcastUserListUpdate(index, username, password);
+        Log.info("新用户注册成功: {}", username);
     }
 
     /* =============================================================
        消息转发
+       receivedNanos 为读到该命令时的 System.nanoTime()，用于链路追踪（见 Frame.traced）
        ============================================================= */
     public void forwardMessage(String sender, String recipient, String content)
     {
-        System.out.println("第三步");
-        System.out.println("forwardMessage: sender=" + sender + " recipient=" + recipient +
-                " online?"+ONLINE.containsKey(recipient));
-        String msg = "MSG:" + sender + ":" + recipient + ":" + content;
+        forwardMessage(sender, recipient, content, System.nanoTime());
+    }
+
+    public void forwardMessage(String sender, String recipient, String content, long receivedNanos)
+    {
+        Log.debug("forwardMessage: sender={} recipient={}", sender, recipient);
+        ClientHandler senderH = ONLINE.get(sender);
+        // 不存在的收件人不落盘，否则随便编个名字就能在磁盘上建出新的会话目录
+        if (!user.directory.contains(recipient)) {
+            if (senderH != null) senderH.sendMessage("ERROR|用户不存在: " + recipient);
+            return;
+        }
+        long seq = messageStore.append(MessageStore.privateConversation(sender, recipient), sender, content);
+        if (seq < 0) {
+            // 没有序号的消息无法同步、去重，不投递，让发送方重试
+            if (senderH != null) senderH.sendMessage("ERROR|消息保存失败，请重试");
+            return;
+        }
+        presenceIndex.addContact(sender, recipient);
+        Frame msg = Frame.message(sender, recipient, seq, content).traced(seq, receivedNanos);
+
+        // 发送方也需要知道这条消息的序号，否则下次同步时无法判断自己看到了哪里；旧客户端不认识 MSG_ACK
+        if (senderH != null && senderH.isDeltaClient()) senderH.sendFrame(Frame.ack(recipient, seq));
+
         ClientHandler recH = ONLINE.get(recipient);
         if (recH != null)
         {
-            System.out.println(ONLINE);
-            recH.sendMessage(msg);
+            recH.sendFrame(msg);
         }
         else
         {
             // 对方不在线，入队
-            offlineQueue
-                    .computeIfAbsent(recipient, k->new ArrayList<>())
-                    .add(msg);
-            System.out.println("→ 已缓存离线消息给 " + recipient + " : " + msg);
+            offlineSpool.append(recipient, msg.spoolRecord());
+            Log.debug("→ 已缓存离线消息给 {} : {}", recipient, msg.text);
         }
     }
 
     public void forwardGroupMessage(String sender, String groupId, String content) {
+        forwardGroupMessage(sender, groupId, content, System.nanoTime());
+    }
+
+    public void forwardGroupMessage(String sender, String groupId, String content, long receivedNanos) {
         Group g = Group.findGroupById(groupId);
         if (g == null || !g.isMember(sender)) return;
 
-        String msg = "GROUP_MSG|" + sender + "|" + groupId + "|" + g.getGroupName() + "|" + content;
+        long seq = messageStore.append(MessageStore.groupConversation(groupId), sender, content);
+        if (seq < 0) {
+            ClientHandler senderH = ONLINE.get(sender);
+            if (senderH != null) senderH.sendMessage("ERROR|消息保存失败，请重试");
+            return;
+        }
+        // 只编码一次，所有在线成员的发送队列共用同一个 byte[]
+        Frame frame = Frame.groupMessage(sender, groupId, g.getGroupName(), seq, content).traced(seq, receivedNanos);
+        int delivered = 0;
         for (String member : g.getMembers()) {
             ClientHandler h = ONLINE.get(member);
-            if (h != null) h.sendMessage(msg);
+            if (h != null) {
+                h.sendFrame(frame);
+                delivered++;
+            }
+        }
+        GROUP_FANOUT.record(delivered);
+    }
+
+    /* =============================================================
+       历史同步：客户端报上每个会话已看到的序号，只补发缺的部分
+       SYNC|会话=序号,会话=序号,...      首次同步，另外补上该用户所在、但没列出的群（从 0 开始）
+       SYNC_NEXT|会话=序号,...           翻页，只处理列出的会话
+       会话用客户端的叫法：私聊为对方用户名，群聊为 GROUP_群ID。
+       每个会话每次最多回 --sync.page.messages 条（照常用 MSG: / GROUP_MSG| 帧，带序号），
+       之后跟一行 SYNC_PAGE|会话|本页最后序号|还有没有(1/0)，客户端收到 1 再发 SYNC_NEXT 取下一页，
+       因此服务器不保存同步进度，一个会话同一时刻最多只有一页在路上。已是最新的会话不回任何内容。
+       ============================================================= */
+    public void syncHistory(ClientHandler handler, String spec, boolean includeGroups) {
+        String me = handler.getUsername();
+        if (me == null) return;
+
+        Map<String, Long> wanted = new LinkedHashMap<>();
+        for (String item : spec.split(",")) {
+            int eq = item.lastIndexOf('=');
+            if (eq <= 0) continue;
+            try {
+                wanted.put(item.substring(0, eq).trim(), Math.max(0, Long.parseLong(item.substring(eq + 1).trim())));
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        if (includeGroups) {
+            for (Group g : Group.registry.groupsOf(me)) wanted.putIfAbsent("GROUP_" + g.getId(), 0L);
+        }
+
+        int pageSize = Math.max(1, config.getInt("sync.page.messages", 200));
+        int maxConversations = Math.max(1, config.getInt("sync.max.conversations", 1000));
+        int served = 0;
+        for (Map.Entry<String, Long> e : wanted.entrySet()) {
+            if (served++ >= maxConversations) break;
+            String key = e.getKey();
+            long after = e.getValue();
+
+            Group g = null;
+            String conversation;
+            if (key.startsWith("GROUP_")) {
+                g = Group.findGroupById(key.substring("GROUP_".length()));
+                if (g == null || !g.isMember(me)) continue;
+                conversation = MessageStore.groupConversation(g.getId());
+            } else {
+                if (!user.directory.contains(key)) continue;
+                conversation = MessageStore.privateConversation(me, key);
+            }
+
+            List<MessageStore.StoredMessage> page = messageStore.read(conversation, after, pageSize);
+            if (page.isEmpty()) continue;
+            List<Frame> frames = new ArrayList<>(page.size() + 1);
+            long last = after;
+            for (MessageStore.StoredMessage m : page) {
+                if (g != null) {
+                    frames.add(Frame.groupMessage(m.sender, g.getId(), g.getGroupName(), m.seq, m.content));
+                } else {
+                    String recipient = m.sender.equals(me) ? key : me;
+                    frames.add(Frame.message(m.sender, recipient, m.seq, m.content));
+                }
+                last = m.seq;
+            }
+            boolean more = last < messageStore.lastSeq(conversation);
+            frames.add(Frame.of("SYNC_PAGE|" + key + "|" + last + "|" + (more ? 1 : 0)));
+            handler.sendFrames(frames);
         }
     }
 
@@ -208,12 +574,14 @@ public class ChatServer {
 
                     // 在服务器端创建群组
                     Group newGroup = new Group(groupId, groupName, creatorName, memberList);
-                    Group.addGroup(newGroup);
-
-                    // 保存群组到文件中
-                    Group.saveGroupsToFile("groups.txt");
+                    if (!Group.addGroup(newGroup)) {
+                        clientHandler.sendMessage("ERROR|群组ID已存在");
+                        return;
+                    }
+                    // 记入日志
+                    journal.groupCreated(newGroup);
 
-                    System.out.println("新群聊创建成功: " + groupName + " (ID: " + groupId + "), 创建者: " + creatorName);
+                    Log.info("新群聊创建成功: {} (ID: {}), 创建者: {}", groupName, groupId, creatorName);
 
                     // 通知所有在线的群成员
                     for (String member : newGroup.getMembers()) {
@@ -225,38 +593,35 @@ public class ChatServer {
                         }
                     }
 
-                    for (ClientHandler handler3 : ONLINE.values()) {
-                        handler3.sendMessage("ADDGROUP|" + groupId + "|" + groupName +"|"+ creatorName +"|"+ String.join(",", memberList));
-                    }
+                    announceGroup(newGroup);
                 } else {
                     // 数据格式不正确，通知客户端
                     clientHandler.sendMessage("ERROR|群组数据格式不正确");
                 }
             }
         } catch (Exception e) {
-            System.err.println("处理群组创建请求时出错: " + e.getMessage());
-            e.printStackTrace();
+            Log.error("处理群组创建请求时出错: " + e.getMessage(), e);
             clientHandler.sendMessage("ERROR|创建群组时发生服务器错误");
         }
     }
 
-    public synchronized void addUserToGroup(String username, String groupId, ClientHandler handler) {
+    public void addUserToGroup(String username, String groupId, ClientHandler handler) {
         Group g = Group.findGroupById(groupId);
         if (g == null) { handler.sendMessage("ERROR|群组不存在"); return; }
-        if (g.isMember(username)) { handler.sendMessage("INFO|已在群中"); return; }
 
-        g.addMember(username); Group.saveGroupsToFile("groups.txt");
-        broadcastToAll("ADDGROUP|" + g.getId() + "|" + g.getGroupName() + "|" +
-                g.getCreatorUsername() + "|" + String.join(",", g.getMembers()));
+        if (!g.addMember(username)) { handler.sendMessage("INFO|已在群中"); return; }
+        journal.memberAdded(groupId, username);
+        announceGroup(g);
 
         // 通知群成员
         broadcastToMembers(g, "GROUP_MEMBER_JOINED|" + groupId + "|" + g.getGroupName() + "|" + username);
     }
 
     private void broadcastToMembers(Group g, String msg) {
+        Frame frame = Frame.of(msg);
         for (String m : g.getMembers()) {
             ClientHandler h = ONLINE.get(m);
-            if (h != null) h.sendMessage(msg);
+            if (h != null) h.sendFrame(frame);
         }
     }
 
@@ -266,12 +631,15 @@ public class ChatServer {
     /* =============================================================
        工具：向所有在线客户端广播
        ============================================================= */
-    private void broadcastToAll(String msg) {
-        for (ClientHandler h : ONLINE.values()) h.sendMessage(msg);
-    }
-
-    private void broadcastUserListUpdate() {
-        broadcastToAll("USERLIST_UPDATED");
+    /**
+     * 新账号注册：支持增量的客户端只收到这一条新账号，旧客户端仍收到 USERLIST_UPDATED。
+     * 并发注册时增量可能乱序到达，客户端发现起始版本对不上会重新发 USERLIST_SYNC。
+     */
+    private void broadcastUserListUpdate(int index, String username, String password) {
+        String delta = "USERLIST_DELTA|" + index + "|" + (index + 1) + "|" + username + "," + password + ",false;";
+        for (ClientHandler h : ONLINE.values()) {
+            h.sendMessage(h.isDeltaClient() ? delta : "USERLIST_UPDATED");
+        }
     }
 
     public void forwardToUser(String username, String msg)//处理文件
@@ -279,7 +647,7 @@ public class ChatServer {
         ClientHandler h = ONLINE.get(username);
         if(h!=null)
         {
-            System.out.println("对方在线，可以发送");
+            Log.debug("{} 在线，转发文件命令", username);
             h.sendMessage(msg);
         }
 
@@ -288,7 +656,7 @@ public class ChatServer {
     /**
      * 列出某群的所有文件，并通过 handler 发送回客户端
      */
-    public synchronized void listGroupFiles(String groupId, ClientHandler handler) {
+    public void listGroupFiles(String groupId, ClientHandler handler) {
         File dir = new File("ServerFiles/Groups", groupId);
         String[] files = dir.exists() && dir.isDirectory()
                 ? dir.list()
@@ -299,9 +667,14 @@ public class ChatServer {
     }
 
 
-    public Map<String, List<String>> getOfflineBox()
+    public OfflineSpool getOfflineSpool()
+    {
+        return offlineSpool;
+    }
+
+    public MessageStore getMessageStore()
     {
-        return offlineQueue;
+        return messageStore;
     }
 
 
@@ -1,15 +1,39 @@
 
 import java.io.*;
+import java.net.ProtocolException;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ClientHandler implements Runnable {
     private Socket clientSocket;
-    private BufferedReader in;
-    private BufferedWriter out;
+    private NioConnection connection;      // NIO 模式下使用，阻塞模式为 null
+    private InputStream in;                // 自己按行切分，协商二进制后同一个流接着按帧读，缓冲区里的数据不会丢
+    private OutputStream out;
+    private volatile boolean binaryIn;     // 已协商二进制协议：之后的上行数据按帧读，见 BinaryProtocol
+    private volatile boolean binaryOut;    // 阻塞模式的写任务已写出协商应答，之后的下行帧按二进制写出
+    private final OutboundQueue outbound;                   // 待发送数据，由写任务合并写出
+    private final AtomicBoolean writerScheduled = new AtomicBoolean(false);
+    private volatile boolean closeWhenFlushed;
+    private volatile boolean closed;
+    private volatile boolean backlogPending;               // 离线暂存中还有该用户待补发的消息
+    private volatile boolean backlogNotice;                // 补发完毕时是否提示“离线消息推送完毕”
+    private volatile boolean presenceStale;                // 因积压丢过上下线通知，写空后补发一次在线快照
+    private volatile boolean deltaClient;                  // 发过 USERLIST_SYNC 的新版客户端，见 isDeltaClient
+    private volatile boolean trace;                        // 发过 TRACE|1：聊天消息后面跟 TRACE 行，见 Frame
+    private long receivedNanos;                            // 当前命令读到的时间，只在读线程使用
     private String username = null;
     private ChatServer server;
+
+    private static final Metrics.Counter CONNECTIONS = Metrics.counter("chat_connections_total",
+            "Client connections accepted");
+    private static final Metrics.Counter SLOW_DISCONNECTS = Metrics.counter("chat_slow_consumer_disconnects_total",
+            "Connections closed because their outbound queue exceeded the limit");
+    private static final Metrics.Counter PRESENCE_DROPPED = Metrics.counter("chat_presence_dropped_total",
+            "Presence notifications dropped for backlogged connections");
     private String lastMessage;
 
     public String getLastMessage() {
@@ -18,184 +42,504 @@ public class ClientHandler implements Runnable {
     public ClientHandler(Socket socket, ChatServer server) {
         this.clientSocket = socket;
         this.server = server;
+        this.outbound = new OutboundQueue(server.getConfig().getOutboundCapacity());
+        CONNECTIONS.inc();
         try {
-            in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream(), "UTF-8"));
-            out = new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream(), "UTF-8"));
+            in = new BufferedInputStream(clientSocket.getInputStream(), 8 * 1024);
+            out = new BufferedOutputStream(clientSocket.getOutputStream(), 64 * 1024);
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.error("初始化连接失败", e);
         }
     }
 
+    /** NIO 模式：读写由 NioConnection 负责，本对象只解析命令 */
+    public ClientHandler(NioConnection connection, ChatServer server) {
+        this.connection = connection;
+        this.server = server;
+        this.outbound = new OutboundQueue(server.getConfig().getOutboundCapacity());
+        CONNECTIONS.inc();
+    }
+
     @Override
     public void run() {
         try {
             sendMessage("欢迎连接到服务器！");
-            String line;
-            while ((line = in.readLine()) != null) {
-                line = line.trim();                       // 去掉 \r
-                System.out.println("收到原始行: " + line);
-                processClientMessage(line);
+            while (true) {
+                if (binaryIn) {
+                    byte[] frame = BinaryProtocol.readFrame(in);
+                    if (frame == null) break;
+                    onBinaryFrame(frame, 0, frame.length);
+                } else {
+                    String line = readLine();
+                    if (line == null) break;
+                    onLine(line);
+                }
             }
         } catch (IOException e) {
-            String clientInfo = username != null ? "用户 [" + username + "]" :
-                    "未登录客户端 [" + clientSocket.getInetAddress().getHostAddress() + "]";
-            System.out.println(clientInfo + " 断开连接");
+            if (username != null) Log.info("用户 [{}] 断开连接", username);
+            else Log.info("未登录客户端 [{}] 断开连接", clientSocket.getInetAddress().getHostAddress());
         } finally {
-            if (username != null) {
-                // 通知用户下线
-                username+="_no";
-                server.userLogout(username);
-            }
+            onDisconnect();
             close();
         }
     }
 
-    private void deliverOfflineMsgs(String username) {
-        List<String> box = server.getOfflineBox().remove(username);
-        System.out.println("deliverOfflineMsgs: box = " + box);// 取出并清空
-        if (box != null && !box.isEmpty()) {
-            sendMessage("SYSTEM: 您有 " + box.size() + " 条离线消息，正在推送…");
-            for (String raw : box) {
-                sendMessage(raw);           // raw 仍是原始 "MSG:" 格式
+    /** 阻塞模式读一行（UTF-8，不含行尾）；连接关闭返回 null */
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) return line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8);
+            if (line.size() >= BinaryProtocol.MAX_FRAME_BYTES) throw new ProtocolException("单行超过上限");
+            line.write(b);
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    /** 收到一整行（两种 I/O 模式共用） */
+    void onLine(String line) {
+        onLine(line, System.nanoTime());
+    }
+
+    /** @param readNanos 读到该行的时刻（NIO 模式下命令排队执行，追踪从读到时算起） */
+    void onLine(String line, long readNanos) {
+        receivedNanos = readNanos;
+        processClientMessage(line.trim());        // 去掉 \r
+    }
+
+    /** 收到一个二进制帧（两种 I/O 模式共用）；buf 只在本次调用内有效 */
+    void onBinaryFrame(byte[] buf, int off, int len) {
+        onBinaryFrame(buf, off, len, System.nanoTime());
+    }
+
+    void onBinaryFrame(byte[] buf, int off, int len, long readNanos) {
+        receivedNanos = readNanos;
+        try {
+            BinaryProtocol.Decoder d = new BinaryProtocol.Decoder(buf, off, len);
+            int op = d.op();
+            if (op == BinaryProtocol.OP_TEXT) {
+                onLine(d.string(), readNanos);
+            } else if (!COMMANDS.dispatch(this, op, d)) {
+                Log.warn("用户 [{}] 发来未知操作码 {}，忽略", username, op);
             }
-            sendMessage("SYSTEM: 离线消息推送完毕。");
+        } catch (ProtocolException e) {
+            Log.warn("用户 [{}] 的二进制帧格式错误: {}，断开连接", username, e.getMessage());
+            close();
+        } catch (RuntimeException e) {
+            // 字段取值不合法等：帧已无法可靠解析，与格式错误同样处理
+            Log.error("用户 [" + username + "] 的二进制帧处理失败，断开连接: " + e.getMessage(), e);
+            close();
+        }
+    }
+
+    /** 客户端请求切换到二进制协议：本连接之后的上行按帧读，应答写出之后下行也按帧写 */
+    private void negotiateBinary(String hello) {
+        if (binaryIn) return;
+        if (!BinaryProtocol.HELLO.equals(hello)) {
+            sendMessage(BinaryProtocol.HELLO_TEXT);         // 不认识的版本：继续用文本
+            return;
         }
+        binaryIn = true;
+        if (connection != null) connection.switchToBinaryInput();
+        enqueue(Frame.BINARY_ACK);
+    }
+
+    /** 连接断开（两种 I/O 模式共用） */
+    void onDisconnect() {
+        server.connectionClosed(this);
     }
 
     public void processClientMessage(String message) {
-        System.out.println("收到客户端消息：" + message);
-        // 记录最后一条消息
+        // 记录最后一条消息（建群等命令从这里取原始参数）
         this.lastMessage = message;
-        if (message.startsWith("LOGIN:")) {
-            // 登录: LOGIN:用户名
-            String[] parts = message.split(":", 2);
-            if (parts.length >= 2) {
-                username = parts[1].trim(); // 去除用户名中的空格
-                server.userLogin(username, this);
-            }
-        }
+        COMMANDS.dispatch(this, message);         // 不认识的命令忽略，计入 (unknown) 统计
+    }
 
-        else if (message.startsWith("LOGOUT:")) {
-            // 登出: LOGOUT:用户名
-            String[] parts = message.split(":", 2);
-            if (parts.length >= 2) {
-                server.userLogout(parts[1]);
-            }
-        } else if (message.startsWith("SEND:")) {
-            // 发送消息: SEND:接收者:内容
-            System.out.println("第二步");
-            String[] parts = message.split(":", 3);
-            System.out.println(Arrays.toString(parts));
-            System.out.println(parts.length);
-            if (parts.length >= 3 && username != null) {
-                server.forwardMessage(username, parts[1], parts[2]);
-            }
-        } else if (message.startsWith("REGISTER:")) {
-            // 注册新用户: REGISTER:用户名:密码
-            String[] parts = message.split(":", 3);
-            if (parts.length >= 3) {
-                server.registerNewUser(parts[1], parts[2]);
-            }
+    /* =============================================================
+       上行命令分发表：命令字 / 操作码 -> 处理器，见 CommandRegistry
+       处理器写在本类里，可以直接访问连接的私有状态
+       ============================================================= */
+    static final CommandRegistry COMMANDS = new CommandRegistry()
+
+            /* ========== 聊天（最频繁） ========== */
+            .text("GROUP_MSG|", (c, message) -> {
+                // 群聊消息: GROUP_MSG|群组ID|消息内容
+                String[] parts = message.split("\\|", 3);
+                if (parts.length >= 3 && c.username != null) {
+                    c.server.forwardGroupMessage(c.username, parts[1], parts[2], c.receivedNanos);
+                }
+            })
+            .binary(BinaryProtocol.OP_GROUP_SEND, "GROUP_MSG", (c, d) -> {
+                String groupId = d.string();
+                String content = d.string();
+                c.lastMessage = "GROUP_MSG|" + groupId + "|" + content;
+                if (c.username != null) c.server.forwardGroupMessage(c.username, groupId, content, c.receivedNanos);
+            })
+            .text("SEND:", (c, message) -> {
+                // 发送消息: SEND:接收者:内容
+                String[] parts = message.split(":", 3);
+                if (parts.length >= 3 && c.username != null) {
+                    c.server.forwardMessage(c.username, parts[1], parts[2], c.receivedNanos);
+                }
+            })
+            .binary(BinaryProtocol.OP_SEND, "SEND", (c, d) -> {
+                String recipient = d.string();
+                String content = d.string();
+                c.lastMessage = "SEND:" + recipient + ":" + content;
+                if (c.username != null) c.server.forwardMessage(c.username, recipient, content, c.receivedNanos);
+            })
+
+            /* ========== 登录 / 注册 ========== */
+            .text("LOGIN:", (c, message) -> {
+                // 登录: LOGIN:用户名
+                c.username = message.substring("LOGIN:".length()).trim(); // 去除用户名中的空格
+                c.server.userLogin(c.username, c);
+            })
+            .text("LOGOUT:", (c, message) -> {
+                // 登出: LOGOUT:用户名
+                c.server.userLogout(message.substring("LOGOUT:".length()));
+            })
+            .text("REGISTER:", (c, message) -> {
+                // 注册新用户: REGISTER:用户名:密码
+                String[] parts = message.split(":", 3);
+                if (parts.length >= 3) c.server.registerNewUser(parts[1], parts[2]);
+            })
+            .text("TOLOGIN", (c, message) -> c.server.userToLogin(c))
+            .text("RETOLOGIN", (c, message) -> {
+                Log.debug("注册成功返回登陆");
+                c.server.userToLogin(c);
+            })
+            .text("USERLIST_SYNC|", (c, message) -> {
+                // 增量用户列表: USERLIST_SYNC|本地账号数|本地最后一个账号名
+                String[] parts = message.split("\\|", 3);
+                c.deltaClient = true;
+                int version = 0;
+                try {
+                    version = Integer.parseInt(parts[1].trim());
+                } catch (RuntimeException ignored) {
+                }
+                c.server.syncUserList(c, version, parts.length >= 3 ? parts[2] : "");
+            })
+            .text("TRACE|", (c, message) -> {
+                // 链路追踪开关: TRACE|1 / TRACE|0
+                c.trace = "1".equals(message.substring("TRACE|".length()).trim());
+            })
+            .text("PROTO|", (c, message) -> {
+                // 协议协商: PROTO|BIN1
+                c.negotiateBinary(message);
+            })
+
+            /* ========== 群组 ========== */
+            .text("CREATE_GROUP|", (c, message) -> {
+                Log.debug("有新群聊注册");
+                c.server.addGroup(c);
+            })
+            .text("JOIN_GROUP|", (c, message) -> {
+                // 处理加入群聊请求: JOIN_GROUP|群组ID|用户名
+                String[] parts = message.split("\\|", 3);
+                if (parts.length >= 3) c.server.addUserToGroup(parts[2], parts[1], c);
+            })
+            .text("DISCOVER_GROUPS|", (c, message) -> {
+                // 分页找群: DISCOVER_GROUPS|起始位置|条数|关键字
+                String[] parts = message.split("\\|", 4);
+                try {
+                    c.server.discoverGroups(c, Integer.parseInt(parts[1].trim()), Integer.parseInt(parts[2].trim()),
+                            parts.length >= 4 ? parts[3].trim() : "");
+                } catch (RuntimeException e) {
+                    c.sendMessage("ERROR|DISCOVER_GROUPS 格式不正确");
+                }
+            })
 
+            /* ========== 私聊文件：发起端 ========== */
+            .text("FILE_OFFER ", (c, message) -> {
+                // 格式: FILE_OFFER <toUser> <fileName> <size>
+                c.server.forwardToUser(message.split(" ", 5)[1], message);
+                Log.debug("服务器收到文件，向目标客户端传输");
+            })
+            .text("FILE_ACCEPT ", (c, message) -> {
+                // 对端同意接收: FILE_ACCEPT <fromUser>
+                c.server.forwardToUser(message.split(" ")[1], message);
+                Log.debug("同意接受");
+            })
+            .text("FILE_CONNECT ", (c, message) -> {
+                // 发起方告知接收方 IP+端口: FILE_CONNECT <fromUser> <ip> <port> <fileName>
+                c.server.forwardToUser(message.split(" ", 5)[1], message);
+            })
+
+            /* ========== 群文件上传/下载命令 ========== */
+            // 可在此做权限检查，然后直接回复 "OK" 告知客户端连 9000 端口
+            .text("GROUP_FILE_UPLOAD ", (c, message) -> c.sendMessage("FILE_PORT 9000"))
+            .text("GROUP_FILE_DOWNLOAD ", (c, message) -> c.sendMessage("FILE_PORT 9000"))
+            .text("GROUP_FILE_LIST_REQUEST|", (c, message) -> {
+                // 列出所有群文件: GROUP_FILE_LIST_REQUEST|<groupId>
+                c.server.listGroupFiles(message.substring("GROUP_FILE_LIST_REQUEST|".length()), c);
+            })
+
+            /* ========== 上下线订阅 ========== */
+            .text("SUBSCRIBE|", (c, message) -> {
+                // 关注这些人的上下线: SUBSCRIBE|a,b,...
+                c.server.subscribePresence(c, Arrays.asList(message.substring("SUBSCRIBE|".length()).split(",")));
+            })
+            .text("UNSUBSCRIBE|", (c, message) -> {
+                c.server.unsubscribePresence(c, Arrays.asList(message.substring("UNSUBSCRIBE|".length()).split(",")));
+            })
+
+            /* ========== 历史同步 ========== */
+            .text("SYNC|", (c, message) -> {
+                // 重连后补齐历史: SYNC|会话=已看到的序号,...
+                c.server.syncHistory(c, message.substring("SYNC|".length()), true);
+            })
+            .text("SYNC_NEXT|", (c, message) -> {
+                // 下一页: SYNC_NEXT|会话=本页最后序号
+                c.server.syncHistory(c, message.substring("SYNC_NEXT|".length()), false);
+            });
+
+    /**
+     * 发送一行给客户端：只入队不阻塞，调用方（通常是别人的读线程）不会被慢客户端拖住。
+     * 实际写出由写任务（阻塞模式）或 Reactor（NIO 模式）完成。
+     */
+    public void sendMessage(String msg) {
+        sendFrame(Frame.of(msg));
+    }
+
+    /**
+     * 发送已编码好的一帧：群发时同一个 Frame 交给所有成员，只编码一次。
+     * 慢消费者策略与 sendMessage 相同。
+     */
+    void sendFrame(Frame frame) {
+        if (closed) return;
+        switch (server.getSlowConsumerPolicy().decide(outbound, frame, backlogPending)) {
+            case DROP:
+                presenceStale = true;
+                PRESENCE_DROPPED.inc();
+                return;
+            case SPILL:
+                if (username != null) {
+                    backlogPending = true;
+                    if (spill(frame)) {
+                        // 判断之后队列可能已被写空，此时没有写任务会再来调 onOutboundDrained，补发就停住了
+                        if (outbound.isEmpty()) wakeWriter();
+                        return;
+                    }
+                }
+                break;                                       // 转存刚好结束，照常入队
+            case DISCONNECT:
+                disconnectSlowConsumer(frame);
+                return;
+            default:
+                break;
         }
-        else if(message.startsWith("TOLOGIN"))
-        {
-            server.userToLogin(this);
+        enqueue(frame);
+    }
+
+    private void enqueue(Frame frame) {
+        if (!outbound.offer(frame)) {
+            disconnectSlowConsumer(frame);
+            return;
         }
+        wakeWriter();
+        Log.debug("SERVER -> CLIENT(sendMessage): {}", frame.text);
+    }
+
+    /** 一次性写出多行（群组快照、用户列表等）：合并成一帧入队，只占一个队列位置、一次写出 */
+    void sendBatch(List<String> lines) {
+        List<Frame> frames = new ArrayList<>(lines.size());
+        for (String line : lines) frames.add(Frame.of(line));
+        sendFrames(frames);
+    }
 
-        else if(message.startsWith("RETOLOGIN"))
-        {
-            System.out.println("注册成功返回登陆");
-            server.userToLogin(this);
+    /**
+     * 同 sendBatch，各行已是 Frame（历史同步、离线补发用，二进制客户端收到的是结构化的 MSG / GROUP_MSG 帧）。
+     * 同样经过慢消费者策略；合并帧既不是状态通知也不是单条聊天消息，只会入队或断开。
+     */
+    void sendFrames(List<Frame> frames) {
+        sendFrames(frames, null);
+    }
+
+    /** @param written 整批写到连接上之后执行（可为 null），见 Frame.whenWritten */
+    private void sendFrames(List<Frame> frames, Runnable written) {
+        if (closed || frames.isEmpty()) return;
+        Frame batch = Frame.batch(frames).whenWritten(written);
+        if (server.getSlowConsumerPolicy().decide(outbound, batch, backlogPending) == SlowConsumerPolicy.Action.DISCONNECT
+                || !outbound.offer(batch)) {
+            disconnectSlowConsumer(batch);
+            return;
         }
-        else if(message.startsWith("CREATE_GROUP|"))
-        {
-            System.out.println("有新群聊注册");
-            server.addGroup(this);
+        wakeWriter();
+        Log.debug("SERVER -> CLIENT(sendBatch): {} 行", frames.size());
+    }
+
+    /* =============================================================
+       离线暂存的转存与补发（慢消费者转存、登录时的离线消息共用）
+       backlogPending 只在 OfflineSpool 该用户的锁内清除，与转存追加互斥，
+       保证不会有消息在补发结束后滞留在暂存里
+       ============================================================= */
+    private boolean spill(Frame frame) {
+        return server.getOfflineSpool().appendIf(username, frame.spoolRecord(), () -> backlogPending);
+    }
+
+    /**
+     * 登录时有离线消息：先发提示，然后随发送队列清空一段一段地补发，
+     * 客户端读多快就补多快，积压不会一次性全部压进内存
+     */
+    void startBacklogDelivery(int total) {
+        backlogNotice = true;
+        backlogPending = true;
+        sendMessage("SYSTEM: 您有 " + total + " 条离线消息，正在推送…");
+    }
+
+    /** 写空后是否需要调用 onOutboundDrained（NIO 模式据此决定要不要占用一个工作线程） */
+    boolean hasDrainWork() {
+        return (backlogPending || presenceStale) && !closed;
+    }
+
+    /**
+     * 发送队列已清空：从离线暂存取回最旧的一段继续发送，写出之后才从暂存里删除（见 OfflineSpool.Taken）。
+     * 最后一段发出去、队列再次清空时才会取到空，这时结束补发状态，新消息不会越过还没发出的补发
+     */
+    void onOutboundDrained() {
+        if (closed) return;
+        if (presenceStale && username != null) {
+            // 丢掉的增量没有谁会重发，客户端按快照整体校正
+            presenceStale = false;
+            server.resendPresence(this);
         }
-        else if (message.startsWith("JOIN_GROUP|")) {
-            // 处理加入群聊请求: JOIN_GROUP|群组ID|用户名
-            String[] parts = message.split("\\|", 3);
-            if (parts.length >= 3) {
-                String groupId = parts[1];
-                String joiningUsername = parts[2];
-                server.addUserToGroup(joiningUsername, groupId, this);
-            }
+        if (!backlogPending) return;
+        boolean[] done = {false};
+        OfflineSpool.Taken taken = server.getOfflineSpool().takeSegment(username, this, () -> {
+            backlogPending = false;
+            done[0] = true;
+        });
+        if (taken != null) {
+            List<Frame> frames = new ArrayList<>(taken.records.size());
+            for (String record : taken.records) frames.add(Frame.fromSpoolRecord(record));
+            sendFrames(frames, taken::ack);
         }
-        /* ========== 私聊文件：发起端 ========== */
-        else if (message.startsWith("FILE_OFFER ")) {
-            // 格式: FILE_OFFER <toUser> <fileName> <size>
-            String[] p = message.split(" ", 5);
-            String to = p[1];
-            server.forwardToUser(to, message);
-            System.out.println("服务器收到文件，向目标客户端传输");
-        }
-        else if (message.startsWith("FILE_ACCEPT ")) {
-            // 对端同意接收: FILE_ACCEPT <fromUser>
-            String to = message.split(" ")[1];
-            server.forwardToUser(to, message);
-            System.out.println("同意接受");
-        }
-        else if (message.startsWith("FILE_CONNECT ")) {
-            // 发起方告知接收方 IP+端口: FILE_CONNECT <fromUser> <ip> <port> <fileName>
-            String to = message.split(" ", 5)[1];
-            server.forwardToUser(to, message);
-        }
-        /* ========== 群文件上传/下载命令 ========== */
-        else if (message.startsWith("GROUP_FILE_UPLOAD ") || message.startsWith("GROUP_FILE_DOWNLOAD ")) {
-            // 可在此做权限检查，然后直接回复 "OK" 告知客户端连 9000 端口
-            sendMessage("FILE_PORT 9000");
+        if (done[0] && backlogNotice) {
+            backlogNotice = false;
+            sendMessage("SYSTEM: 离线消息推送完毕。");
         }
+    }
 
-        // 列出所有群文件
-        else if (message.startsWith("GROUP_FILE_LIST_REQUEST|")) {
-            // 客户端发送: GROUP_FILE_LIST_REQUEST|<groupId>
-            String[] parts = message.split("\\|", 2);
-            if (parts.length == 2) {
-                server.listGroupFiles(parts[1],this);
-            }
-        }
+    /** 积压超过断开水位：聊天消息留到离线队列，然后断开连接 */
+    private void disconnectSlowConsumer(Frame frame) {
+        Log.warn("用户 [{}] 发送积压 {} 条 / {} 字节，断开连接", username,
+                outbound.getPendingMessages(), outbound.getPendingBytes());
+        SLOW_DISCONNECTS.inc();
+        if (username != null && frame.chat) server.getOfflineSpool().append(username, frame.spoolRecord());
+        server.evictSlowConsumer(this);
+        close();
+    }
 
-        else if (message.startsWith("GROUP_MSG|")) {
-            // 群聊消息: GROUP_MSG|群组ID|消息内容
-            String[] parts = message.split("\\|", 3);
-            if (parts.length >= 3 && username != null) {
-                String groupId = parts[1];
-                String content = parts[2];
-                System.out.println("测试服务器收到来自群聊的消息："+groupId + "|" + content);
-                server.forwardGroupMessage(username, groupId, content);
-            }
+    /* =============================================================
+       阻塞模式的写任务：同一时刻每个连接最多一个，在服务器线程池上运行
+       ============================================================= */
+    /** 让写线程跑一轮：写出积压，队列为空时也会走到 onOutboundDrained（基准测试的假连接重写为空操作） */
+    void wakeWriter() {
+        if (connection != null) connection.requestWrite();
+        else scheduleWriter();
+    }
+
+    private void scheduleWriter() {
+        if (writerScheduled.compareAndSet(false, true)) {
+            server.getWriterExecutor().execute(this::drainOutbound);
         }
-        System.out.println("SERVER ← CLIENT(processcilentmessage): " + message);
     }
 
-    public void sendMessage(String msg) {
+    private void drainOutbound() {
+        List<Frame> batch = new ArrayList<>();
+        List<Runnable> written = new ArrayList<>();
         try {
-            out.write(msg + "\n");
-            out.flush();
+            while (true) {
+                while (outbound.drainTo(batch) > 0) {
+                    for (Frame frame : batch) {
+                        out.write(binaryOut ? frame.binary() : frame.text(deltaClient));
+                        if (frame == Frame.BINARY_ACK) binaryOut = true;
+                        byte[] trailer = frame.onWrite(trace, binaryOut);
+                        if (trailer != null) out.write(trailer);
+                        if (frame.written() != null) written.add(frame.written());
+                    }
+                    batch.clear();
+                    out.flush();                             // 一批只 flush 一次
+                    for (Runnable r : written) r.run();
+                    written.clear();
+                }
+                if (closeWhenFlushed) { close(); return; }
+                onOutboundDrained();
+                writerScheduled.set(false);
+                // 清标志与别的线程入队之间存在竞争，这里补一次检查
+                if (outbound.isEmpty() || !writerScheduled.compareAndSet(false, true)) return;
+            }
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.warn("向用户 [{}] 写数据失败: {}", username, e.getMessage());
+            writerScheduled.set(false);
+            close();
         }
-        System.out.println("SERVER -> CLIENT(sendMessage): " + msg);
+    }
+
+    OutboundQueue getOutbound() {
+        return outbound;
+    }
+
+    /** 尚未写出的消息条数 */
+    public int getPendingMessages() {
+        return outbound.getPendingMessages();
+    }
+
+    /** 是否要求聊天消息带追踪时间戳 */
+    boolean isTraceEnabled() {
+        return trace;
+    }
+
+    /** 尚未写出的字节数 */
+    public long getPendingBytes() {
+        return outbound.getPendingBytes();
     }
 
     void close() {
+        closed = true;
+        if (connection != null) {
+            connection.close();
+            return;
+        }
         try {
-            if (in != null) in.close();
-            if (out != null) out.close();
-            if (clientSocket != null && !clientSocket.isClosed()) clientSocket.close();
+            outbound.clear();
+            if (clientSocket != null && !clientSocket.isClosed()) clientSocket.close();   // 同时关闭 in/out
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.warn("关闭连接失败", e);
         }
     }
 
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * 发过 USERLIST_SYNC 的新版客户端：
+     * 用户列表走增量、上下线收合并后的 PRESENCE 帧、登录时只收自己所在的群，
+     * 聊天消息带会话序号（MSG_ACK 也只发给它们）。
+     * 旧客户端仍按原来的方式收全量，聊天消息不带序号。
+     */
+    boolean isDeltaClient() {
+        return deltaClient;
+    }
+
     public String getUsername() {
         return username;
     }
 
+    /**
+     * 同账号在别处登录：发 ACCOUNT_CONFLICT，写出后关闭连接。
+     * 此时 ONLINE 里已是新连接，关闭时 connectionClosed 不会把新连接移出在线表或推送下线。
+     */
     public void forceLogout() {
         sendMessage("ACCOUNT_CONFLICT");
-        close();
+        if (connection != null) {
+            connection.closeWhenFlushed();
+        } else {
+            closeWhenFlushed = true;
+            scheduleWriter();
+        }
     }
 
 }
@@ -0,0 +1,191 @@
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 上行命令分发表（替代 processClientMessage 里逐个 startsWith 的 if/else 链）
+ *
+ * 文本命令按“命令字”查表：行首到第一个 ':' / '|' / ' '（含该分隔符）为命令字，如 "SEND:"、"GROUP_MSG|"、
+ * "FILE_OFFER "；没有分隔符的整行就是命令字，如 "TOLOGIN"。二进制帧按操作码查数组。
+ * 一次哈希查找即可定位，命令多少、排在哪里都不影响热点命令的开销。
+ *
+ * 每个命令各有次数、累计耗时、最大耗时，文本和二进制两种写法的同一命令共用一份统计。
+ * --commands.report.s 秒（默认 60，0 关闭）打印一次，按累计耗时排序，看时间花在哪里。
+ */
+final class CommandRegistry {
+
+    /** 文本命令：message 为完整的一行 */
+    interface TextCommand {
+        void handle(ClientHandler client, String message);
+    }
+
+    /** 二进制命令：操作码已读出，d 指向第一个字段 */
+    interface BinaryCommand {
+        void handle(ClientHandler client, BinaryProtocol.Decoder d) throws ProtocolException;
+    }
+
+    /** 一个命令的统计 */
+    static final class Stats {
+        final String name;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final Metrics.Histogram latency;             // 同一份耗时，供 /metrics 抓取
+
+        Stats(String name) {
+            this.name = name;
+            this.latency = Metrics.latency("chat_command_duration_seconds",
+                    "Time spent handling one client command", "command", name);
+        }
+
+        void record(long elapsed) {
+            latency.record(elapsed);
+            count.increment();
+            nanos.add(elapsed);
+            long max = maxNanos.get();
+            while (elapsed > max && !maxNanos.compareAndSet(max, elapsed)) max = maxNanos.get();
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        long totalNanos() {
+            return nanos.sum();
+        }
+
+        long maxNanos() {
+            return maxNanos.get();
+        }
+    }
+
+    private static final int MAX_KEY_LENGTH = 32;            // 命令字都很短，超过的直接当未知命令，不对长行做哈希
+
+    private final Map<String, TextCommand> textCommands = new HashMap<>();
+    private final Map<String, Stats> textStats = new HashMap<>();
+    private final BinaryCommand[] binaryCommands = new BinaryCommand[256];
+    private final Stats[] binaryStats = new Stats[256];
+    private final Map<String, Stats> statsByName = new HashMap<>();
+    private final Stats unknown = stats("(unknown)");
+    private ScheduledExecutorService reporter;
+    private long lastReportedCount = -1;
+
+    /* =============================================================
+       注册：只在类初始化时调用，之后只读，分发时不加锁
+       ============================================================= */
+    /** @param key 命令字，含分隔符，如 "SEND:"；name 为统计名，与二进制写法共用 */
+    CommandRegistry text(String key, String name, TextCommand command) {
+        if (textCommands.put(key, command) != null) throw new IllegalArgumentException("命令字重复: " + key);
+        textStats.put(key, stats(name));
+        return this;
+    }
+
+    CommandRegistry text(String key, TextCommand command) {
+        char last = key.charAt(key.length() - 1);
+        boolean separated = last == ':' || last == '|' || last == ' ';
+        return text(key, separated ? key.substring(0, key.length() - 1) : key, command);
+    }
+
+    CommandRegistry binary(int op, String name, BinaryCommand command) {
+        if (binaryCommands[op] != null) throw new IllegalArgumentException("操作码重复: " + op);
+        binaryCommands[op] = command;
+        binaryStats[op] = stats(name);
+        return this;
+    }
+
+    private Stats stats(String name) {
+        return statsByName.computeIfAbsent(name, Stats::new);
+    }
+
+    /* =============================================================
+       分发
+       ============================================================= */
+    /** @return false 表示不认识的命令 */
+    boolean dispatch(ClientHandler client, String message) {
+        String key = keyOf(message);
+        TextCommand command = key == null ? null : textCommands.get(key);
+        if (command == null) {
+            unknown.record(0);
+            return false;
+        }
+        long t0 = System.nanoTime();
+        try {
+            command.handle(client, message);
+        } finally {
+            textStats.get(key).record(System.nanoTime() - t0);
+        }
+        return true;
+    }
+
+    boolean dispatch(ClientHandler client, int op, BinaryProtocol.Decoder d) throws ProtocolException {
+        BinaryCommand command = binaryCommands[op];
+        if (command == null) {
+            unknown.record(0);
+            return false;
+        }
+        long t0 = System.nanoTime();
+        try {
+            command.handle(client, d);
+        } finally {
+            binaryStats[op].record(System.nanoTime() - t0);
+        }
+        return true;
+    }
+
+    /** 行首到第一个分隔符（含）；没有分隔符时为整行；过长返回 null */
+    static String keyOf(String message) {
+        int n = Math.min(message.length(), MAX_KEY_LENGTH + 1);
+        for (int i = 0; i < n; i++) {
+            char c = message.charAt(i);
+            if (c == ':' || c == '|' || c == ' ') return message.substring(0, i + 1);
+        }
+        return message.length() <= MAX_KEY_LENGTH ? message : null;
+    }
+
+    /* =============================================================
+       统计
+       ============================================================= */
+    /** 按累计耗时从高到低 */
+    List<Stats> snapshot() {
+        List<Stats> out = new ArrayList<>(statsByName.values());
+        out.sort((a, b) -> Long.compare(b.totalNanos(), a.totalNanos()));
+        return out;
+    }
+
+    void startReporter(int intervalSeconds) {
+        if (intervalSeconds <= 0 || reporter != null) return;
+        reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "command-stats");
+            t.setDaemon(true);
+            return t;
+        });
+        reporter.scheduleWithFixedDelay(this::report, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /** 自上次以来没有新命令就不打印 */
+    private void report() {
+        List<Stats> all = snapshot();
+        long total = 0;
+        for (Stats s : all) total += s.count();
+        if (total == lastReportedCount) return;
+        lastReportedCount = total;
+
+        StringBuilder sb = new StringBuilder("命令统计（累计）:").append(System.lineSeparator());
+        sb.append(String.format("  %-24s %10s %12s %10s %10s%n", "命令", "次数", "总耗时ms", "平均us", "最大us"));
+        for (Stats s : all) {
+            long c = s.count();
+            if (c == 0) continue;
+            sb.append(String.format("  %-24s %10d %12.1f %10.1f %10.1f%n", s.name, c,
+                    s.totalNanos() / 1e6, s.totalNanos() / 1e3 / c, s.maxNanos() / 1e3));
+        }
+        sb.setLength(sb.length() - System.lineSeparator().length());
+        Log.info(sb.toString());
+    }
+}
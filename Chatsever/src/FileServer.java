@@ -1,44 +1,70 @@
 import java.io.*;
 import java.net.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 
 class FileServer implements Runnable {
     private static final int PORT = 9000;
     private final File ROOT = new File("ServerFiles/Groups");
+    private final ExecutorService workers;                // 与聊天连接共用：平台线程池或虚拟线程
+
+    // 吞吐指标：字节数按块累加，速率由抓取端对计数器求 rate
+    private static final Metrics.Counter UPLOAD_BYTES = Metrics.counter("chat_file_bytes_total",
+            "Bytes transferred by the file server", "direction", "upload");
+    private static final Metrics.Counter DOWNLOAD_BYTES = Metrics.counter("chat_file_bytes_total",
+            "Bytes transferred by the file server", "direction", "download");
+    private static final Metrics.Histogram UPLOAD_TIME = Metrics.latency("chat_file_transfer_seconds",
+            "Duration of one file transfer", "direction", "upload");
+    private static final Metrics.Histogram DOWNLOAD_TIME = Metrics.latency("chat_file_transfer_seconds",
+            "Duration of one file transfer", "direction", "download");
+    private static final AtomicInteger ACTIVE = new AtomicInteger();
+    static {
+        Metrics.gauge("chat_file_transfers_active", "File transfers in progress", ACTIVE::get);
+    }
+
+    FileServer(ExecutorService workers) { this.workers = workers; }
 
     public void run() {
         try (ServerSocket ss = new ServerSocket(PORT)) {
-            System.out.println("FileServer 启动, 端口 9000");
-            while (true) new Worker(ss.accept()).start();
-        } catch (IOException e) { e.printStackTrace(); }
+            Log.info("FileServer 启动, 端口 {}", PORT);
+            while (true) workers.execute(new Worker(ss.accept()));
+        } catch (IOException e) { Log.error("FileServer 错误", e); }
     }
 
-    private class Worker extends Thread {
+    private class Worker implements Runnable {
         private final Socket s;
         Worker(Socket s){ this.s=s; }
 
         public void run() {
+            long t0 = System.nanoTime();
+            boolean upload = false;
+            ACTIVE.incrementAndGet();
             try (DataInputStream in = new DataInputStream(s.getInputStream());
                  DataOutputStream out= new DataOutputStream(s.getOutputStream())) {
 
                 String head = in.readUTF();                  // UPLOAD gid name size | DOWNLOAD gid name
                 String[] p = head.split(" ");
                 if ("UPLOAD".equals(p[0])) {
+                    upload = true;
                     String gid=p[1], name=p[2]; long len=Long.parseLong(p[3]);
                     File dir = new File(ROOT,gid); dir.mkdirs();
                     try(FileOutputStream fos=new FileOutputStream(new File(dir,name))) {
                         byte[] buf=new byte[8192]; long r=0;
-                        while(r<len){ int n=in.read(buf); fos.write(buf,0,n); r+=n; }
+                        while(r<len){ int n=in.read(buf); fos.write(buf,0,n); r+=n; UPLOAD_BYTES.add(n); }
                     }
                 } else {                                    // DOWNLOAD
                     File f = new File(new File(ROOT,p[1]), p[2]);
                     out.writeLong(f.length());
                     try(FileInputStream fis=new FileInputStream(f)){
                         byte[] buf=new byte[8192]; int n;
-                        while((n=fis.read(buf))!=-1) out.write(buf,0,n);
+                        while((n=fis.read(buf))!=-1) { out.write(buf,0,n); DOWNLOAD_BYTES.add(n); }
                     }
                 }
-            } catch(IOException ignore){}
+            } catch(IOException ignore){
+            } finally {
+                ACTIVE.decrementAndGet();
+                (upload ? UPLOAD_TIME : DOWNLOAD_TIME).recordSince(t0);
+            }
         }
     }
 }
-
@@ -0,0 +1,239 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+
+/**
+ * 一条已编码好的下行消息，创建后不可修改
+ * 群发时只编码一次，同一个 byte[] 交给每个收件人的发送队列；
+ * 写出时各连接各自 ByteBuffer.wrap，互不影响读位置。
+ * 慢消费者策略需要的消息类别也在这里算好，不必每个收件人再判断一次。
+ *
+ * 同一帧有两种编码：文本行 bytes 创建时就编好；二进制编码（见 BinaryProtocol）
+ * 由第一个协商了二进制的连接写出时生成，之后同样共用。写线程按连接当前的协议取其中一种。
+ * MSG / GROUP_MSG 的文本行另有一份不带序号的旧格式（legacy），给没发过 USERLIST_SYNC 的旧客户端，
+ * 旧客户端会把序号当成内容显示出来；见 text(boolean)。
+ *
+ * 链路追踪：实时转发的 MSG / GROUP_MSG 帧带上服务器收到命令、开始投递的时间（traced）。
+ * 写线程写出时记录排队耗时；连接发过 TRACE|1 的，紧跟着再写一行
+ *   TRACE|序号|收到时间|投递时间|写出时间      （均为 Unix 纪元微秒）
+ * 时间戳不进共用的编码，群发时各收件人的写出时间各不相同，也不影响不追踪的客户端。
+ */
+final class Frame {
+    /** 二进制协商的应答：写线程写出这一帧之后，该连接的后续帧都按二进制写出 */
+    static final Frame BINARY_ACK = of(BinaryProtocol.HELLO_OK);
+
+    private static final Metrics.Histogram HANDLING = Metrics.latency("chat_message_handling_seconds",
+            "From reading a chat command to handing its frame to the recipients (includes persistence)");
+    private static final Metrics.Histogram QUEUED = Metrics.latency("chat_message_queue_seconds",
+            "From handing a chat frame to a recipient to writing it to the socket");
+    // System.nanoTime() 换算成纪元微秒的基准：精度高，且不受系统时间调整影响
+    private static final long BASE_NANOS = System.nanoTime();
+    private static final long BASE_EPOCH_MICROS = ChronoUnit.MICROS.between(Instant.EPOCH, Instant.now());
+
+    final String text;                 // 文本协议的一行，不含行尾（内容里的换行已换成空格）
+    final byte[] bytes;                // 文本协议编码（UTF-8，含行尾）
+    private final byte[] legacy;       // 旧客户端的文本编码（不带序号）；与 bytes 相同时为 null
+    final boolean presence;
+    final boolean chat;
+
+    private final int op;              // 二进制操作码
+    private final Object[] fields;     // 二进制字段：String 或 Long
+    private final List<Frame> parts;   // 合并帧的各组成部分，普通帧为 null
+    private volatile byte[] binary;
+
+    // 追踪信息在入队之前写好，之后只读（入队的锁保证写线程看得到）
+    private boolean traced;
+    private Runnable written;          // 写到连接上之后执行（离线补发的一段据此删除暂存），见 whenWritten
+    private long seq;
+    private long receivedNanos;
+    private long dispatchedNanos;
+
+    private Frame(String text, String legacyText, int op, Object[] fields) {
+        this.text = oneLine(text);
+        this.bytes = (this.text + "\n").getBytes(StandardCharsets.UTF_8);
+        this.legacy = legacyText == null ? null : (oneLine(legacyText) + "\n").getBytes(StandardCharsets.UTF_8);
+        this.presence = SlowConsumerPolicy.isPresence(text);
+        this.chat = SlowConsumerPolicy.isChat(text);
+        this.op = op;
+        this.fields = fields;
+        this.parts = null;
+    }
+
+    private Frame(List<Frame> parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream legacyOut = null;
+        for (Frame f : parts) {
+            out.write(f.bytes, 0, f.bytes.length);
+            if (f.legacy != null && legacyOut == null) legacyOut = new ByteArrayOutputStream();
+        }
+        if (legacyOut != null) {
+            for (Frame f : parts) {
+                byte[] b = f.text(false);
+                legacyOut.write(b, 0, b.length);
+            }
+        }
+        this.text = "";
+        this.bytes = out.toByteArray();
+        this.legacy = legacyOut == null ? null : legacyOut.toByteArray();
+        this.presence = false;
+        this.chat = false;
+        this.op = -1;
+        this.fields = null;
+        this.parts = parts;
+    }
+
+    static Frame of(String text) {
+        return new Frame(text, null, BinaryProtocol.OP_SERVER_TEXT, new Object[]{text});
+    }
+
+    /** 私聊消息 MSG:发送者:接收者:序号:内容（旧客户端 MSG:发送者:接收者:内容） */
+    static Frame message(String sender, String recipient, long seq, String content) {
+        return new Frame("MSG:" + sender + ":" + recipient + ":" + seq + ":" + content,
+                "MSG:" + sender + ":" + recipient + ":" + content,
+                BinaryProtocol.OP_MSG, new Object[]{sender, recipient, seq, content});
+    }
+
+    /** 群聊消息 GROUP_MSG|发送者|群ID|群名|序号|内容（旧客户端 GROUP_MSG|发送者|群ID|群名|内容） */
+    static Frame groupMessage(String sender, String groupId, String groupName, long seq, String content) {
+        return new Frame("GROUP_MSG|" + sender + "|" + groupId + "|" + groupName + "|" + seq + "|" + content,
+                "GROUP_MSG|" + sender + "|" + groupId + "|" + groupName + "|" + content,
+                BinaryProtocol.OP_GROUP_MSG, new Object[]{sender, groupId, groupName, seq, content});
+    }
+
+    /** 发送方的入库确认 MSG_ACK:接收者:序号 */
+    static Frame ack(String recipient, long seq) {
+        return new Frame("MSG_ACK:" + recipient + ":" + seq, null,
+                BinaryProtocol.OP_MSG_ACK, new Object[]{recipient, seq});
+    }
+
+    /** 多帧合并成一帧入队（历史同步、离线补发），只占一个队列位置、一次写出 */
+    static Frame batch(List<Frame> parts) {
+        return new Frame(parts);
+    }
+
+    /**
+     * 标记为需要追踪的聊天帧，在交给任何收件人之前调用
+     * @param receivedNanos 服务器读到该命令时的 System.nanoTime()
+     */
+    Frame traced(long seq, long receivedNanos) {
+        this.seq = seq;
+        this.receivedNanos = receivedNanos;
+        this.dispatchedNanos = System.nanoTime();
+        this.traced = true;
+        HANDLING.record(dispatchedNanos - receivedNanos);
+        return this;
+    }
+
+    /**
+     * 设置写出后的回调，在入队之前调用；只用于发给单个连接的帧。
+     * 阻塞模式在 flush 之后、NIO 模式在整批写进内核之后执行，都不在 Reactor 线程上；连接先断开则不执行
+     */
+    Frame whenWritten(Runnable action) {
+        this.written = action;
+        return this;
+    }
+
+    Runnable written() {
+        return written;
+    }
+
+    /* =============================================================
+       离线暂存的记录：MSG / GROUP_MSG 保存原始字段，其他帧保存原文，字段转义同 chat.journal。
+       不用 text：text 里的换行已被换掉，二进制收件人取回时会丢失
+       ============================================================= */
+    String spoolRecord() {
+        StringBuilder sb;
+        if (op == BinaryProtocol.OP_MSG || op == BinaryProtocol.OP_GROUP_MSG) {
+            sb = new StringBuilder(op == BinaryProtocol.OP_MSG ? "MSG" : "GROUP_MSG");
+            for (Object field : fields) sb.append('\t').append(PersistenceJournal.escape(String.valueOf(field)));
+        } else {
+            String raw = op == BinaryProtocol.OP_SERVER_TEXT ? (String) fields[0] : text;
+            sb = new StringBuilder("TEXT\t").append(PersistenceJournal.escape(raw));
+        }
+        return sb.toString();
+    }
+
+    /** 还原 spoolRecord 写下的一行；认不出的（旧版本直接写入的文本行）按原文发送 */
+    static Frame fromSpoolRecord(String record) {
+        String[] f = record.split("\t", -1);
+        for (int i = 1; i < f.length; i++) f[i] = PersistenceJournal.unescape(f[i]);
+        try {
+            switch (f[0]) {
+                case "MSG":
+                    if (f.length == 5) return message(f[1], f[2], Long.parseLong(f[3]), f[4]);
+                    break;
+                case "GROUP_MSG":
+                    if (f.length == 6) return groupMessage(f[1], f[2], f[3], Long.parseLong(f[4]), f[5]);
+                    break;
+                case "TEXT":
+                    if (f.length == 2) return of(f[1]);
+                    break;
+                default:
+                    break;
+            }
+        } catch (NumberFormatException e) {
+            // 按原文发送
+        }
+        return of(record);
+    }
+
+    /**
+     * 写线程写出本帧时调用：记录排队耗时
+     * @param trace 该连接是否要求追踪
+     * @return 紧跟本帧写出的 TRACE 行（按连接当前的协议编码）；不需要时为 null
+     */
+    byte[] onWrite(boolean trace, boolean binaryOut) {
+        if (!traced) return null;
+        long now = System.nanoTime();
+        QUEUED.record(now - dispatchedNanos);
+        if (!trace) return null;
+        String line = "TRACE|" + seq + "|" + epochMicros(receivedNanos) + "|" + epochMicros(dispatchedNanos)
+                + "|" + epochMicros(now);
+        return binaryOut ? new BinaryProtocol.Encoder(BinaryProtocol.OP_SERVER_TEXT).string(line).frame()
+                : (line + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static long epochMicros(long nanos) {
+        return BASE_EPOCH_MICROS + (nanos - BASE_NANOS) / 1000;
+    }
+
+    /**
+     * 文本协议编码
+     * @param withSeq 对方是否认识序号（见 ClientHandler.isDeltaClient）；否则 MSG / GROUP_MSG 按旧格式
+     */
+    byte[] text(boolean withSeq) {
+        return withSeq || legacy == null ? bytes : legacy;
+    }
+
+    /** 二进制编码，第一次用到时生成；并发生成的结果相同，谁覆盖谁都无妨 */
+    byte[] binary() {
+        byte[] b = binary;
+        if (b == null) binary = b = encodeBinary();
+        return b;
+    }
+
+    private byte[] encodeBinary() {
+        if (parts != null) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (Frame f : parts) {
+                byte[] b = f.binary();
+                out.write(b, 0, b.length);
+            }
+            return out.toByteArray();
+        }
+        BinaryProtocol.Encoder e = new BinaryProtocol.Encoder(op);
+        for (Object field : fields) {
+            if (field instanceof Long) e.varint((Long) field);
+            else e.string((String) field);
+        }
+        return e.frame();
+    }
+
+    /** 文本协议按行分帧：二进制客户端发来的内容可能带换行，给文本客户端时换成空格 */
+    private static String oneLine(String s) {
+        if (s.indexOf('\n') < 0 && s.indexOf('\r') < 0) return s;
+        return s.replace('\r', ' ').replace('\n', ' ');
+    }
+}
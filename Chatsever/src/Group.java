@@ -1,16 +1,25 @@
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Group {
     private String id; // 群聊的唯一ID
     private String groupName; // 群聊名称
     private String creatorUsername; // 创建者用户名
-    private List<String> members; // 成员用户名列表
+    /*
+     * 成员集合采用写时复制：每次增删成员生成一个新的不可变快照再整体替换。
+     * 判断成员 O(1)；群发时直接遍历当前快照，既不用复制，也不会被并发加人打断。
+     */
+    private volatile Set<String> members; // 成员用户名集合（保持加入顺序）
+    private final ReentrantLock memberLock = new ReentrantLock();
 
-    // 存储所有群组的列表
-    public static List<Group> groupList = new ArrayList<>();
+    // 所有群组，按 ID / 群名索引
+    public static final GroupRegistry registry = new GroupRegistry();
 
 
     /**
@@ -24,36 +33,56 @@ public class Group {
         this.id = id;
         this.groupName = groupName;
         this.creatorUsername = creatorUsername;
-        this.members = new ArrayList<>();
+        Set<String> initial = new LinkedHashSet<>();
 
         // 确保创建者在成员列表中
-        if (!members.contains(creatorUsername)) {
-            members.add(creatorUsername);
-        }
+        initial.add(creatorUsername);
 
         // 添加其他成员
         for (String member : memberArray) {
-            if (!members.contains(member) && !member.isEmpty()) {
-                members.add(member);
+            if (!member.isEmpty()) {
+                initial.add(member);
             }
         }
+        this.members = Collections.unmodifiableSet(initial);
     }
 
     // Getters
     public String getId() { return id; }
     public String getGroupName() { return groupName; }
     public String getCreatorUsername() { return creatorUsername; }
-    public List<String> getMembers() { return new ArrayList<>(members); }
+    /** 当前成员快照（只读，不复制），遍历期间不受并发增删影响 */
+    public Set<String> getMembers() { return members; }
+
+    public int getMemberCount() { return members.size(); }
 
-    // 成员管理方法
-    public void addMember(String username) {
-        if (!members.contains(username)) {
-            members.add(username);
+    // 成员管理方法，返回集合是否发生变化
+    public boolean addMember(String username) {
+        memberLock.lock();
+        try {
+            if (members.contains(username)) return false;
+            Set<String> next = new LinkedHashSet<>(members);
+            next.add(username);
+            members = Collections.unmodifiableSet(next);
+            registry.memberAdded(this, username);
+            return true;
+        } finally {
+            memberLock.unlock();
         }
     }
 
     public boolean removeMember(String username) {
-        return members.remove(username);
+        memberLock.lock();
+        try {
+            if (!members.contains(username)) return false;
+            Set<String> next = new LinkedHashSet<>(members);
+            next.remove(username);
+            members = Collections.unmodifiableSet(next);
+            registry.memberRemoved(this, username);
+            return true;
+        } finally {
+            memberLock.unlock();
+        }
     }
 
     public boolean isMember(String username) {
@@ -74,7 +103,7 @@ public class Group {
 
             // 写入文件
             try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
-                for (Group group : groupList) {
+                for (Group group : registry.values()) {
                     // 格式: ID,群名,创建者,成员1,成员2,...
                     StringBuilder line = new StringBuilder();
                     line.append(group.id).append(",")
@@ -89,21 +118,20 @@ public class Group {
                     writer.write(line.toString());
                     writer.newLine();
                 }
-                System.out.println("群组数据已保存到: " + fileName);
+                Log.info("群组数据已保存到: {}", fileName);
             }
         } catch (IOException e) {
-            System.err.println("保存群组数据失败: " + e.getMessage());
-            e.printStackTrace();
+            Log.error("保存群组数据失败: " + e.getMessage(), e);
         }
     }
 
     // 从文件加载所有群组
     public static void loadGroupsFromFile(String fileName) {
-        groupList.clear(); // 清空现有列表
+        registry.clear(); // 清空现有列表
 
         File file = new File(fileName);
         if (!file.exists()) {
-            System.out.println("群组文件不存在，将创建新文件: " + fileName);
+            Log.info("群组文件不存在，将创建新文件: {}", fileName);
             saveGroupsToFile(fileName); // 创建一个空文件
             return;
         }
@@ -126,44 +154,35 @@ public class Group {
                     }
 
                     Group group = new Group(id, groupName, creatorName, members);
-                    groupList.add(group);
+                    registry.add(group);
                 }
             }
-            System.out.println("已从文件加载 " + groupList.size() + " 个群聊");
+            Log.info("已从文件加载 {} 个群聊", registry.size());
         } catch (IOException e) {
-            System.err.println("加载群组数据失败: " + e.getMessage());
-            e.printStackTrace();
+            Log.error("加载群组数据失败: " + e.getMessage(), e);
         }
     }
 
     // 根据ID查找群组
     public static Group findGroupById(String groupId) {
-        for (Group group : groupList) {
-            if (group.getId().equals(groupId)) {
-                return group;
-            }
-        }
-        return null;
+        return registry.findById(groupId);
     }
 
     // 根据名称查找群组
     public static Group findGroupByName(String groupName) {
-        for (Group group : groupList) {
-            if (group.getGroupName().equals(groupName)) {
-                return group;
-            }
-        }
-        return null;
+        return registry.findByName(groupName);
     }
 
     // 获取所有群组
     public static List<Group> getAllGroups() {
-        return new ArrayList<>(groupList);
+        List<Group> all = new ArrayList<>();
+        for (Group g : registry.values()) all.add(g);
+        return all;
     }
 
-    // 添加群组到列表
-    public static void addGroup(Group group) {
-        groupList.add(group);
+    // 添加群组；群 ID 已存在时返回 false
+    public static boolean addGroup(Group group) {
+        return registry.add(group);
     }
 
     @Override
@@ -0,0 +1,75 @@
+import java.util.Collections;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 服务器端群组注册表（替代原来的 Group.groupList 线性扫描）
+ * 按群 ID 和群名分别建哈希索引，查找 O(1)，可被多个连接线程并发读写。
+ * 群名不保证唯一，按名查找返回最早创建的同名群，与原来线性扫描的结果一致。
+ * 另按成员建反向索引（用户名 -> 所在的群），查某人所在的群不必遍历全部群。
+ */
+public class GroupRegistry {
+    private final ConcurrentHashMap<String, Group> byId = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Group> byName = new ConcurrentHashMap<>();
+    private final Queue<Group> inOrder = new ConcurrentLinkedQueue<>();
+    private final ConcurrentHashMap<String, Set<Group>> byMember = new ConcurrentHashMap<>();
+
+    /** 加入新群；群 ID 已存在时返回 false */
+    public boolean add(Group g) {
+        if (byId.putIfAbsent(g.getId(), g) != null) return false;
+        byName.putIfAbsent(g.getGroupName(), g);
+        inOrder.add(g);
+        // 先登记群再读成员快照：之后并发加入的成员由 memberAdded 补上
+        for (String m : g.getMembers()) memberAdded(g, m);
+        return true;
+    }
+
+    /** Group 成员变化时回调；未登记的群（还在构造中）忽略 */
+    void memberAdded(Group g, String username) {
+        if (byId.get(g.getId()) != g) return;
+        byMember.compute(username, (k, set) -> {
+            if (set == null) set = ConcurrentHashMap.newKeySet();
+            set.add(g);
+            return set;
+        });
+    }
+
+    void memberRemoved(Group g, String username) {
+        byMember.computeIfPresent(username, (k, set) -> {
+            set.remove(g);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    /** username 所在的全部群（弱一致视图） */
+    public Set<Group> groupsOf(String username) {
+        Set<Group> set = username == null ? null : byMember.get(username);
+        return set == null ? Collections.emptySet() : Collections.unmodifiableSet(set);
+    }
+
+    public Group findById(String id) {
+        return id == null ? null : byId.get(id);
+    }
+
+    public Group findByName(String name) {
+        return name == null ? null : byName.get(name);
+    }
+
+    /** 按创建顺序遍历（弱一致） */
+    public Iterable<Group> values() {
+        return inOrder;
+    }
+
+    public int size() {
+        return byId.size();
+    }
+
+    public void clear() {
+        byId.clear();
+        byName.clear();
+        inOrder.clear();
+        byMember.clear();
+    }
+}
@@ -0,0 +1,236 @@
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 服务器日志（替代各处直接 System.out / System.err.println）
+ *
+ * System.out 是同步的，原来每条收发消息都要打印几行，高负载时所有连接线程都排队等 stdout。现在：
+ *   - 按级别过滤：低于 --log.level（debug / info / warn / error，默认 info）的调用只做一次比较就返回，
+ *     不拼字符串。参数用 {} 占位，分别传入，例如 Log.debug("转发 {} -> {}", sender, recipient)
+ *   - 异步写出：调用方只把模板和参数放进预先分配好的环形缓冲区（--log.buffer 条，默认 8192），
+ *     由 log-writer 线程拼接成行、成批写出；缓冲区满时丢弃新日志并计数，不阻塞调用方
+ *   - warn / error 写到 System.err，其余写到 System.out，与原来一致
+ * JVM 退出时把缓冲区里剩下的写完。
+ */
+public final class Log {
+
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    /** 环形缓冲区的一格，预先分配，反复使用 */
+    private static final class Entry {
+        Level level;
+        long time;
+        String thread;
+        String template;
+        Object a, b, c;
+        int args;
+        Throwable error;
+    }
+
+    private static volatile Level threshold = Level.INFO;
+    private static final ReentrantLock lock = new ReentrantLock();
+    private static final Condition notEmpty = lock.newCondition();
+    private static Entry[] ring = newRing(8192);
+    private static long head;                   // 下一条要写出的位置
+    private static long tail;                   // 下一条要放入的位置
+    private static boolean writerWaiting;
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final PrintStream out = System.out;
+    private static final PrintStream err = System.err;
+    private static final Entry[] batch = newRing(256);        // 只在 drain 内使用
+
+    static {
+        Thread writer = new Thread(Log::writeLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::drain, "log-flush"));
+    }
+
+    private Log() {
+    }
+
+    /** 读取 --log.level / --log.buffer；启动时调用一次 */
+    public static void configure(ServerConfig config) {
+        try {
+            threshold = Level.valueOf(config.get("log.level", "info").trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            warn("未知的日志级别 {}，使用 INFO", config.get("log.level", ""));
+            threshold = Level.INFO;
+        }
+        int capacity = Math.max(64, config.getInt("log.buffer", 8192));
+        lock.lock();
+        try {
+            if (capacity != ring.length && head == tail) ring = newRing(capacity);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(threshold) >= 0;
+    }
+
+    public static boolean isDebugEnabled() {
+        return threshold == Level.DEBUG;
+    }
+
+    /** 因缓冲区满被丢弃的日志条数 */
+    public static long getDropped() {
+        return dropped.get();
+    }
+
+    /* =============================================================
+       记录：固定参数个数的重载，避免可变参数在关闭时也分配数组
+       ============================================================= */
+    public static void debug(String msg) { log(Level.DEBUG, msg, 0, null, null, null, null); }
+    public static void debug(String msg, Object a) { log(Level.DEBUG, msg, 1, a, null, null, null); }
+    public static void debug(String msg, Object a, Object b) { log(Level.DEBUG, msg, 2, a, b, null, null); }
+    public static void debug(String msg, Object a, Object b, Object c) { log(Level.DEBUG, msg, 3, a, b, c, null); }
+
+    public static void info(String msg) { log(Level.INFO, msg, 0, null, null, null, null); }
+    public static void info(String msg, Object a) { log(Level.INFO, msg, 1, a, null, null, null); }
+    public static void info(String msg, Object a, Object b) { log(Level.INFO, msg, 2, a, b, null, null); }
+    public static void info(String msg, Object a, Object b, Object c) { log(Level.INFO, msg, 3, a, b, c, null); }
+
+    public static void warn(String msg) { log(Level.WARN, msg, 0, null, null, null, null); }
+    public static void warn(String msg, Object a) { log(Level.WARN, msg, 1, a, null, null, null); }
+    public static void warn(String msg, Object a, Object b) { log(Level.WARN, msg, 2, a, b, null, null); }
+    public static void warn(String msg, Object a, Object b, Object c) { log(Level.WARN, msg, 3, a, b, c, null); }
+    public static void warn(String msg, Throwable t) { log(Level.WARN, msg, 0, null, null, null, t); }
+
+    public static void error(String msg) { log(Level.ERROR, msg, 0, null, null, null, null); }
+    public static void error(String msg, Object a) { log(Level.ERROR, msg, 1, a, null, null, null); }
+    public static void error(String msg, Object a, Object b) { log(Level.ERROR, msg, 2, a, b, null, null); }
+    public static void error(String msg, Throwable t) { log(Level.ERROR, msg, 0, null, null, null, t); }
+
+    private static void log(Level level, String template, int args, Object a, Object b, Object c, Throwable t) {
+        if (level.compareTo(threshold) < 0) return;
+        long now = System.currentTimeMillis();
+        String thread = Thread.currentThread().getName();
+        lock.lock();
+        try {
+            if (tail - head >= ring.length) {
+                dropped.incrementAndGet();
+                return;
+            }
+            Entry e = ring[(int) (tail++ % ring.length)];
+            e.level = level;
+            e.time = now;
+            e.thread = thread;
+            e.template = template;
+            e.args = args;
+            e.a = a;
+            e.b = b;
+            e.c = c;
+            e.error = t;
+            if (writerWaiting) notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* =============================================================
+       写出：log-writer 线程
+       ============================================================= */
+    private static void writeLoop() {
+        while (true) {
+            lock.lock();
+            try {
+                while (head == tail) {
+                    writerWaiting = true;
+                    try {
+                        notEmpty.await(200, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        return;
+                    } finally {
+                        writerWaiting = false;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            drain();
+        }
+    }
+
+    /** 把当前积压全部写出；每次在锁内取一批格子拷出来，锁外拼接 */
+    private static synchronized void drain() {
+        while (true) {
+            int n = 0;
+            lock.lock();
+            try {
+                while (head < tail && n < batch.length) {
+                    Entry src = ring[(int) (head % ring.length)];
+                    Entry dst = batch[n++];
+                    dst.level = src.level;
+                    dst.time = src.time;
+                    dst.thread = src.thread;
+                    dst.template = src.template;
+                    dst.args = src.args;
+                    dst.a = src.a;
+                    dst.b = src.b;
+                    dst.c = src.c;
+                    dst.error = src.error;
+                    src.a = src.b = src.c = null;            // 不让缓冲区拖住大对象
+                    src.error = null;
+                    head++;
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (n == 0) break;
+
+            StringBuilder normal = new StringBuilder();
+            StringBuilder problems = new StringBuilder();
+            for (int i = 0; i < n; i++) {
+                Entry e = batch[i];
+                StringBuilder sb = e.level.compareTo(Level.WARN) >= 0 ? problems : normal;
+                sb.append(TIME.format(Instant.ofEpochMilli(e.time))).append(' ')
+                        .append(e.level).append(" [").append(e.thread).append("] ");
+                format(sb, e.template, e.args, e.a, e.b, e.c);
+                sb.append(System.lineSeparator());
+                if (e.error != null) {
+                    java.io.StringWriter trace = new java.io.StringWriter();
+                    e.error.printStackTrace(new java.io.PrintWriter(trace));
+                    sb.append(trace);
+                }
+                e.a = e.b = e.c = null;
+                e.error = null;
+            }
+            if (normal.length() > 0) {
+                out.print(normal);
+                out.flush();
+            }
+            if (problems.length() > 0) {
+                err.print(problems);
+                err.flush();
+            }
+        }
+    }
+
+    /** 依次用参数替换模板里的 {} */
+    private static void format(StringBuilder sb, String template, int args, Object a, Object b, Object c) {
+        int from = 0;
+        for (int i = 0; i < args; i++) {
+            int at = template.indexOf("{}", from);
+            if (at < 0) break;
+            sb.append(template, from, at).append(i == 0 ? a : i == 1 ? b : c);
+            from = at + 2;
+        }
+        sb.append(template, from, template.length());
+    }
+
+    private static Entry[] newRing(int capacity) {
+        Entry[] r = new Entry[capacity];
+        for (int i = 0; i < capacity; i++) r[i] = new Entry();
+        return r;
+    }
+}
@@ -0,0 +1,472 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+
+/**
+ * 服务器端消息存储（历史记录原来只在客户端 ~/ChatLogs 里）
+ *
+ * 每个会话（私聊双方 / 一个群）有自己的递增序号，从 1 开始，下发的 MSG: / GROUP_MSG| 都带上这个序号。
+ * 会话 ID：私聊 "P:" + 两个用户名按字典序用 ':' 连接，群聊 "G:" + 群ID。
+ *
+ * 磁盘布局（--store.dir，默认 data.dir/messages）：
+ *   <会话目录>/<起始序号>.log   每行一条：序号 \t 时间戳 \t 发送者 \t 内容（字段转义同 chat.journal）
+ *   <会话目录>/<起始序号>.idx   稀疏索引：每写出约 --store.index.interval.bytes 字节记一项 (序号, 文件偏移)，各 8 字节
+ * 段文件超过 --store.segment.bytes 后换新段。按序号读取时先二分找段，再二分找索引项，
+ * 从该偏移往后顺序扫描，最多多读一个索引间隔。
+ *
+ * 会话状态在第一次访问时才从磁盘加载，启动时不扫描整个目录。
+ * 写入时最后一段的 .log / .idx 保持打开，不再每条消息开关一次文件；
+ * 同时打开的会话不超过 --store.open.conversations 个（默认 512），最久没写的先关闭，下次写入时再打开。
+ * 内存中的会话（段列表、索引）不超过 --store.cached.conversations 个（默认 10000），最久没访问的整个丢掉，
+ * 下次访问时重新从磁盘加载（最大序号由 recoverTail 从最后一段的索引往后扫出来）。
+ * 丢掉的会话在其锁内标记 evicted；拿到锁后发现已被丢掉的，重新从表里取（见 lock），同一会话不会出现两份状态。
+ * 同一会话的写入和读取由该会话的锁串行化，不同会话互不影响。
+ */
+public class MessageStore {
+
+    private static final String LOG = ".log";
+    private static final String IDX = ".idx";
+
+    private final Path root;
+    private final long segmentBytes;
+    private final int indexIntervalBytes;
+    private final int maxOpen;
+    private final int maxCached;
+    private final ConcurrentHashMap<String, Conversation> conversations = new ConcurrentHashMap<>();
+
+    // 最后一段文件处于打开状态的会话，按最近写入排序；内存中的全部会话，按最近访问排序
+    // 两者都由 openLock 保护；持有 openLock 时只 tryLock 会话锁，不会与持有会话锁的线程互等
+    private final LinkedHashMap<Conversation, Boolean> openConversations = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Conversation, Boolean> cachedConversations = new LinkedHashMap<>(16, 0.75f, true);
+    private final ReentrantLock openLock = new ReentrantLock();
+    private static final Metrics.Histogram WRITE_LATENCY = Metrics.latency("chat_persistence_write_seconds",
+            "Time to append one record to a persistent store, including lock wait", "store", "messages");
+
+    /** 读出的一条历史消息 */
+    public static final class StoredMessage {
+        public final long seq;
+        public final long timestamp;
+        public final String sender;
+        public final String content;
+
+        StoredMessage(long seq, long timestamp, String sender, String content) {
+            this.seq = seq;
+            this.timestamp = timestamp;
+            this.sender = sender;
+            this.content = content;
+        }
+    }
+
+    private static final class Conversation {
+        final String id;
+        final ReentrantLock lock = new ReentrantLock();
+        final List<Segment> segments = new ArrayList<>();   // 按起始序号升序
+        boolean loaded;
+        volatile boolean evicted;                           // 已从 conversations 移除，不能再用
+        long lastSeq;
+
+        Conversation(String id) {
+            this.id = id;
+        }
+
+        /** 关闭最后一段的文件（调用方持有会话锁） */
+        void closeFiles() {
+            if (!segments.isEmpty()) segments.get(segments.size() - 1).closeFiles();
+        }
+    }
+
+    private static final class Segment {
+        final long baseSeq;
+        final Path log;
+        final Path idx;
+        long size;                                  // 当前文件长度
+        long lastIndexed;                           // 上一个索引项的偏移
+        long[] idxSeq = new long[8];
+        long[] idxPos = new long[8];
+        int idxCount;
+        FileChannel logChannel;                     // 追加用，只有最后一段会打开
+        FileChannel idxChannel;
+
+        Segment(Path dir, long baseSeq) {
+            this.baseSeq = baseSeq;
+            String name = String.format("%020d", baseSeq);
+            this.log = dir.resolve(name + LOG);
+            this.idx = dir.resolve(name + IDX);
+        }
+
+        void addIndex(long seq, long pos) {
+            if (idxCount == idxSeq.length) {
+                idxSeq = Arrays.copyOf(idxSeq, idxCount * 2);
+                idxPos = Arrays.copyOf(idxPos, idxCount * 2);
+            }
+            idxSeq[idxCount] = seq;
+            idxPos[idxCount] = pos;
+            idxCount++;
+            lastIndexed = pos;
+        }
+
+        void openFiles() throws IOException {
+            if (logChannel == null) logChannel = openAppend(log);
+            if (idxChannel == null) idxChannel = openAppend(idx);
+        }
+
+        void closeFiles() {
+            closeQuietly(logChannel);
+            closeQuietly(idxChannel);
+            logChannel = null;
+            idxChannel = null;
+        }
+
+        /** 不晚于 seq 的最后一个索引项对应的偏移 */
+        long floorPosition(long seq) {
+            int lo = 0, hi = idxCount - 1, found = -1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (idxSeq[mid] <= seq) { found = mid; lo = mid + 1; }
+                else hi = mid - 1;
+            }
+            return found < 0 ? 0 : idxPos[found];
+        }
+    }
+
+    public MessageStore(ServerConfig config) {
+        this.root = Paths.get(config.get("store.dir", Paths.get(config.get("data.dir", "."), "messages").toString()));
+        this.segmentBytes = Math.max(4096, config.getInt("store.segment.bytes", 8 * 1024 * 1024));
+        this.indexIntervalBytes = Math.max(256, config.getInt("store.index.interval.bytes", 4096));
+        this.maxOpen = Math.max(1, config.getInt("store.open.conversations", 512));
+        this.maxCached = Math.max(this.maxOpen, config.getInt("store.cached.conversations", 10000));
+    }
+
+    /* =============================================================
+       会话 ID
+       ============================================================= */
+    public static String privateConversation(String a, String b) {
+        return a.compareTo(b) <= 0 ? "P:" + a + ":" + b : "P:" + b + ":" + a;
+    }
+
+    public static String groupConversation(String groupId) {
+        return "G:" + groupId;
+    }
+
+    /** 列出磁盘上已有的全部私聊会话（只看目录名，不加载会话），用于重建联系人关系 */
+    public void forEachPrivateConversation(BiConsumer<String, String> action) {
+        if (!Files.isDirectory(root)) return;
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(root)) {
+            for (Path dir : dirs) {
+                String id = URLDecoder.decode(dir.getFileName().toString(), StandardCharsets.UTF_8);
+                if (!id.startsWith("P:")) continue;
+                String[] pair = id.substring(2).split(":", -1);
+                if (pair.length == 2) action.accept(pair[0], pair[1]);
+            }
+        } catch (IOException e) {
+            Log.warn("扫描消息存储目录失败: {}", e.getMessage());
+        }
+    }
+
+    /* =============================================================
+       写入
+       ============================================================= */
+    /**
+     * 追加一条消息并分配序号
+     * @return 该会话中的序号；写盘失败时返回 -1（调用方不投递，回 ERROR 给发送方）
+     */
+    public long append(String conversationId, String sender, String content) {
+        long t0 = System.nanoTime();
+        Conversation c = lock(conversationId);
+        try {
+            ensureLoaded(conversationId, c);
+            long seq = c.lastSeq + 1;
+            byte[] line = (seq + "\t" + System.currentTimeMillis() + "\t"
+                    + PersistenceJournal.escape(sender) + "\t"
+                    + PersistenceJournal.escape(content) + "\n").getBytes(StandardCharsets.UTF_8);
+
+            Segment seg = c.segments.isEmpty() ? null : c.segments.get(c.segments.size() - 1);
+            if (seg == null || seg.size >= segmentBytes) {
+                Path dir = root.resolve(encode(conversationId));
+                Files.createDirectories(dir);
+                if (seg != null) seg.closeFiles();
+                seg = new Segment(dir, seq);
+                c.segments.add(seg);
+            }
+            seg.openFiles();
+            long pos = seg.size;
+            if (seg.idxCount == 0 || pos - seg.lastIndexed >= indexIntervalBytes) {
+                writeIndex(seg, seq, pos);
+            }
+            writeFully(seg.logChannel, ByteBuffer.wrap(line));
+            seg.size += line.length;
+            c.lastSeq = seq;
+            return seq;
+        } catch (IOException e) {
+            Log.warn("写入消息存储失败 ({}): {}", conversationId, e.getMessage());
+            c.closeFiles();                           // 下次写入时重新打开
+            return -1;
+        } finally {
+            c.lock.unlock();
+            touch(c, true);
+            WRITE_LATENCY.recordSince(t0);
+        }
+    }
+
+    private static void writeIndex(Segment seg, long seq, long pos) throws IOException {
+        writeFully(seg.idxChannel, ByteBuffer.allocate(16).putLong(seq).putLong(pos).flip());
+        seg.addIndex(seq, pos);
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) ch.write(buf);
+    }
+
+    /**
+     * 记为最近访问（written 为 true 时同时记为最近写入）；
+     * 打开的会话超过上限时关闭最久没写的，内存中的会话超过上限时丢掉最久没访问的。
+     * 在会话锁之外调用；对方正在用（tryLock 失败）就跳过，放回最近一端。
+     */
+    private void touch(Conversation c, boolean written) {
+        openLock.lock();
+        try {
+            if (c.evicted) return;                    // 刚被别的线程丢掉，不再放回
+            if (written) openConversations.put(c, Boolean.TRUE);
+            cachedConversations.put(c, Boolean.TRUE);
+        } finally {
+            openLock.unlock();
+        }
+        evict(openConversations, maxOpen, false);
+        evict(cachedConversations, maxCached, true);
+    }
+
+    private void evict(LinkedHashMap<Conversation, Boolean> lru, int max, boolean forget) {
+        for (int attempts = 0; attempts < 8; attempts++) {
+            Conversation victim;
+            openLock.lock();
+            try {
+                if (lru.size() <= max) return;
+                Iterator<Conversation> it = lru.keySet().iterator();
+                victim = it.next();
+                it.remove();
+            } finally {
+                openLock.unlock();
+            }
+            if (victim.lock.tryLock()) {
+                try {
+                    victim.closeFiles();
+                    if (forget) {
+                        victim.evicted = true;
+                        conversations.remove(victim.id, victim);
+                    }
+                } finally {
+                    victim.lock.unlock();
+                }
+                if (forget) {
+                    openLock.lock();
+                    try {
+                        openConversations.remove(victim);
+                    } finally {
+                        openLock.unlock();
+                    }
+                }
+            } else {
+                openLock.lock();
+                try {
+                    lru.put(victim, Boolean.TRUE);
+                } finally {
+                    openLock.unlock();
+                }
+            }
+        }
+    }
+
+    /* =============================================================
+       读取
+       ============================================================= */
+    public long lastSeq(String conversationId) {
+        Conversation c = lock(conversationId);
+        try {
+            ensureLoaded(conversationId, c);
+            return c.lastSeq;
+        } catch (IOException e) {
+            Log.warn("读取消息存储失败 ({}): {}", conversationId, e.getMessage());
+            return 0;
+        } finally {
+            c.lock.unlock();
+            touch(c, false);
+        }
+    }
+
+    /**
+     * 读取序号大于 afterSeq 的消息，最多 max 条，按序号升序
+     */
+    public List<StoredMessage> read(String conversationId, long afterSeq, int max) {
+        Conversation c = lock(conversationId);
+        try {
+            ensureLoaded(conversationId, c);
+            if (afterSeq >= c.lastSeq || max <= 0 || c.segments.isEmpty()) return Collections.emptyList();
+
+            long from = afterSeq + 1;
+            int i = floorSegment(c.segments, from);
+            List<StoredMessage> out = new ArrayList<>(Math.min(max, 256));
+            for (; i < c.segments.size() && out.size() < max; i++) {
+                Segment seg = c.segments.get(i);
+                scan(seg, seg.floorPosition(from), from, max, out);
+            }
+            return out;
+        } catch (IOException e) {
+            Log.warn("读取消息存储失败 ({}): {}", conversationId, e.getMessage());
+            return Collections.emptyList();
+        } finally {
+            c.lock.unlock();
+            touch(c, false);
+        }
+    }
+
+    private static int floorSegment(List<Segment> segments, long seq) {
+        int lo = 0, hi = segments.size() - 1, found = 0;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (segments.get(mid).baseSeq <= seq) { found = mid; lo = mid + 1; }
+            else hi = mid - 1;
+        }
+        return found;
+    }
+
+    /** 从 position 开始顺序读取，跳过序号小于 from 的行 */
+    private static void scan(Segment seg, long position, long from, int max, List<StoredMessage> out) throws IOException {
+        try (FileChannel ch = FileChannel.open(seg.log, StandardOpenOption.READ)) {
+            ch.position(position);
+            BufferedReader r = new BufferedReader(new InputStreamReader(Channels.newInputStream(ch), StandardCharsets.UTF_8));
+            String line;
+            while (out.size() < max && (line = r.readLine()) != null) {
+                StoredMessage m = parse(line);
+                if (m != null && m.seq >= from) out.add(m);
+            }
+        }
+    }
+
+    private static StoredMessage parse(String line) {
+        String[] f = line.split("\t", -1);
+        if (f.length != 4) return null;
+        try {
+            return new StoredMessage(Long.parseLong(f[0]), Long.parseLong(f[1]),
+                    PersistenceJournal.unescape(f[2]), PersistenceJournal.unescape(f[3]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /* =============================================================
+       加载（调用方持有会话锁）
+       ============================================================= */
+    private void ensureLoaded(String conversationId, Conversation c) throws IOException {
+        if (c.loaded) return;
+        Path dir = root.resolve(encode(conversationId));
+        if (Files.isDirectory(dir)) {
+            for (Path log : listLogs(dir)) {
+                String n = log.getFileName().toString();
+                long base;
+                try {
+                    base = Long.parseLong(n.substring(0, n.length() - LOG.length()));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                Segment seg = new Segment(dir, base);
+                seg.size = Files.size(log);
+                loadIndex(seg);
+                c.segments.add(seg);
+            }
+            if (!c.segments.isEmpty()) recoverTail(c, c.segments.get(c.segments.size() - 1));
+        }
+        c.loaded = true;
+    }
+
+    private static void loadIndex(Segment seg) throws IOException {
+        if (!Files.exists(seg.idx)) return;
+        ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(seg.idx));
+        while (b.remaining() >= 16) {                 // 崩溃时写了一半的索引项直接忽略
+            long seq = b.getLong(), pos = b.getLong();
+            if (pos <= seg.size) seg.addIndex(seq, pos);
+        }
+    }
+
+    /**
+     * 从最后一段的最后一个索引项往后扫描，得到最大序号；
+     * 进程崩溃留下的半行截掉，保证下一条追加从完整的行开始。
+     */
+    private static void recoverTail(Conversation c, Segment seg) throws IOException {
+        long pos = seg.idxCount == 0 ? 0 : seg.idxPos[seg.idxCount - 1];
+        long lastSeq = seg.baseSeq - 1, validEnd = pos;
+        try (FileChannel ch = FileChannel.open(seg.log, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ch.position(pos);
+            BufferedReader r = new BufferedReader(new InputStreamReader(Channels.newInputStream(ch), StandardCharsets.UTF_8));
+            long offset = pos;
+            String line;
+            while ((line = r.readLine()) != null) {
+                offset += line.getBytes(StandardCharsets.UTF_8).length + 1;
+                if (offset > seg.size) break;          // 没有换行符结尾的半行
+                StoredMessage m = parse(line);
+                if (m == null) break;
+                lastSeq = m.seq;
+                validEnd = offset;
+            }
+            if (validEnd < seg.size) {
+                Log.warn("消息存储 {} 末尾有不完整记录，已截断 {} 字节", seg.log, seg.size - validEnd);
+                ch.truncate(validEnd);
+                seg.size = validEnd;
+            }
+        }
+        c.lastSeq = lastSeq;
+    }
+
+    /* ============================================================= */
+    /** 取出会话并加锁；拿到锁时已被丢掉的（见 evict），换表里的新对象重来 */
+    private Conversation lock(String conversationId) {
+        while (true) {
+            Conversation c = conversations.computeIfAbsent(conversationId, Conversation::new);
+            c.lock.lock();
+            if (!c.evicted) return c;
+            c.lock.unlock();
+        }
+    }
+
+    private static List<Path> listLogs(Path dir) throws IOException {
+        try (Stream<Path> s = Files.list(dir)) {
+            List<Path> logs = new ArrayList<>();
+            s.filter(p -> p.getFileName().toString().endsWith(LOG)).sorted().forEach(logs::add);
+            return logs;
+        }
+    }
+
+    private static FileChannel openAppend(Path p) throws IOException {
+        return FileChannel.open(p, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private static void closeQuietly(FileChannel ch) {
+        if (ch == null) return;
+        try {
+            ch.close();
+        } catch (IOException e) {
+            Log.warn("关闭消息存储文件失败: {}", e.getMessage());
+        }
+    }
+
+    /** 会话 ID 转成安全的目录名（同 OfflineSpool） */
+    private static String encode(String name) {
+        return URLEncoder.encode(name, StandardCharsets.UTF_8).replace(".", "%2E").replace("*", "%2A");
+    }
+}
@@ -0,0 +1,260 @@
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * 服务器指标：计数器、仪表、延迟直方图，以 Prometheus 文本格式在本机 HTTP 端口上提供
+ *
+ *   curl http://127.0.0.1:9464/metrics
+ *
+ * --metrics.port（默认 9464，0 关闭）、--metrics.host（默认 127.0.0.1，只给本机抓取）。
+ *
+ * 记录在消息路径上，不分配内存：
+ *   - Counter 为 LongAdder，多线程累加不争用
+ *   - Histogram 为固定大小的对数线性桶（与 HdrHistogram 思路相同）：每个 2 的幂区间再平分 8 格，
+ *     相对误差不超过 12.5%，488 个 long 覆盖全部 long 取值；记录只是一次数组下标计算加一次原子自增
+ *   - Gauge 在抓取时才读取（在线人数、队列深度等），平时没有任何开销
+ * 指标对象在类初始化时注册好，热点代码只持有引用。带标签的同名指标（如每个命令一条）放在同一族下输出。
+ */
+public final class Metrics {
+
+    /* =============================================================
+       指标类型
+       ============================================================= */
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void add(long n) {
+            value.add(n);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    public static final class Histogram {
+        private static final int SUB_BITS = 3;
+        private static final int SUB_COUNT = 1 << SUB_BITS;                    // 每个 2 的幂区间 8 格
+        private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_COUNT;    // 488
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder sum = new LongAdder();
+        private final double scale;            // 输出时除以它，如纳秒 -> 秒为 1e9
+        private final int minExp, maxExp;      // 输出的 le 边界：2^minExp - 1 .. 2^maxExp - 1
+
+        Histogram(double scale, int minExp, int maxExp) {
+            this.scale = scale;
+            this.minExp = minExp;
+            this.maxExp = maxExp;
+        }
+
+        public void record(long value) {
+            if (value < 0) value = 0;
+            counts.incrementAndGet(indexOf(value));
+            sum.add(value);
+        }
+
+        /** 记录从 startNanos 到现在的耗时 */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        static int indexOf(long v) {
+            if (v < SUB_COUNT) return (int) v;
+            int exp = 63 - Long.numberOfLeadingZeros(v);                      // >= SUB_BITS
+            int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+            return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+        }
+
+        /** 第 index 格能放下的最大值 */
+        static long upperBound(int index) {
+            if (index < SUB_COUNT) return index;
+            int exp = index / SUB_COUNT + SUB_BITS - 1;
+            long sub = index % SUB_COUNT;
+            long next = (SUB_COUNT + sub + 1) << (exp - SUB_BITS);
+            return next <= 0 ? Long.MAX_VALUE : next - 1;                      // 最高一格溢出
+        }
+
+        public long count() {
+            long n = 0;
+            for (int i = 0; i < BUCKETS; i++) n += counts.get(i);
+            return n;
+        }
+
+        /** 分位数的近似值（所在格的上沿），没有数据时返回 0 */
+        public long quantile(double q) {
+            long[] snapshot = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) total += snapshot[i] = counts.get(i);
+            if (total == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(q * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) return upperBound(i);
+            }
+            return upperBound(BUCKETS - 1);
+        }
+
+        /** 值 <= 2^exp - 1 的个数：指数小于 exp 的格全部计入，边界与格的上沿重合，没有误差 */
+        private static long below(long[] snapshot, int exp) {
+            int end = exp <= SUB_BITS ? (1 << exp) : (exp - SUB_BITS + 1) * SUB_COUNT;
+            long n = 0;
+            for (int i = 0; i < Math.min(end, BUCKETS); i++) n += snapshot[i];
+            return n;
+        }
+
+        void write(StringBuilder sb, String name, String labels) {
+            long[] snapshot = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) total += snapshot[i] = counts.get(i);
+            for (int exp = minExp; exp <= maxExp; exp++) {
+                sb.append(name).append("_bucket{").append(labels).append(labels.isEmpty() ? "" : ",")
+                        .append("le=\"").append(number(((1L << exp) - 1) / scale)).append("\"} ")
+                        .append(below(snapshot, exp)).append('\n');
+            }
+            sb.append(name).append("_bucket{").append(labels).append(labels.isEmpty() ? "" : ",")
+                    .append("le=\"+Inf\"} ").append(total).append('\n');
+            sb.append(name).append("_sum").append(braces(labels)).append(' ').append(number(sum.sum() / scale)).append('\n');
+            sb.append(name).append("_count").append(braces(labels)).append(' ').append(total).append('\n');
+        }
+    }
+
+    /* =============================================================
+       注册表：按族保存，输出时同族的各条标签放在一起
+       ============================================================= */
+    private static final class Family {
+        final String type;
+        final String help;
+        final Map<String, Object> series = new LinkedHashMap<>();   // 标签串 -> 指标
+
+        Family(String type, String help) {
+            this.type = type;
+            this.help = help;
+        }
+    }
+
+    private static final Map<String, Family> families = new LinkedHashMap<>();
+    private static HttpServer http;
+
+    private Metrics() {
+    }
+
+    /** @param labels 交替的标签名和值，如 "command", "SEND" */
+    public static synchronized Counter counter(String name, String help, String... labels) {
+        return (Counter) register(name, "counter", help, labels, new Counter());
+    }
+
+    /** 纳秒计时，以秒输出，边界约 1µs .. 68s */
+    public static Histogram latency(String name, String help, String... labels) {
+        return histogram(name, help, 1e9, 10, 36, labels);
+    }
+
+    /** 个数 / 字节数等，以原值输出，边界 0, 1, 3, 7 .. 2^maxExp - 1 */
+    public static Histogram sizes(String name, String help, int maxExp, String... labels) {
+        return histogram(name, help, 1, 0, maxExp, labels);
+    }
+
+    private static synchronized Histogram histogram(String name, String help, double scale, int minExp, int maxExp,
+                                                    String... labels) {
+        return (Histogram) register(name, "histogram", help, labels, new Histogram(scale, minExp, maxExp));
+    }
+
+    /** 抓取时读取当前值 */
+    public static synchronized void gauge(String name, String help, LongSupplier value, String... labels) {
+        register(name, "gauge", help, labels, value);
+    }
+
+    private static Object register(String name, String type, String help, String[] labels, Object metric) {
+        Family f = families.computeIfAbsent(name, k -> new Family(type, help));
+        if (!f.type.equals(type)) throw new IllegalArgumentException("指标 " + name + " 类型冲突");
+        String key = labelString(labels);
+        Object existing = f.series.putIfAbsent(key, metric);
+        return existing != null ? existing : metric;          // 重复注册返回同一个对象
+    }
+
+    /* =============================================================
+       输出
+       ============================================================= */
+    public static synchronized String scrape() {
+        StringBuilder sb = new StringBuilder(4096);
+        for (Map.Entry<String, Family> e : families.entrySet()) {
+            String name = e.getKey();
+            Family f = e.getValue();
+            sb.append("# HELP ").append(name).append(' ').append(f.help).append('\n');
+            sb.append("# TYPE ").append(name).append(' ').append(f.type).append('\n');
+            for (Map.Entry<String, Object> s : f.series.entrySet()) {
+                Object m = s.getValue();
+                if (m instanceof Histogram) {
+                    ((Histogram) m).write(sb, name, s.getKey());
+                    continue;
+                }
+                long v;
+                try {
+                    v = m instanceof Counter ? ((Counter) m).get() : ((LongSupplier) m).getAsLong();
+                } catch (RuntimeException ex) {
+                    continue;                                  // 仪表读取失败时跳过这一条
+                }
+                sb.append(name).append(braces(s.getKey())).append(' ').append(v).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    /** 在 --metrics.host:--metrics.port 上提供 /metrics */
+    public static synchronized void startHttp(ServerConfig config) {
+        int port = config.getInt("metrics.port", 9464);
+        if (port <= 0 || http != null) return;
+        String host = config.get("metrics.host", "127.0.0.1");
+        try {
+            http = HttpServer.create(new InetSocketAddress(host, port), 0);
+            http.createContext("/metrics", exchange -> {
+                byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            http.start();                                      // 默认单线程处理，抓取不占用聊天线程
+            Log.info("指标端点已启动: http://{}:{}/metrics", host, port);
+        } catch (IOException e) {
+            Log.warn("指标端点启动失败 ({}:{}): {}", host, port, e.getMessage());
+        }
+    }
+
+    /* ============================================================= */
+    private static String labelString(String[] labels) {
+        if (labels.length % 2 != 0) throw new IllegalArgumentException("标签必须成对");
+        List<String> parts = new ArrayList<>();
+        for (int i = 0; i < labels.length; i += 2) {
+            String v = labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+            parts.add(labels[i] + "=\"" + v + "\"");
+        }
+        return String.join(",", parts);
+    }
+
+    private static String braces(String labels) {
+        return labels.isEmpty() ? "" : "{" + labels + "}";
+    }
+
+    private static String number(double v) {
+        if (v == Math.rint(v) && Math.abs(v) < 1e15) return Long.toString((long) v);
+        return Double.toString(v);
+    }
+}
@@ -0,0 +1,272 @@
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * NIO 模式下的一条客户端连接
+ * 读：数据先进 ByteBuffer，按 '\n' 切行后再做 UTF-8 解码，半行留在缓冲区等下一次读；
+ *     协商了二进制协议后，同一个缓冲区里剩下的数据改为按帧长切帧（见 BinaryProtocol）
+ * 分发：Reactor 只切行 / 切帧，命令交给工作线程池按到达顺序逐条执行（同一连接同一时刻只占一个线程），
+ *     落盘等阻塞操作不会卡住同一 Selector 上的其他连接；未处理的命令过多时暂停读取
+ * 写：任意线程把数据放进 ClientHandler 的 OutboundQueue 后调用 requestWrite()，
+ *     真正的 write 由所属 Reactor 线程在可写时完成，一次把积压全部聚集写出；
+ *     写出协商应答之后的帧取二进制编码；写空后的离线补发（要读写暂存文件）同样交给工作线程，
+ *     一批整个写进内核之后，帧上的写出回调（删除已补发的暂存段，见 Frame.whenWritten）也排进工作线程
+ * 关闭：可在任意线程调用，实际的关闭交给 Reactor 线程，不与正在进行的写交错
+ */
+class NioConnection {
+    private static final int INITIAL_READ_BUFFER = 8 * 1024;
+    private static final int MAX_LINE_BYTES = 1024 * 1024;   // 单行上限，防止恶意客户端撑爆内存
+    private static final int MAX_BUFFER_BYTES = MAX_LINE_BYTES + 8;   // 再留出二进制帧长前缀的位置
+    private static final int MAX_PENDING_COMMANDS = 1024;    // 未处理的命令超过此数暂停读取，降到一半恢复
+
+    private final SocketChannel channel;
+    private final NioServer.Reactor reactor;
+    private SelectionKey key;
+    private ClientHandler handler;
+    private OutboundQueue outbound;
+
+    private ByteBuffer readBuf = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+    private final List<Frame> batch = new ArrayList<>();
+    private ByteBuffer[] inflight;                           // 上次没写完的一批
+    private int inflightIndex;
+    private final List<Runnable> inflightWritten = new ArrayList<>();   // 这一批写完后要执行的回调
+    private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private volatile boolean closeWhenFlushed;
+    private volatile boolean binaryIn;                       // Reactor 线程读；切换由 Reactor 在读到 PROTO 行时完成
+    private boolean binaryOut;
+
+    // 待执行的命令，inboxLock 保护；dispatching 表示已有工作线程在执行
+    private final ArrayDeque<Runnable> inbox = new ArrayDeque<>();
+    private final ReentrantLock inboxLock = new ReentrantLock();
+    private boolean dispatching;
+    private boolean readPaused;
+
+    NioConnection(SocketChannel channel, NioServer.Reactor reactor) {
+        this.channel = channel;
+        this.reactor = reactor;
+    }
+
+    /** 由 Reactor 线程在注册完成后调用 */
+    void attach(SelectionKey key, ClientHandler handler) {
+        this.key = key;
+        this.handler = handler;
+        this.outbound = handler.getOutbound();
+        handler.sendMessage("欢迎连接到服务器！");
+    }
+
+    String getRemoteAddress() {
+        return channel.socket().getInetAddress().getHostAddress();
+    }
+
+    /* =============================================================
+       读：Reactor 线程
+       ============================================================= */
+    void onReadable() throws IOException {
+        int n = channel.read(readBuf);
+        if (n < 0) { close(); return; }
+
+        readBuf.flip();
+        byte[] arr = readBuf.array();
+        int start = readBuf.position();
+        int limit = readBuf.limit();
+        int scanned = start;                                 // 文本模式下已确认没有换行的位置
+        try {
+            while (start < limit) {
+                if (binaryIn) {
+                    int header = BinaryProtocol.headerSize(arr, start, limit);
+                    if (header == 0) break;
+                    int len = BinaryProtocol.frameLength(arr, start);
+                    if (limit - start - header < len) break;         // 半帧留到下一次读
+                    byte[] frame = Arrays.copyOfRange(arr, start + header, start + header + len);
+                    long now = System.nanoTime();
+                    dispatch(() -> handler.onBinaryFrame(frame, 0, frame.length, now));
+                    start += header + len;
+                } else {
+                    int i = scanned;
+                    while (i < limit && arr[i] != '\n') i++;
+                    if (i == limit) break;
+                    String line = new String(arr, start, i - start, StandardCharsets.UTF_8);
+                    start = scanned = i + 1;
+                    // 协商请求之后客户端只发二进制帧，这里就切换，不等命令在工作线程上执行
+                    if (BinaryProtocol.HELLO.equals(line.trim())) binaryIn = true;
+                    long now = System.nanoTime();
+                    dispatch(() -> handler.onLine(line, now));
+                }
+                if (closed.get()) return;
+            }
+        } catch (ProtocolException e) {
+            Log.warn("客户端 [{}] 二进制帧格式错误: {}，断开连接", getRemoteAddress(), e.getMessage());
+            close();
+            return;
+        }
+        readBuf.position(start);
+        readBuf.compact();
+
+        if (!readBuf.hasRemaining()) {                       // 一整个缓冲区都没有换行 / 装不下一帧
+            if (readBuf.capacity() >= MAX_BUFFER_BYTES) {
+                Log.warn("客户端 [{}] 单行超过上限，断开连接", getRemoteAddress());
+                close();
+                return;
+            }
+            ByteBuffer bigger = ByteBuffer.allocate(Math.min(readBuf.capacity() * 2, MAX_BUFFER_BYTES));
+            readBuf.flip();
+            bigger.put(readBuf);
+            readBuf = bigger;
+        }
+    }
+
+    /** 由 ClientHandler 处理 PROTO 行时调用；Reactor 读到该行时已经切换，这里只是确认 */
+    void switchToBinaryInput() {
+        binaryIn = true;
+    }
+
+    /* =============================================================
+       分发：dispatch() 只在 Reactor 线程调用；命令在工作线程上逐条执行
+       ============================================================= */
+    private void dispatch(Runnable task) {
+        boolean start, pause = false;
+        inboxLock.lock();
+        try {
+            inbox.addLast(task);
+            if (inbox.size() >= MAX_PENDING_COMMANDS && !readPaused) {
+                readPaused = true;
+                pause = true;
+            }
+            start = !dispatching;
+            dispatching = true;
+        } finally {
+            inboxLock.unlock();
+        }
+        if (pause && key.isValid()) key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        if (start) reactor.workers().execute(this::runInbox);
+    }
+
+    private void runInbox() {
+        while (true) {
+            Runnable task;
+            boolean resume = false;
+            inboxLock.lock();
+            try {
+                task = inbox.pollFirst();
+                if (task == null) dispatching = false;
+                if (readPaused && inbox.size() <= MAX_PENDING_COMMANDS / 2) {
+                    readPaused = false;
+                    resume = true;
+                }
+            } finally {
+                inboxLock.unlock();
+            }
+            if (resume) {
+                reactor.execute(() -> {
+                    if (key.isValid()) key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                });
+            }
+            if (task == null) return;
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // 单条命令出错不影响同一连接后面的命令
+                Log.error("处理客户端命令时出错: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /* =============================================================
+       写：requestWrite() 可在任意线程调用；onWritable() 只在 Reactor 线程
+       ============================================================= */
+    void requestWrite() {
+        if (closed.get()) return;
+        if (writeScheduled.compareAndSet(false, true)) {
+            reactor.execute(() -> {
+                if (key.isValid()) key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            });
+        }
+    }
+
+    /** 把已入队的数据写完后再关闭（例如被顶号时先把 ACCOUNT_CONFLICT 送出去） */
+    void closeWhenFlushed() {
+        closeWhenFlushed = true;
+        writeScheduled.set(true);
+        reactor.execute(() -> {
+            if (key.isValid()) key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        });
+    }
+
+    void onWritable() throws IOException {
+        while (true) {
+            if (inflight == null) {
+                batch.clear();
+                if (outbound.drainTo(batch) == 0) break;
+                boolean trace = handler.isTraceEnabled();
+                List<ByteBuffer> buffers = new ArrayList<>(batch.size());
+                for (Frame frame : batch) {
+                    buffers.add(ByteBuffer.wrap(binaryOut ? frame.binary() : frame.text(handler.isDeltaClient())));
+                    if (frame == Frame.BINARY_ACK) binaryOut = true;
+                    byte[] trailer = frame.onWrite(trace, binaryOut);
+                    if (trailer != null) buffers.add(ByteBuffer.wrap(trailer));
+                    if (frame.written() != null) inflightWritten.add(frame.written());
+                }
+                inflight = buffers.toArray(new ByteBuffer[0]);
+                inflightIndex = 0;
+                batch.clear();
+            }
+
+            long wanted = 0;
+            for (int i = inflightIndex; i < inflight.length; i++) wanted += inflight[i].remaining();
+            long written = channel.write(inflight, inflightIndex, inflight.length - inflightIndex);
+            while (inflightIndex < inflight.length && !inflight[inflightIndex].hasRemaining()) inflightIndex++;
+
+            if (written < wanted) {
+                return;                                      // 内核发送缓冲区已满，等待下次可写
+            }
+            inflight = null;
+            for (Runnable r : inflightWritten) dispatch(r);
+            inflightWritten.clear();
+        }
+
+        if (closeWhenFlushed) { close(); return; }
+        // 补发要读、删离线暂存的段文件，不能在 Reactor 线程上做；排进命令队列，与命令串行执行
+        if (handler.hasDrainWork()) dispatch(handler::onOutboundDrained);
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        writeScheduled.set(false);
+        // 清标志与别的线程入队之间存在竞争，这里补一次检查
+        if (!outbound.isEmpty()) requestWrite();
+    }
+
+    /* ============================================================= */
+    /** 任意线程可调用：标记关闭，实际关闭在 Reactor 线程上进行，不与 onWritable 交错 */
+    void close() {
+        if (!closed.compareAndSet(false, true)) return;
+        if (reactor.inReactorThread()) closeNow();
+        else reactor.execute(this::closeNow);
+    }
+
+    private void closeNow() {
+        if (key != null) key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.warn("关闭连接失败", e);
+        }
+        inflight = null;
+        inflightWritten.clear();                             // 没写完的补发段留在暂存里，下次登录重发
+        if (outbound != null) outbound.clear();
+        // 排在已收到的命令之后执行，下线不会被之后才执行的 LOGIN 覆盖
+        if (handler != null) dispatch(handler::onDisconnect);
+    }
+
+    boolean isClosed() {
+        return closed.get();
+    }
+}
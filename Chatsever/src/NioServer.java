@@ -0,0 +1,133 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * 非阻塞连接引擎（--io=nio）
+ * 主线程只负责 accept，新连接按轮询分配给固定数量的 Reactor 线程，
+ * 每个 Reactor 持有一个 Selector，负责其名下所有连接的读、按行解码和写出。
+ * 解码出的每一行 / 每一帧交给服务器线程池执行（见 NioConnection 的分发），命令语义与阻塞模式完全一致。
+ */
+class NioServer {
+
+    private final ChatServer server;
+    private final int port;
+    private final Reactor[] reactors;
+    private int next = 0;
+
+    NioServer(ChatServer server, int port, int reactorCount) {
+        this.server = server;
+        this.port = port;
+        this.reactors = new Reactor[reactorCount];
+    }
+
+    /** 启动所有 Reactor，并在当前线程上循环 accept（与阻塞模式的 start() 一样不会返回） */
+    void start() throws IOException {
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor();
+            Thread t = new Thread(reactors[i], "nio-reactor-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        try (ServerSocketChannel ssc = ServerSocketChannel.open()) {
+            ssc.bind(new InetSocketAddress(port));
+            while (true) {
+                SocketChannel ch = ssc.accept();             // 阻塞 accept，只占用一个线程
+                Log.debug("新客户端连接: {}", ch.socket().getInetAddress());
+                try {
+                    ch.configureBlocking(false);
+                    ch.socket().setTcpNoDelay(true);
+                } catch (IOException e) {
+                    // 对端可能已经断开；只放弃这一条连接，不能让异常跳出 accept 循环
+                    Log.warn("设置新连接失败: {}", e.getMessage());
+                    try { ch.close(); } catch (IOException ignore) {}
+                    continue;
+                }
+                reactors[next].register(ch);
+                next = (next + 1) % reactors.length;
+            }
+        }
+    }
+
+    /* =============================================================
+       Reactor：一个 Selector + 一个线程
+       其他线程对 Selector 的操作（注册、开启写事件）都经任务队列交给本线程执行
+       ============================================================= */
+    final class Reactor implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private volatile Thread thread;
+
+        Reactor() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel ch) {
+            execute(() -> {
+                try {
+                    NioConnection conn = new NioConnection(ch, this);
+                    SelectionKey key = ch.register(selector, SelectionKey.OP_READ, conn);
+                    conn.attach(key, new ClientHandler(conn, server));
+                } catch (IOException e) {
+                    Log.warn("注册连接失败: {}", e.getMessage());
+                    try { ch.close(); } catch (IOException ignore) {}
+                }
+            });
+        }
+
+        boolean inReactorThread() {
+            return Thread.currentThread() == thread;
+        }
+
+        /** 执行命令的线程池（与阻塞模式的连接线程、写任务共用） */
+        Executor workers() {
+            return server.getWriterExecutor();
+        }
+
+        /** 在 Reactor 线程上执行任务，并唤醒阻塞中的 select() */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            while (true) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) task.run();
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        NioConnection conn = (NioConnection) key.attachment();
+                        if (!key.isValid()) { conn.close(); continue; }
+                        try {
+                            if (key.isReadable()) conn.onReadable();
+                            if (key.isValid() && key.isWritable()) conn.onWritable();
+                        } catch (IOException e) {
+                            conn.close();
+                        } catch (RuntimeException e) {
+                            // 一条连接出错不能拖垮整个 Reactor 上的其他连接
+                            Log.error("处理客户端数据时出错: " + e.getMessage(), e);
+                            conn.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    Log.error("Reactor 错误: " + e.getMessage(), e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,382 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+/**
+ * 离线消息暂存（替代原来内存中的 offlineQueue）
+ *
+ * 每个收件人一个目录，消息按行追加到编号递增的段文件里（每段最多 --offline.segment.messages 条），
+ * 内存里只保存段的编号和条数，消息正文不占堆。重启后扫描目录即可恢复。
+ * 每行是一条 Frame.spoolRecord()：保存原始字段而不是文本行，二进制客户端取回时内容里的换行还在。
+ * 每个收件人最多保留 --offline.max.messages 条，超出时按 --offline.overflow 处理：
+ *   drop-oldest  丢弃最旧的一整段（默认）
+ *   drop-newest  拒收新消息
+ * 读取按段进行：一次读出最旧的一段交给调用方下发，这一段从此不再追加；
+ * 等它真正写到连接上（Taken.ack）才删除文件。写出之前连接断开、被踢或入队失败，这一段留在原处，下次登录重发。
+ * 同一收件人的追加与取出由该收件人的锁串行化，不同收件人互不影响。
+ * 取空的收件人从表里移除（目录也删掉），表里只留有暂存消息的收件人。
+ * 最后一段的文件在追加时保持打开，同时打开的不超过 --offline.open.files 个（默认 256），最久没写的先关闭。
+ */
+public class OfflineSpool {
+
+    private static final String SUFFIX = ".seg";
+
+    private final Path root;
+    private final int maxMessages;
+    private final int segmentMessages;
+    private final boolean dropOldest;
+    private final int maxOpen;
+    private final ConcurrentHashMap<String, Spool> spools = new ConcurrentHashMap<>();
+    private final AtomicLong pending = new AtomicLong();            // 全部收件人的暂存条数之和
+    private final AtomicInteger backlogged = new AtomicInteger();   // 有暂存消息的收件人数
+
+    // 最后一段文件处于打开状态的收件人，按最近写入排序（同 MessageStore）
+    private final LinkedHashMap<Spool, Boolean> openSpools = new LinkedHashMap<>(16, 0.75f, true);
+    private final ReentrantLock openLock = new ReentrantLock();
+    private static final Metrics.Histogram WRITE_LATENCY = Metrics.latency("chat_persistence_write_seconds",
+            "Time to append one record to a persistent store, including lock wait", "store", "offline");
+
+    /** 单个收件人的段列表 */
+    private static final class Spool {
+        final ReentrantLock lock = new ReentrantLock();
+        final ArrayDeque<Segment> segments = new ArrayDeque<>();
+        long nextSeq = 1;
+        volatile int total;
+        boolean removed;                            // 已从 spools 移除，拿到它的追加方要重新取
+
+        /** 关闭最后一段的文件（调用方持有收件人锁） */
+        void closeFiles() {
+            Segment tail = segments.peekLast();
+            if (tail != null) tail.closeFile();
+        }
+    }
+
+    private static final class Segment {
+        final Path path;
+        int count;
+        Object takenBy;                             // 已读出交给哪个连接发送；不为 null 时新消息写到下一段
+        FileChannel channel;                        // 追加用，只有最后一段会打开
+        Segment(Path path, int count) { this.path = path; this.count = count; }
+
+        void closeFile() {
+            if (channel == null) return;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.warn("关闭离线消息文件失败: {}", e.getMessage());
+            }
+            channel = null;
+        }
+    }
+
+    public OfflineSpool(ServerConfig config) {
+        this.root = Paths.get(config.get("offline.dir", Paths.get(config.get("data.dir", "."), "offline").toString()));
+        this.maxMessages = Math.max(1, config.getInt("offline.max.messages", 10000));
+        this.segmentMessages = Math.max(1, config.getInt("offline.segment.messages", 256));
+        this.dropOldest = !"drop-newest".equalsIgnoreCase(config.get("offline.overflow", "drop-oldest"));
+        this.maxOpen = Math.max(1, config.getInt("offline.open.files", 256));
+    }
+
+    /* =============================================================
+       启动时扫描已有的段文件
+       ============================================================= */
+    public void recover() {
+        if (!Files.isDirectory(root)) return;
+        int users = 0, messages = 0;
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(root)) {
+            for (Path dir : dirs) {
+                if (!Files.isDirectory(dir)) continue;
+                String name = decode(dir.getFileName().toString());
+                Spool sp = spool(name);
+                for (Path seg : listSegments(dir)) {
+                    int count = countLines(seg);
+                    if (count == 0) { Files.deleteIfExists(seg); continue; }
+                    sp.segments.addLast(new Segment(seg, count));
+                    adjust(sp, count);
+                    sp.nextSeq = seqOf(seg) + 1;
+                }
+                if (sp.total > 0) { users++; messages += sp.total; }
+                else retire(name, sp);
+            }
+        } catch (IOException e) {
+            Log.error("扫描离线消息目录失败: " + e.getMessage(), e);
+        }
+        if (messages > 0) Log.info("已恢复 {} 个用户的 {} 条离线消息", users, messages);
+    }
+
+    /* =============================================================
+       写入
+       ============================================================= */
+    public boolean append(String recipient, String msg) {
+        return appendIf(recipient, msg, null);
+    }
+
+    /**
+     * 追加一条消息；condition 不为 null 时在收件人锁内先判断，不满足则不追加。
+     * @return 是否已写入
+     */
+    public boolean appendIf(String recipient, String msg, BooleanSupplier condition) {
+        long t0 = System.nanoTime();
+        Spool sp = lockedSpool(recipient);
+        boolean written = false;
+        try {
+            if (condition != null && !condition.getAsBoolean()) return false;
+            if (sp.total >= maxMessages) {
+                if (!dropOldest) {
+                    Log.warn("用户 {} 离线消息已达上限 {} 条，丢弃新消息", recipient, maxMessages);
+                    return false;
+                }
+                Segment oldest = sp.segments.pollFirst();
+                oldest.closeFile();
+                Files.deleteIfExists(oldest.path);
+                adjust(sp, -oldest.count);
+                Log.warn("用户 {} 离线消息已达上限，丢弃最旧的 {} 条", recipient, oldest.count);
+            }
+
+            Segment tail = sp.segments.peekLast();
+            if (tail == null || tail.count >= segmentMessages || tail.takenBy != null) {
+                Path dir = root.resolve(encode(recipient));
+                Files.createDirectories(dir);
+                if (tail != null) tail.closeFile();
+                tail = new Segment(dir.resolve(String.format("%012d", sp.nextSeq++) + SUFFIX), 0);
+                sp.segments.addLast(tail);
+            }
+            if (tail.channel == null) {
+                tail.channel = FileChannel.open(tail.path,
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+            ByteBuffer buf = ByteBuffer.wrap((msg + "\n").getBytes(StandardCharsets.UTF_8));
+            while (buf.hasRemaining()) tail.channel.write(buf);
+            tail.count++;
+            adjust(sp, 1);
+            written = true;
+            return true;
+        } catch (IOException e) {
+            Log.warn("写入离线消息失败 ({}): {}", recipient, e.getMessage());
+            sp.closeFiles();                          // 下次写入时重新打开
+            return false;
+        } finally {
+            if (sp.segments.isEmpty()) retire(recipient, sp);
+            sp.lock.unlock();
+            if (written) touchOpen(sp);
+            WRITE_LATENCY.recordSince(t0);
+        }
+    }
+
+    /* =============================================================
+       读取
+       ============================================================= */
+    public int size(String recipient) {
+        Spool sp = spools.get(recipient);
+        return sp == null ? 0 : sp.total;
+    }
+
+    /** 全部收件人的暂存条数之和 */
+    public long totalSize() {
+        return pending.get();
+    }
+
+    /** 有暂存消息的收件人数 */
+    public int recipientCount() {
+        return backlogged.get();
+    }
+
+    /** 读出的一段：records 写到连接上之后调用 ack，才从暂存里删除 */
+    public final class Taken {
+        public final List<String> records;
+        private final String recipient;
+        private final Segment segment;
+
+        private Taken(String recipient, Segment segment, List<String> records) {
+            this.recipient = recipient;
+            this.segment = segment;
+            this.records = records;
+        }
+
+        /** 已写出：删除这一段（期间已被 drop-oldest 丢掉的不再处理） */
+        public void ack() {
+            Spool sp = lockedSpool(recipient);
+            try {
+                if (sp.segments.peekFirst() != segment) return;
+                sp.segments.pollFirst();
+                Files.deleteIfExists(segment.path);
+                adjust(sp, -segment.count);
+            } catch (IOException e) {
+                Log.warn("删除离线消息失败 ({}): {}", recipient, e.getMessage());
+            } finally {
+                if (sp.segments.isEmpty()) retire(recipient, sp);
+                sp.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 读出最旧的一段消息，文件保留到 Taken.ack。
+     * 这一段已由 owner 读出、还没 ack（还在路上）时不再重复读出；
+     * 由别的连接读出而没有 ack 的（那个连接在写出前断开了），这次重新读出交给 owner。
+     * 已经没有可取的消息时，在收件人锁内执行 onEmpty（可为 null），这样“判断为空”和“并发追加”不会交错。
+     * 读出了一段时不执行：调用方还没把这一段发出去，此时结束补发，新消息会插到它前面。
+     * @return 没有可取的消息、或最旧的一段还在路上时为 null
+     */
+    public Taken takeSegment(String recipient, Object owner, Runnable onEmpty) {
+        Spool sp = lockedSpool(recipient);
+        try {
+            Segment seg = sp.segments.peekFirst();
+            if (seg == null) {
+                if (onEmpty != null) onEmpty.run();
+                return null;
+            }
+            if (seg.takenBy == owner) return null;  // 写出后 ack，随后的写空回调再来取下一段
+            seg.closeFile();
+            seg.takenBy = owner;
+            return new Taken(recipient, seg, readLines(seg.path));
+        } catch (IOException e) {
+            Log.warn("读取离线消息失败 ({}): {}", recipient, e.getMessage());
+            return null;
+        } finally {
+            if (sp.segments.isEmpty()) retire(recipient, sp);
+            sp.lock.unlock();
+        }
+    }
+
+    /* ============================================================= */
+    private Spool spool(String recipient) {
+        return spools.computeIfAbsent(recipient, k -> new Spool());
+    }
+
+    /** 取得并锁住收件人的 Spool；等锁期间它被移除了就换新的重来 */
+    private Spool lockedSpool(String recipient) {
+        while (true) {
+            Spool sp = spool(recipient);
+            sp.lock.lock();
+            if (!sp.removed) return sp;
+            sp.lock.unlock();
+        }
+    }
+
+    /** 已取空的收件人从表里移除并删掉空目录（调用方持有收件人锁） */
+    private void retire(String recipient, Spool sp) {
+        sp.removed = true;
+        spools.remove(recipient, sp);
+        openLock.lock();
+        try {
+            openSpools.remove(sp);
+        } finally {
+            openLock.unlock();
+        }
+        try {
+            Files.deleteIfExists(root.resolve(encode(recipient)));
+        } catch (DirectoryNotEmptyException e) {
+            // 目录里还有别的文件，留着
+        } catch (IOException e) {
+            Log.warn("删除离线消息目录失败 ({}): {}", recipient, e.getMessage());
+        }
+    }
+
+    /** 修改收件人的暂存条数，同时维护全局计数（调用方持有收件人锁） */
+    private void adjust(Spool sp, int delta) {
+        int before = sp.total;
+        sp.total = before + delta;
+        pending.addAndGet(delta);
+        if (before == 0 && sp.total > 0) backlogged.incrementAndGet();
+        else if (before > 0 && sp.total == 0) backlogged.decrementAndGet();
+    }
+
+    /**
+     * 记为最近写入，打开的文件超过上限时关闭最久没写的。
+     * 在收件人锁之外调用；对方正在写（tryLock 失败）就跳过，放回最近一端。
+     */
+    private void touchOpen(Spool sp) {
+        openLock.lock();
+        try {
+            openSpools.put(sp, Boolean.TRUE);
+        } finally {
+            openLock.unlock();
+        }
+        for (int attempts = 0; attempts < 8; attempts++) {
+            Spool victim;
+            openLock.lock();
+            try {
+                if (openSpools.size() <= maxOpen) return;
+                Iterator<Spool> it = openSpools.keySet().iterator();
+                victim = it.next();
+                it.remove();
+            } finally {
+                openLock.unlock();
+            }
+            if (victim.lock.tryLock()) {
+                try {
+                    victim.closeFiles();
+                } finally {
+                    victim.lock.unlock();
+                }
+            } else {
+                openLock.lock();
+                try {
+                    openSpools.put(victim, Boolean.TRUE);
+                } finally {
+                    openLock.unlock();
+                }
+            }
+        }
+    }
+
+    private static List<Path> listSegments(Path dir) throws IOException {
+        try (Stream<Path> s = Files.list(dir)) {
+            List<Path> segs = new ArrayList<>();
+            s.filter(p -> p.getFileName().toString().endsWith(SUFFIX)).sorted().forEach(segs::add);
+            return segs;
+        }
+    }
+
+    private static long seqOf(Path seg) {
+        String n = seg.getFileName().toString();
+        try {
+            return Long.parseLong(n.substring(0, n.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static int countLines(Path seg) throws IOException {
+        int n = 0;
+        try (BufferedReader r = Files.newBufferedReader(seg, StandardCharsets.UTF_8)) {
+            while (r.readLine() != null) n++;
+        }
+        return n;
+    }
+
+    private static List<String> readLines(Path seg) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader r = Files.newBufferedReader(seg, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = r.readLine()) != null) lines.add(line);
+        }
+        return lines;
+    }
+
+    /** 用户名转成安全的目录名（'.' 也转义，避免出现 ".." 之类的路径） */
+    private static String encode(String name) {
+        return URLEncoder.encode(name, StandardCharsets.UTF_8).replace(".", "%2E").replace("*", "%2A");
+    }
+
+    private static String decode(String dirName) {
+        return URLDecoder.decode(dirName, StandardCharsets.UTF_8);
+    }
+}
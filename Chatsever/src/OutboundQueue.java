@@ -0,0 +1,79 @@
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 单个连接的有界发送队列
+ * 任意线程 offer() 入队后立即返回；写线程（阻塞模式的写任务 / NIO 的 Reactor）
+ * 一次 drainTo() 取走全部积压，合并成一次 write + flush。
+ * 队列里存 Frame 而不是字节：按文本还是二进制编码由写线程在写出时决定（见 BinaryProtocol 的协商）。
+ * 积压条数和字节数可随时读取，用来观察哪个客户端跟不上。
+ */
+class OutboundQueue {
+    private final ArrayDeque<Frame> frames = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final int capacity;
+
+    private volatile int pendingMessages;
+    private volatile long pendingBytes;
+
+    OutboundQueue(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /** 入队一帧；队列已满返回 false */
+    boolean offer(Frame frame) {
+        lock.lock();
+        try {
+            if (frames.size() >= capacity) return false;
+            frames.addLast(frame);
+            pendingMessages = frames.size();
+            pendingBytes += frame.bytes.length;         // 按文本编码计，二进制只会更短
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** 取走当前全部积压，返回取走的条数 */
+    int drainTo(List<Frame> out) {
+        lock.lock();
+        try {
+            int n = frames.size();
+            out.addAll(frames);
+            frames.clear();
+            pendingMessages = 0;
+            pendingBytes = 0;
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void clear() {
+        lock.lock();
+        try {
+            frames.clear();
+            pendingMessages = 0;
+            pendingBytes = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isEmpty() {
+        return pendingMessages == 0;
+    }
+
+    int getPendingMessages() {
+        return pendingMessages;
+    }
+
+    long getPendingBytes() {
+        return pendingBytes;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+}
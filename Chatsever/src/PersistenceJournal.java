@@ -0,0 +1,270 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 用户 / 群组数据的预写日志（替代每次变更都整文件重写 users.txt、groups.txt）
+ *
+ * 每次变更只向 chat.journal 追加一行记录（字段以 \t 分隔）：
+ *   REGISTER     用户名  密码
+ *   GROUP_CREATE 群ID    群名  创建者  成员1,成员2,...
+ *   MEMBER_ADD   群ID    用户名
+ * 记录数达到阈值时做一次压缩：把内存中的完整数据写成快照（先写临时文件再原子改名，
+ * 因此 users.txt / groups.txt 不会写出半个文件），然后清空日志。
+ * 启动时先加载快照，再重放日志；所有记录都是幂等的，重放多次结果相同。
+ * 只重放以 \n 结尾的完整记录：进程崩溃时写了一半的最后一行（如 "REGISTER\tbob\tpa"）字段数可能恰好对上，
+ * 不能当成有效记录，重放时直接截掉，不会进入之后压缩出的快照。
+ * 在线状态属于运行时数据（见 ChatServer.isOnline），不写日志。
+ *
+ * 刷盘策略 --journal.fsync：
+ *   always   每条记录 fsync 后才返回（最安全，最慢）
+ *   interval 后台每隔 --journal.fsync.interval.ms 毫秒 fsync 一次（默认）
+ *   never    交给操作系统
+ */
+public class PersistenceJournal {
+
+    enum FsyncPolicy { ALWAYS, INTERVAL, NEVER }
+
+    private final Path dataDir;
+    private final Path usersFile;
+    private final Path groupsFile;
+    private final Path journalFile;
+    private final FsyncPolicy fsync;
+    private final int fsyncIntervalMs;
+    private final int compactEvery;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private static final Metrics.Histogram WRITE_LATENCY = Metrics.latency("chat_persistence_write_seconds",
+            "Time to append one record to a persistent store, including lock wait", "store", "journal");
+    private FileChannel channel;
+    private int recordsSinceCompact;
+    private volatile boolean dirty;                      // interval 模式：有未 fsync 的记录
+    private ScheduledExecutorService flusher;
+
+    public PersistenceJournal(ServerConfig config) {
+        this.dataDir = Paths.get(config.get("data.dir", "."));
+        this.usersFile = dataDir.resolve("users.txt");
+        this.groupsFile = dataDir.resolve("groups.txt");
+        this.journalFile = dataDir.resolve("chat.journal");
+        this.fsync = FsyncPolicy.valueOf(config.get("journal.fsync", "interval").toUpperCase());
+        this.fsyncIntervalMs = Math.max(10, config.getInt("journal.fsync.interval.ms", 1000));
+        this.compactEvery = Math.max(1, config.getInt("journal.compact.records", 10000));
+    }
+
+    /* =============================================================
+       启动恢复：快照 + 日志重放，然后立即压缩，日志从空开始
+       ============================================================= */
+    public void recover() {
+        Log.info("正在加载用户数据...");
+        user.loadUsersFromFile(usersFile.toString());
+
+        Log.info("正在加载群组数据...");
+        Group.loadGroupsFromFile(groupsFile.toString());
+
+        int replayed = replay();
+        if (replayed > 0) Log.info("已从日志重放 {} 条记录", replayed);
+
+        lock.lock();
+        try {
+            compact();
+        } finally {
+            lock.unlock();
+        }
+
+        if (fsync == FsyncPolicy.INTERVAL) {
+            flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "journal-fsync");
+                t.setDaemon(true);
+                return t;
+            });
+            flusher.scheduleWithFixedDelay(this::flushIfDirty, fsyncIntervalMs, fsyncIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private int replay() {
+        if (!Files.exists(journalFile)) return 0;
+        int n = 0;
+        long complete = 0;                               // 最后一条完整记录之后的偏移
+        long offset = 0;
+        ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(journalFile), 64 * 1024)) {
+            int b;
+            while ((b = in.read()) >= 0) {
+                offset++;
+                if (b != '\n') {
+                    line.write(b);
+                    continue;
+                }
+                complete = offset;
+                String record = line.toString(StandardCharsets.UTF_8);
+                line.reset();
+                if (record.isEmpty()) continue;
+                if (apply(record.split("\t", -1))) n++;
+                else Log.warn("日志中发现无法识别的记录，已跳过: {}", record);
+            }
+        } catch (IOException e) {
+            Log.error("读取日志失败: " + e.getMessage(), e);
+            return n;
+        }
+        if (offset > complete) {
+            Log.warn("日志末尾有一条写了一半的记录（{} 字节），已丢弃: {}", offset - complete,
+                    line.toString(StandardCharsets.UTF_8));
+            try (FileChannel ch = FileChannel.open(journalFile, StandardOpenOption.WRITE)) {
+                ch.truncate(complete);
+            } catch (IOException e) {
+                Log.error("截断日志失败: " + e.getMessage(), e);
+            }
+        }
+        return n;
+    }
+
+    private boolean apply(String[] f) {
+        for (int i = 1; i < f.length; i++) f[i] = unescape(f[i]);
+        switch (f[0]) {
+            case "REGISTER":
+                if (f.length != 3) return false;
+                user.directory.register(new user(f[1], f[2]));
+                return true;
+            case "STATUS":                               // 旧版本写入的在线状态，已不再持久化
+                return true;
+            case "GROUP_CREATE":
+                if (f.length != 5) return false;
+                Group.addGroup(new Group(f[1], f[2], f[3], f[4].isEmpty() ? new String[0] : f[4].split(",")));
+                return true;
+            case "MEMBER_ADD":
+                if (f.length != 3) return false;
+                Group g = Group.findGroupById(f[1]);
+                if (g != null) g.addMember(f[2]);
+                return true;
+            default:
+                return false;                            // 未知的记录类型（写了一半的行在 replay 里已经排除）
+        }
+    }
+
+    /* =============================================================
+       追加记录（内存中的修改已经完成之后调用）
+       ============================================================= */
+    public void userRegistered(String name, String password) {
+        append("REGISTER", name, password);
+    }
+
+    public void groupCreated(Group g) {
+        append("GROUP_CREATE", g.getId(), g.getGroupName(), g.getCreatorUsername(), String.join(",", g.getMembers()));
+    }
+
+    public void memberAdded(String groupId, String username) {
+        append("MEMBER_ADD", groupId, username);
+    }
+
+    private void append(String type, String... fields) {
+        StringBuilder sb = new StringBuilder(type);
+        for (String f : fields) sb.append('\t').append(escape(f));
+        sb.append('\n');
+        ByteBuffer buf = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+
+        long t0 = System.nanoTime();
+        lock.lock();
+        try {
+            if (channel == null) openChannel();
+            while (buf.hasRemaining()) channel.write(buf);
+            if (fsync == FsyncPolicy.ALWAYS) channel.force(false);
+            else dirty = true;
+            if (++recordsSinceCompact >= compactEvery) compact();
+        } catch (IOException e) {
+            Log.error("写入日志失败: " + e.getMessage(), e);
+        } finally {
+            lock.unlock();
+            WRITE_LATENCY.recordSince(t0);
+        }
+    }
+
+    private void flushIfDirty() {
+        if (!dirty) return;
+        lock.lock();
+        try {
+            dirty = false;
+            if (channel != null) channel.force(false);
+        } catch (IOException e) {
+            Log.warn("日志刷盘失败: {}", e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* =============================================================
+       压缩：写快照并清空日志（调用方需持有 lock）
+       ============================================================= */
+    private void compact() {
+        try {
+            Files.createDirectories(dataDir);
+            Path usersTmp = usersFile.resolveSibling("users.txt.tmp");
+            Path groupsTmp = groupsFile.resolveSibling("groups.txt.tmp");
+            user.saveUsersToFile(usersTmp.toString());
+            Group.saveGroupsToFile(groupsTmp.toString());
+            forceFile(usersTmp);
+            forceFile(groupsTmp);
+            Files.move(usersTmp, usersFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(groupsTmp, groupsFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            // 快照已落盘，日志中的记录都已包含在内，可以清空
+            if (channel == null) openChannel();
+            channel.truncate(0);
+            channel.force(true);
+            recordsSinceCompact = 0;
+            dirty = false;
+        } catch (IOException e) {
+            Log.error("日志压缩失败，保留现有日志: " + e.getMessage(), e);
+        }
+    }
+
+    private void openChannel() throws IOException {
+        Files.createDirectories(dataDir);
+        channel = FileChannel.open(journalFile,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private static void forceFile(Path p) throws IOException {
+        try (FileChannel fc = FileChannel.open(p, StandardOpenOption.WRITE)) {
+            fc.force(true);
+        }
+    }
+
+    /* =============================================================
+       字段转义：\t、\n、\r 和转义符本身
+       ============================================================= */
+    static String escape(String s) {
+        if (s == null) return "";
+        StringBuilder sb = null;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            String rep = c == '\\' ? "\\\\" : c == '\t' ? "\\t" : c == '\n' ? "\\n" : c == '\r' ? "\\r" : null;
+            if (rep != null && sb == null) sb = new StringBuilder(s.length() + 8).append(s, 0, i);
+            if (sb != null) {
+                if (rep != null) sb.append(rep);
+                else sb.append(c);
+            }
+        }
+        return sb == null ? s : sb.toString();
+    }
+
+    static String unescape(String s) {
+        if (s.indexOf('\\') < 0) return s;
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                char n = s.charAt(++i);
+                sb.append(n == 't' ? '\t' : n == 'n' ? '\n' : n == 'r' ? '\r' : n);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
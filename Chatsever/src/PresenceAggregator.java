@@ -0,0 +1,100 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * 上下线通知合并窗口
+ *
+ * 登录高峰时同一个人可能在几百毫秒内反复上线 / 下线（重连、被顶号），原来每次翻转都单独推一条。
+ * 现在先把变化记下来，每隔 --presence.coalesce.ms 毫秒（默认 250）统一处理一次：
+ *   - 只看窗口结束时的最终状态，与上次已推送的状态相同就不推（上线又下线互相抵消）
+ *   - 每个接收者在一个窗口内只收到一帧 PRESENCE|+上线者,-下线者,...
+ * 旧客户端不认识 PRESENCE，仍收到 STATUSON / STATUSOFF，只是同样经过合并。
+ * --presence.coalesce.ms=0 关闭合并，每次变化立即在调用线程上推送。
+ * 处理过程由 flushLock 串行化：关闭合并时多个线程会同时 flush，取出、比较、推送必须整体互斥，
+ * 否则同一个人的上线 / 下线可能以相反的顺序推给关注者。
+ */
+public class PresenceAggregator {
+
+    private final PresenceIndex index;
+    private final Function<String, ClientHandler> online;   // 用户名 -> 在线连接
+    private final int windowMs;
+
+    private final ConcurrentHashMap<String, Boolean> pending = new ConcurrentHashMap<>();   // 窗口内最新状态
+    private final Set<String> publishedOnline = ConcurrentHashMap.newKeySet();             // 已推送为在线的人
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private ScheduledExecutorService flusher;
+
+    public PresenceAggregator(ServerConfig config, PresenceIndex index, Function<String, ClientHandler> online) {
+        this.index = index;
+        this.online = online;
+        this.windowMs = Math.max(0, config.getInt("presence.coalesce.ms", 250));
+    }
+
+    public void start() {
+        if (windowMs == 0) return;
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "presence-flush");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, windowMs, windowMs, TimeUnit.MILLISECONDS);
+    }
+
+    /** 记录一次上下线；窗口关闭时立即处理 */
+    public void changed(String username, boolean isOnline) {
+        pending.put(username, isOnline);
+        if (flusher == null) flush();
+    }
+
+    /* =============================================================
+       窗口结束：计算净变化，按接收者分组后每人一帧
+       ============================================================= */
+    void flush() {
+        if (pending.isEmpty()) return;
+        flushLock.lock();
+        try {
+            flushPending();
+        } catch (RuntimeException e) {
+            // 定时任务抛出异常会被取消，之后再也不会推送上下线，这里必须吃掉
+            Log.error("推送上下线通知失败: " + e.getMessage(), e);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private void flushPending() {
+        Map<String, List<String>> byRecipient = new HashMap<>();
+        for (String username : pending.keySet()) {
+            Boolean state = pending.remove(username);              // 之后的变化留给下一个窗口
+            if (state == null) continue;
+            boolean changed = state ? publishedOnline.add(username) : publishedOnline.remove(username);
+            if (!changed) continue;                                // 与上次推送的状态相同：抵消
+            String entry = (state ? "+" : "-") + username;
+            for (String watcher : index.watchersOf(username)) {
+                byRecipient.computeIfAbsent(watcher, k -> new ArrayList<>()).add(entry);
+            }
+        }
+
+        for (Map.Entry<String, List<String>> e : byRecipient.entrySet()) {
+            ClientHandler h = online.apply(e.getKey());
+            if (h == null) continue;
+            List<String> entries = e.getValue();
+            if (h.isDeltaClient()) {
+                h.sendMessage("PRESENCE|" + String.join(",", entries));
+            } else {
+                for (String entry : entries) {
+                    h.sendMessage((entry.charAt(0) == '+' ? "STATUSON: " : "STATUSOFF: ") + entry.substring(1));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 上下线通知的关注关系（替代原来的向全部在线用户广播）
+ *
+ * 一个用户的上下线只推给“关注”他的人：
+ *   1. 和他私聊过的人（双向，服务器启动时从 MessageStore 的会话目录恢复）
+ *   2. 和他在同一个群里的人（不单独保存，按 GroupRegistry 的成员索引现算，避免大群展开成两两关系）
+ *   3. 显式订阅了他的人（SUBSCRIBE|a,b,...，只在本次登录期间有效，登出时清除）
+ * 反向索引按“被关注者 -> 关注者”组织，上下线时直接取出要通知的人，代价与关注者数成正比，与在线总人数无关。
+ */
+public class PresenceIndex {
+
+    private final ConcurrentHashMap<String, Set<String>> contacts = new ConcurrentHashMap<>();       // 私聊过的人
+    private final ConcurrentHashMap<String, Set<String>> subscribers = new ConcurrentHashMap<>();    // 被订阅者 -> 订阅者
+    private final ConcurrentHashMap<String, Set<String>> subscriptions = new ConcurrentHashMap<>();  // 订阅者 -> 被订阅者
+    private final int maxSubscriptions;
+
+    public PresenceIndex(ServerConfig config) {
+        this.maxSubscriptions = Math.max(0, config.getInt("presence.max.subscriptions", 1000));
+    }
+
+    /* =============================================================
+       私聊关系（双向）
+       ============================================================= */
+    public void addContact(String a, String b) {
+        if (a.equals(b)) return;
+        Set<String> ofA = contacts.get(a);
+        if (ofA != null && ofA.contains(b)) return;          // 常见情况：早已是联系人，不再写
+        addTo(contacts, a, b);
+        addTo(contacts, b, a);
+    }
+
+    /* =============================================================
+       显式订阅
+       ============================================================= */
+    /** @return 实际新增的订阅（超过上限的部分忽略） */
+    public Set<String> subscribe(String watcher, Iterable<String> names) {
+        Set<String> mine = setOf(subscriptions, watcher);
+        Set<String> added = new HashSet<>();
+        for (String name : names) {
+            if (name.isEmpty() || name.equals(watcher)) continue;
+            if (mine.size() >= maxSubscriptions) break;
+            if (mine.add(name)) {
+                addTo(subscribers, name, watcher);
+                added.add(name);
+            }
+        }
+        return added;
+    }
+
+    public void unsubscribe(String watcher, Iterable<String> names) {
+        Set<String> mine = subscriptions.get(watcher);
+        if (mine == null) return;
+        for (String name : names) {
+            if (mine.remove(name)) removeFrom(subscribers, name, watcher);
+        }
+    }
+
+    /** 登出时清除该用户的全部显式订阅 */
+    public void clearSubscriptions(String watcher) {
+        Set<String> mine = subscriptions.remove(watcher);
+        if (mine == null) return;
+        for (String name : mine) removeFrom(subscribers, name, watcher);
+    }
+
+    /* =============================================================
+       查询
+       ============================================================= */
+    /** 需要收到 username 上下线通知的人（不含他自己） */
+    public Set<String> watchersOf(String username) {
+        Set<String> out = new HashSet<>(related(username));
+        out.addAll(subscribers.getOrDefault(username, Collections.emptySet()));
+        out.remove(username);
+        return out;
+    }
+
+    /** username 关心其状态的人：登录时只需告诉他这些人是否在线 */
+    public Set<String> interestsOf(String username) {
+        Set<String> out = new HashSet<>(related(username));
+        out.addAll(subscriptions.getOrDefault(username, Collections.emptySet()));
+        out.remove(username);
+        return out;
+    }
+
+    /** 私聊与同群关系是对称的，两个方向共用 */
+    private Set<String> related(String username) {
+        Set<String> out = new HashSet<>(contacts.getOrDefault(username, Collections.emptySet()));
+        for (Group g : Group.registry.groupsOf(username)) out.addAll(g.getMembers());
+        return out;
+    }
+
+    /* ============================================================= */
+    private static Set<String> setOf(ConcurrentHashMap<String, Set<String>> map, String key) {
+        return map.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet());
+    }
+
+    /** 与 removeFrom 一样在 compute 内修改，避免加到刚被移除的空集合上 */
+    private static void addTo(ConcurrentHashMap<String, Set<String>> map, String key, String value) {
+        map.compute(key, (k, set) -> {
+            if (set == null) set = ConcurrentHashMap.newKeySet();
+            set.add(value);
+            return set;
+        });
+    }
+
+    private static void removeFrom(ConcurrentHashMap<String, Set<String>> map, String key, String value) {
+        map.computeIfPresent(key, (k, set) -> {
+            set.remove(value);
+            return set.isEmpty() ? null : set;
+        });
+    }
+}
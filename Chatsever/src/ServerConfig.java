@@ -0,0 +1,77 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 服务器启动参数
+ * 读取顺序：命令行 --key=value  >  JVM 参数 -Dchat.key=value  >  默认值
+ * 例：java ChatServer --io=nio --reactors=4
+ *     java ChatServer --threads=virtual
+ */
+public final class ServerConfig {
+
+    /** 连接处理模型：每连接一个线程的阻塞模式，或基于 Selector 的非阻塞模式 */
+    public enum IoMode { BLOCKING, NIO }
+
+    /** 阻塞模式下 ClientHandler / FileServer.Worker 所用的线程类型 */
+    public enum ThreadMode { PLATFORM, VIRTUAL }
+
+    private final Map<String, String> args = new HashMap<>();
+
+    private ServerConfig(String[] argv) {
+        if (argv == null) return;
+        for (String a : argv) {
+            if (!a.startsWith("--")) continue;
+            int eq = a.indexOf('=');
+            if (eq > 2) args.put(a.substring(2, eq), a.substring(eq + 1));
+            else args.put(a.substring(2), "true");
+        }
+    }
+
+    public static ServerConfig fromArgs(String[] argv) {
+        return new ServerConfig(argv);
+    }
+
+    public static ServerConfig defaults() {
+        return new ServerConfig(null);
+    }
+
+    /* ============================================================= */
+    public String get(String key, String def) {
+        String v = args.get(key);
+        if (v == null) v = System.getProperty("chat." + key);
+        return v == null || v.isEmpty() ? def : v.trim();
+    }
+
+    public int getInt(String key, int def) {
+        try {
+            return Integer.parseInt(get(key, String.valueOf(def)));
+        } catch (NumberFormatException e) {
+            Log.warn("参数 {} 不是合法整数，使用默认值 {}", key, def);
+            return def;
+        }
+    }
+
+    /* ============================================================= */
+    public int getPort() {
+        return getInt("port", 8070);
+    }
+
+    public IoMode getIoMode() {
+        return "nio".equalsIgnoreCase(get("io", "blocking")) ? IoMode.NIO : IoMode.BLOCKING;
+    }
+
+    /** 虚拟线程需要 Java 21+，每个空闲连接只占几 KB 栈，而不是一个平台线程 */
+    public ThreadMode getThreadMode() {
+        return "virtual".equalsIgnoreCase(get("threads", "platform")) ? ThreadMode.VIRTUAL : ThreadMode.PLATFORM;
+    }
+
+    /** 每个连接发送队列最多缓存的消息条数，超过即认为客户端已掉队 */
+    public int getOutboundCapacity() {
+        return Math.max(16, getInt("outbound.capacity", 4096));
+    }
+
+    /** NIO 模式下的 I/O 反应器线程数，默认取 CPU 核数（至少 1） */
+    public int getReactorCount() {
+        return Math.max(1, getInt("reactors", Runtime.getRuntime().availableProcessors()));
+    }
+}
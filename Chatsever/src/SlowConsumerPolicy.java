@@ -0,0 +1,57 @@
+/**
+ * 慢消费者处理策略
+ * 按单个连接发送队列的积压（条数或字节数，任一超限即算）分三级水位处理：
+ *   1. presence 水位：丢弃 STATUSON / STATUSOFF / PRESENCE 这类状态通知；
+ *      丢过之后连接记下标记，发送队列写空时补发一次在线快照（见 ChatServer.resendPresence）
+ *   2. spill 水位：私聊 / 群聊消息不再进内存队列，转存到离线暂存（OfflineSpool），等客户端追上后分段取回
+ *   3. disconnect 水位：直接断开，保护服务器堆内存
+ * 合并帧（sendBatch / sendFrames：快照、分页、补发的一段）是对请求的回复，不丢弃也不转存，只受 disconnect 水位限制。
+ * 各水位可通过 --slow.presence.messages=256 这类参数调整。
+ */
+class SlowConsumerPolicy {
+
+    enum Action { ENQUEUE, DROP, SPILL, DISCONNECT }
+
+    private final int presenceMessages;
+    private final long presenceBytes;
+    private final int spillMessages;
+    private final long spillBytes;
+    private final int disconnectMessages;
+    private final long disconnectBytes;
+
+    SlowConsumerPolicy(ServerConfig config) {
+        this.presenceMessages = config.getInt("slow.presence.messages", 256);
+        this.presenceBytes = config.getInt("slow.presence.bytes", 256 * 1024);
+        this.spillMessages = config.getInt("slow.spill.messages", 1024);
+        this.spillBytes = config.getInt("slow.spill.bytes", 1024 * 1024);
+        this.disconnectMessages = config.getInt("slow.disconnect.messages", config.getOutboundCapacity());
+        this.disconnectBytes = config.getInt("slow.disconnect.bytes", 8 * 1024 * 1024);
+    }
+
+    /**
+     * 决定一条即将发送的消息如何处理
+     * @param backlogPending 离线暂存中是否还有该连接待补发的消息（有则后续聊天消息也进暂存，保证顺序）
+     */
+    Action decide(OutboundQueue q, Frame frame, boolean backlogPending) {
+        int messages = q.getPendingMessages();
+        long bytes = q.getPendingBytes();
+
+        if (messages >= disconnectMessages || bytes >= disconnectBytes) return Action.DISCONNECT;
+
+        if (frame.presence) {
+            return messages >= presenceMessages || bytes >= presenceBytes ? Action.DROP : Action.ENQUEUE;
+        }
+        if (frame.chat && (backlogPending || messages >= spillMessages || bytes >= spillBytes)) {
+            return Action.SPILL;
+        }
+        return Action.ENQUEUE;
+    }
+
+    static boolean isPresence(String msg) {
+        return msg.startsWith("STATUSON:") || msg.startsWith("STATUSOFF:") || msg.startsWith("PRESENCE|");
+    }
+
+    static boolean isChat(String msg) {
+        return msg.startsWith("MSG:") || msg.startsWith("GROUP_MSG|");
+    }
+}
@@ -0,0 +1,102 @@
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 服务器端用户目录（替代原来的 user.userList 线性扫描）
+ * 按用户名建哈希索引：查找、注册都是 O(1)，可被多个连接线程并发调用。
+ * 只保存账号数据，在线状态见 ChatServer.isOnline。
+ *
+ * 另按注册顺序保存一份只追加的数组，供下发用户列表和落盘时按原顺序遍历。
+ * 账号只增不删，所以“已注册的账号数”就是用户列表的版本号：
+ * 客户端持有前 N 个账号时，增量就是下标 N 之后的部分（见 ChatServer.syncUserList）。
+ */
+public class UserDirectory {
+    private final ConcurrentHashMap<String, user> byName = new ConcurrentHashMap<>();
+
+    // 只在 lock 内追加；先写元素、再发布数组、最后发布 count，读方先读 count 再读数组即可不加锁
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile user[] ordered = new user[64];
+    private volatile int count;
+
+    /** 注册新用户；用户名已存在时返回 false，不覆盖原账号 */
+    public boolean register(user u) {
+        return registerIndexed(u) >= 0;
+    }
+
+    /** 注册新用户并返回其注册顺序下标（即注册后版本号减 1）；用户名已存在时返回 -1 */
+    public int registerIndexed(user u) {
+        lock.lock();
+        try {
+            if (byName.putIfAbsent(u.getName(), u) != null) return -1;
+            user[] arr = ordered;
+            if (count == arr.length) {
+                arr = Arrays.copyOf(arr, arr.length * 2);
+            }
+            arr[count] = u;
+            ordered = arr;
+            count = count + 1;
+            return count - 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public user find(String name) {
+        return name == null ? null : byName.get(name);
+    }
+
+    public boolean contains(String name) {
+        return name != null && byName.containsKey(name);
+    }
+
+    /** 当前版本号，即按注册顺序的账号总数 */
+    public int version() {
+        return count;
+    }
+
+    /** 第 index 个注册的账号（从 0 开始） */
+    public user at(int index) {
+        int n = count;
+        if (index < 0 || index >= n) throw new IndexOutOfBoundsException(index);
+        return ordered[index];
+    }
+
+    /** 按注册顺序遍历（快照：遍历过程中新注册的用户看不到） */
+    public List<user> values() {
+        return since(0);
+    }
+
+    /** 下标 from 之后注册的账号（快照） */
+    public List<user> since(int from) {
+        final int n = count;
+        final user[] arr = ordered;
+        final int start = Math.max(0, Math.min(from, n));
+        return new AbstractList<user>() {
+            @Override public user get(int i) {
+                if (i < 0 || i >= n - start) throw new IndexOutOfBoundsException(i);
+                return arr[start + i];
+            }
+            @Override public int size() {
+                return n - start;
+            }
+        };
+    }
+
+    public int size() {
+        return byName.size();
+    }
+
+    public void clear() {
+        lock.lock();
+        try {
+            byName.clear();
+            ordered = new user[64];
+            count = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
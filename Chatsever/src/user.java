@@ -5,22 +5,14 @@ import java.util.List;
 public class user implements Serializable {
     private String name;
     private String password;
-    private boolean status = false; // 用户状态，默认不在线
-    public static List<user> userList = new ArrayList<>();
+    /** 所有注册用户，按用户名索引 */
+    public static final UserDirectory directory = new UserDirectory();
 
     public static List<user> onlineUserList = new ArrayList<>();
-    public user(String name, String password, boolean status) {
+    /** 只保存账号数据；在线状态见 ChatServer.isOnline，不落盘 */
+    public user(String name, String password) {
         this.name = name;
         this.password = password;
-        this.status = status;
-    }
-    public boolean isStatus() {
-        return status;
-    }
-
-
-    public void setStatus(boolean status) {
-        this.status = status;
     }
     public String getName() {
         return name;
@@ -43,47 +35,40 @@ public class user implements Serializable {
     }
 
     public boolean checkPassword(String name, String password) {
-        for (user u : userList) {
-            if (u.getName().equals(name) && u.getPassword().equals(password)) {
-                return true;
-            }
-        }
-        return false;
+        user u = directory.find(name);
+        return u != null && u.getPassword().equals(password);
     }
 
     public static boolean addUser(user u) {
-        userList.add(u);
-        return true; // 注册成功
+        return directory.register(u); // 用户名已存在时注册失败
     }
     @Override
     public String toString() {
-        return name + "," + password + "," + status;
+        return name + "," + password;
     }
     public static void saveUsersToFile(String fileName) {
         try (BufferedWriter writer = new BufferedWriter(new FileWriter(fileName))) {
-            for (user u : userList) {
+            for (user u : directory.values()) {
                 writer.write(u.toString());
                 writer.newLine();
             }
         } catch (IOException e) {
-            e.printStackTrace();
-            // 根据您的错误处理策略，您可能希望在此处抛出异常或记录错误
+            Log.error("保存用户数据失败: " + fileName, e);
         }
     }
     // 从文本文件加载用户数据
     public static void loadUsersFromFile(String fileName) {
-        userList.clear(); // 清空现有列表，以避免重复加载
+        directory.clear(); // 清空现有列表，以避免重复加载
         File file = new File(fileName);
 
         // 如果文件不存在，创建一个新的空文件
         if (!file.exists()) {
             try {
                 file.createNewFile();
-                System.out.println("文件 '" + fileName + "' 不存在，已创建新文件");
+                Log.info("文件 '{}' 不存在，已创建新文件", fileName);
                 return; // 文件是新创建的，里面没有数据，直接返回
             } catch (IOException e) {
-                System.err.println("创建文件 '" + fileName + "' 失败");
-                e.printStackTrace();
+                Log.error("创建文件 '" + fileName + "' 失败", e);
                 return;
             }
         }
@@ -95,22 +80,20 @@ public class user implements Serializable {
                     continue;
                 }
                 String[] parts = line.split(",");
-                if (parts.length == 3) {
+                if (parts.length == 2 || parts.length == 3) {
                     String name = parts[0].trim();
                     String password = parts[1].trim();
-                    boolean status = Boolean.parseBoolean(parts[2].trim());
-                    userList.add(new user(name, password, status));
+                    // 旧版本还有第三列在线状态，重启后所有人都应视为离线，忽略；下次压缩时不再写出
+                    directory.register(new user(name, password));
                 } else {
-                    System.err.println("警告: 文件 '" + fileName + "' 中发现格式不正确的行: " + line);
+                    Log.warn("文件 '{}' 中发现格式不正确的行: {}", fileName, line);
                     // 您可以选择记录此错误或采取其他操作
                 }
             }
         } catch (IOException e) {
-            e.printStackTrace();
-            // 根据您的错误处理策略，您可能希望在此处抛出异常或记录错误
+            Log.error("加载用户数据失败: " + fileName, e);
         } catch (ArrayIndexOutOfBoundsException e) {
-            System.err.println("警告: 文件 '" + fileName + "' 中有行数据不足。");
-            e.printStackTrace();
+            Log.warn("文件 '" + fileName + "' 中有行数据不足。", e);
         }
     }
 }
@@ -0,0 +1,62 @@
+import chatroom.bench.Workload;
+
+import java.net.ProtocolException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * 客户端下行消息的解析与分发：ChatClient.processServerMessage（文本）和 processServerFrame（二进制）
+ * 没有设置回调，聊天消息拆完字段就返回，不碰界面和本地聊天记录；MSG_ACK 会走到已读序号窗口。
+ */
+public class ServerMessageParsingWorkload implements Workload {
+    private static final String CONTENT = "明天早上八点在南门集合，记得带水和雨衣，路上注意安全";
+
+    private ChatClient client;
+    private byte[] binaryMsg;
+    private long ackSeq;
+
+    @Override
+    public void setup(Map<String, String> params) throws Exception {
+        client = new ChatClient("bench");
+        byte[] frame = new BinaryProtocol.Encoder(BinaryProtocol.OP_MSG)
+                .string("alice").string("bench").varint(123456).string(CONTENT).frame();
+        int header = BinaryProtocol.headerSize(frame, 0, frame.length);    // processServerFrame 收到的是去掉帧长前缀的内容
+        binaryMsg = Arrays.copyOfRange(frame, header, frame.length);
+    }
+
+    @Override
+    public LongSupplier operation(String name) {
+        switch (name) {
+            case "MSG":
+                return text("MSG:alice:bench:123456:" + CONTENT);
+            case "GROUP_MSG":
+                return text("GROUP_MSG|alice|42|周末爬山|123456|" + CONTENT);
+            case "MSG_ACK":
+                return () -> {
+                    client.processServerMessage("MSG_ACK:alice:" + (++ackSeq));
+                    return client.getLastSeq("alice");
+                };
+            case "UNKNOWN":
+                return text("欢迎连接到服务器！");
+            case "BINARY_MSG":
+                return () -> {
+                    try {
+                        client.processServerFrame(binaryMsg);
+                    } catch (ProtocolException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    return binaryMsg.length;
+                };
+            default:
+                throw new IllegalArgumentException("未知操作: " + name);
+        }
+    }
+
+    private LongSupplier text(String line) {
+        return () -> {
+            client.processServerMessage(line);
+            return line.length();
+        };
+    }
+}
@@ -0,0 +1,37 @@
+package chatroom.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * 客户端下行消息的解析与分发（见 ServerMessageParsingWorkload）
+ *   java -jar benchmarks/client/target/benchmarks.jar
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ServerMessageParsingBench {
+
+    @Param({"MSG", "GROUP_MSG", "MSG_ACK", "UNKNOWN", "BINARY_MSG"})
+    public String message;
+
+    private LongSupplier op;
+
+    @Setup
+    public void setup() throws Exception {
+        Workload w = Workload.load("ServerMessageParsingWorkload");
+        w.setup(Map.of());
+        op = w.operation(message);
+    }
+
+    @Benchmark
+    public long parse() {
+        return op.getAsLong();
+    }
+}
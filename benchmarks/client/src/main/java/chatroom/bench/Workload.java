@@ -0,0 +1,27 @@
+package chatroom.bench;
+
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * 一个被测场景
+ *
+ * 聊天室的类都在默认包里，而 JMH 生成的代码必须在具名包中，具名包又不能 import 默认包的类。
+ * 所以场景写成默认包里的 Workload 实现（可以直接使用被测的类和包内可见的方法），
+ * 基准类按类名反射加载一次，之后只通过本接口调用，测量时没有反射开销。
+ */
+public interface Workload {
+
+    /** 准备数据，params 为基准的 @Param 取值 */
+    void setup(Map<String, String> params) throws Exception;
+
+    /** 按名字取被测操作；返回值交给 JMH 消费，防止被 JIT 当作死代码消除 */
+    LongSupplier operation(String name);
+
+    default void tearDown() throws Exception {
+    }
+
+    static Workload load(String className) throws ReflectiveOperationException {
+        return (Workload) Class.forName(className).getDeclaredConstructor().newInstance();
+    }
+}
@@ -0,0 +1,103 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 基准测试用的服务器：临时数据目录、不开指标端口，不调用 start()，不监听端口
+ */
+final class BenchServer {
+
+    private BenchServer() {
+    }
+
+    /** @param inMemoryStore 为 true 时消息只分配序号不落盘，只测转发本身 */
+    static ChatServer create(boolean inMemoryStore) throws IOException {
+        String dir = Files.createTempDirectory("chat-bench").toString();
+        ServerConfig config = ServerConfig.fromArgs(new String[]{
+                "--data.dir=" + dir, "--metrics.port=0", "--log.level=warn"});
+        Log.configure(config);
+        MessageStore store = inMemoryStore ? new InMemoryMessageStore(config) : new MessageStore(config);
+        return new ChatServer(config, new PersistenceJournal(config), new OfflineSpool(config), store);
+    }
+
+    /** 只分配序号的消息存储 */
+    static final class InMemoryMessageStore extends MessageStore {
+        private final AtomicLong seq = new AtomicLong();
+
+        InMemoryMessageStore(ServerConfig config) {
+            super(config);
+        }
+
+        @Override
+        public long append(String conversationId, String sender, String content) {
+            return seq.incrementAndGet();
+        }
+    }
+
+    /**
+     * 不连网络、但走真实发送路径的连接：sendFrame / sendMessage 经慢消费者策略进 OutboundQueue，
+     * 不启动写线程，由基准调用 drain() 像写线程一样取走。
+     * queueing 为 false 时（准备阶段登录引起的列表、上下线通知）直接丢弃，免得上万个成员互相通知塞满队列
+     */
+    static final class QueuedHandler extends ClientHandler {
+        private final List<Frame> batch = new ArrayList<>();
+        boolean queueing;
+
+        QueuedHandler(ChatServer server) {
+            super((NioConnection) null, server);
+        }
+
+        @Override
+        void sendFrame(Frame frame) {
+            if (queueing) super.sendFrame(frame);
+        }
+
+        @Override
+        void wakeWriter() {
+        }
+
+        /** 取走发送队列里的全部帧，返回按本连接的协议要写出的字节数 */
+        long drain() {
+            getOutbound().drainTo(batch);
+            long n = 0;
+            for (Frame f : batch) n += f.text(isDeltaClient()).length;
+            batch.clear();
+            return n;
+        }
+    }
+
+    /** 不连网络的连接：下行帧只计数，不入发送队列 */
+    static final class FakeHandler extends ClientHandler {
+        long frames;
+        long bytes;
+        boolean delta;                     // 按增量客户端处理（登录时只收在线快照和所在的群）
+        String username;
+
+        FakeHandler(ChatServer server) {
+            super((NioConnection) null, server);
+        }
+
+        @Override
+        void sendFrame(Frame frame) {
+            frames++;
+            bytes += frame.bytes.length;
+        }
+
+        @Override
+        void sendFrames(List<Frame> batch) {
+            for (Frame f : batch) sendFrame(f);
+        }
+
+        @Override
+        boolean isDeltaClient() {
+            return delta;
+        }
+
+        @Override
+        public String getUsername() {
+            return username;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+import chatroom.bench.Workload;
+
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * 上行命令的解析与分发：ClientHandler.processClientMessage（文本）和 onBinaryFrame（二进制）
+ * 连接未登录，SEND / GROUP_MSG 解析完就返回，不进入转发，只测查表、切分和命令统计。
+ */
+public class CommandParsingWorkload implements Workload {
+    private static final String CONTENT = "明天早上八点在南门集合，记得带水和雨衣，路上注意安全";
+
+    private ClientHandler handler;
+    private byte[] binarySend;
+    private int binaryOffset;
+
+    @Override
+    public void setup(Map<String, String> params) throws Exception {
+        handler = new BenchServer.FakeHandler(BenchServer.create(true));
+        byte[] frame = new BinaryProtocol.Encoder(BinaryProtocol.OP_SEND).string("bob").string(CONTENT).frame();
+        binaryOffset = BinaryProtocol.headerSize(frame, 0, frame.length);   // onBinaryFrame 收到的是去掉帧长前缀的内容
+        binarySend = frame;
+    }
+
+    @Override
+    public LongSupplier operation(String name) {
+        switch (name) {
+            case "SEND":
+                return text("SEND:bob:" + CONTENT);
+            case "GROUP_MSG":
+                return text("GROUP_MSG|123456|" + CONTENT);
+            case "UNKNOWN":
+                return text("HELLO there");
+            case "BINARY_SEND":
+                return () -> {
+                    handler.onBinaryFrame(binarySend, binaryOffset, binarySend.length - binaryOffset);
+                    return handler.getLastMessage().length();
+                };
+            default:
+                throw new IllegalArgumentException("未知操作: " + name);
+        }
+    }
+
+    private LongSupplier text(String line) {
+        return () -> {
+            handler.processClientMessage(line);
+            return handler.getLastMessage().length();
+        };
+    }
+}
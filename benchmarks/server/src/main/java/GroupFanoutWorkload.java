@@ -0,0 +1,65 @@
+import chatroom.bench.Workload;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * 群发：一条群消息交给全体在线成员，并像写线程一样从各成员的发送队列取走
+ * 消息存储只分配序号；连接是 BenchServer.QueuedHandler，经过真实的慢消费者判断和 OutboundQueue。
+ *   mode=shared  ChatServer.forwardGroupMessage：只编码一次，所有成员共用同一个 Frame
+ *   mode=legacy  原来的做法：拼好一行，对每个成员 sendMessage，各自再拼 "\n" 做一次 UTF-8 编码
+ * 返回本次写出的总字节数。
+ */
+public class GroupFanoutWorkload implements Workload {
+    private static final String CONTENT = "明天早上八点在南门集合，记得带水和雨衣，路上注意安全";
+
+    private ChatServer server;
+    private Group group;
+    private BenchServer.QueuedHandler[] handlers;
+    private final Map<String, ClientHandler> online = new HashMap<>();
+    private boolean legacy;
+
+    @Override
+    public void setup(Map<String, String> params) throws Exception {
+        int members = Integer.parseInt(params.getOrDefault("members", "1000"));
+        String mode = params.getOrDefault("mode", "shared");
+        if (!"shared".equals(mode) && !"legacy".equals(mode)) throw new IllegalArgumentException("未知模式: " + mode);
+        legacy = "legacy".equals(mode);
+
+        server = BenchServer.create(true);
+        String[] names = new String[members];
+        handlers = new BenchServer.QueuedHandler[members];
+        for (int i = 0; i < members; i++) {
+            names[i] = "member" + i;
+            handlers[i] = new BenchServer.QueuedHandler(server);
+            server.userLogin(names[i], handlers[i]);
+            online.put(names[i], handlers[i]);
+        }
+        group = new Group("bench", "基准群", names[0], names);
+        Group.addGroup(group);
+        for (BenchServer.QueuedHandler h : handlers) h.queueing = true;
+    }
+
+    @Override
+    public LongSupplier operation(String name) {
+        if (!"forward".equals(name)) throw new IllegalArgumentException("未知操作: " + name);
+        return () -> {
+            if (legacy) forwardLegacy("member0", CONTENT);
+            else server.forwardGroupMessage("member0", "bench", CONTENT);
+            long bytes = 0;
+            for (BenchServer.QueuedHandler h : handlers) bytes += h.drain();
+            return bytes;
+        };
+    }
+
+    /** 改为共用 Frame 之前的 forwardGroupMessage：字符串只拼一次，编码按收件人各做一次 */
+    private void forwardLegacy(String sender, String content) {
+        long seq = server.getMessageStore().append(MessageStore.groupConversation(group.getId()), sender, content);
+        String msg = "GROUP_MSG|" + sender + "|" + group.getId() + "|" + group.getGroupName() + "|" + seq + "|" + content;
+        for (String member : group.getMembers()) {
+            ClientHandler h = online.get(member);
+            if (h != null) h.sendMessage(msg);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+import chatroom.bench.Workload;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.LongSupplier;
+
+/**
+ * 群的查找与成员操作：Group.findGroupById、isMember、registry.groupsOf、addMember / removeMember
+ * 每群 --members 人（默认 50），从 5000 个用户里随机抽取；查询参数预先随机生成，循环使用。
+ */
+public class GroupRegistryWorkload implements Workload {
+    private static final int USERS = 5000;
+    private static final int QUERIES = 1024;                 // 2 的幂，下标用 & 取模
+
+    private final String[] ids = new String[QUERIES];
+    private final Group[] groups = new Group[QUERIES];
+    private final String[] names = new String[QUERIES];
+    private int next;
+
+    @Override
+    public void setup(Map<String, String> params) {
+        int count = Integer.parseInt(params.getOrDefault("groups", "1000"));
+        int members = Integer.parseInt(params.getOrDefault("members", "50"));
+        Random rnd = new Random(42);
+        Group[] all = new Group[count];
+        for (int g = 0; g < count; g++) {
+            Set<String> m = new HashSet<>();
+            while (m.size() < members) m.add("user" + rnd.nextInt(USERS));
+            String[] arr = m.toArray(new String[0]);
+            all[g] = new Group("g" + g, "群" + g, arr[0], arr);
+            Group.addGroup(all[g]);
+        }
+        for (int i = 0; i < QUERIES; i++) {
+            int g = rnd.nextInt(count);
+            ids[i] = "g" + g;
+            groups[i] = all[g];
+            names[i] = "user" + rnd.nextInt(USERS);
+        }
+    }
+
+    @Override
+    public LongSupplier operation(String name) {
+        switch (name) {
+            case "findById":
+                return () -> Group.findGroupById(ids[advance()]).getMemberCount();
+            case "isMember":
+                return () -> {
+                    int i = advance();
+                    return groups[i].isMember(names[i]) ? 1 : 0;
+                };
+            case "groupsOf":
+                return () -> Group.registry.groupsOf(names[advance()]).size();
+            case "addRemoveMember":
+                return () -> {
+                    int i = advance();
+                    Group g = groups[i];
+                    String u = "joiner" + (i & 7);
+                    g.addMember(u);
+                    g.removeMember(u);
+                    return g.getMemberCount();
+                };
+            default:
+                throw new IllegalArgumentException("未知操作: " + name);
+        }
+    }
+
+    private int advance() {
+        int i = next;
+        next = (i + 1) & (QUERIES - 1);
+        return i;
+    }
+}
@@ -0,0 +1,51 @@
+import chatroom.bench.Workload;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.function.LongSupplier;
+
+/**
+ * 登录路径上随账号数可能变慢的操作（账号数见 LoginBench 的 accounts）
+ *   lookup  按用户名查账号：UserDirectory.find
+ *   login   增量客户端登录再断开：userLogin + connectionClosed，
+ *           即在线表替换、离线暂存计数、在线快照、所在的群、上下线通知进合并窗口
+ * 用户名预先随机生成，循环使用。
+ */
+public class LoginWorkload implements Workload {
+    private static final int NAMES = 4096;                   // 2 的幂，下标用 & 取模
+
+    private final String[] names = new String[NAMES];
+    private ChatServer server;
+    private BenchServer.FakeHandler handler;
+    private int next;
+
+    @Override
+    public void setup(Map<String, String> params) throws Exception {
+        int accounts = Integer.parseInt(params.getOrDefault("accounts", "1000"));
+        server = BenchServer.create(true);
+        user.directory.clear();
+        for (int i = 0; i < accounts; i++) user.directory.register(new user("user" + i, "pw" + i));
+        Random rnd = new Random(42);
+        for (int i = 0; i < NAMES; i++) names[i] = "user" + rnd.nextInt(accounts);
+        handler = new BenchServer.FakeHandler(server);
+        handler.delta = true;
+    }
+
+    @Override
+    public LongSupplier operation(String name) {
+        switch (name) {
+            case "lookup":
+                return () -> user.directory.find(names[next++ & (NAMES - 1)]).getPassword().length();
+            case "login":
+                return () -> {
+                    String username = names[next++ & (NAMES - 1)];
+                    handler.username = username;
+                    server.userLogin(username, handler);
+                    server.connectionClosed(handler);
+                    return handler.frames;
+                };
+            default:
+                throw new IllegalArgumentException("未知操作: " + name);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+import chatroom.bench.Workload;
+
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * 注册新账号：UserDirectory.registerIndexed（哈希索引 + 按注册顺序追加）
+ * 目录里先有 accounts 个账号；账号只增不删，所以基准每轮迭代重新 setup，只注册 batch 个，目录不会一直长下去。
+ * 新用户名预先生成，不计入测量。
+ */
+public class RegisterWorkload implements Workload {
+    private UserDirectory directory;
+    private String[] names;
+    private int next;
+
+    @Override
+    public void setup(Map<String, String> params) {
+        int accounts = Integer.parseInt(params.getOrDefault("accounts", "1000"));
+        int batch = Integer.parseInt(params.getOrDefault("batch", "10000"));
+        directory = new UserDirectory();
+        for (int i = 0; i < accounts; i++) directory.register(new user("user" + i, "pw" + i));
+        names = new String[batch];
+        for (int i = 0; i < batch; i++) names[i] = "new" + i;
+        next = 0;
+    }
+
+    @Override
+    public LongSupplier operation(String name) {
+        if (!"register".equals(name)) throw new IllegalArgumentException("未知操作: " + name);
+        return () -> directory.registerIndexed(new user(names[next++ % names.length], "pw"));
+    }
+}
@@ -0,0 +1,40 @@
+import chatroom.bench.Workload;
+
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * 全量用户列表的拼接与编码
+ *   legacy  sendFullUserList：旧客户端每次登录收到的 USERLIST:
+ *   sync    syncUserList 版本为 0：新客户端首次登录或缓存失效时收到的 USERLIST_FULL|
+ */
+public class UserListWorkload implements Workload {
+    private ChatServer server;
+    private BenchServer.FakeHandler handler;
+
+    @Override
+    public void setup(Map<String, String> params) throws Exception {
+        int users = Integer.parseInt(params.getOrDefault("users", "1000"));
+        server = BenchServer.create(true);
+        for (int i = 0; i < users; i++) user.directory.register(new user("user" + i, "pw" + i));
+        handler = new BenchServer.FakeHandler(server);
+    }
+
+    @Override
+    public LongSupplier operation(String name) {
+        switch (name) {
+            case "legacy":
+                return () -> {
+                    server.sendFullUserList(handler);
+                    return handler.bytes;
+                };
+            case "sync":
+                return () -> {
+                    server.syncUserList(handler, 0, "");
+                    return handler.bytes;
+                };
+            default:
+                throw new IllegalArgumentException("未知操作: " + name);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package chatroom.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * 服务器上行命令的解析与分发（见 CommandParsingWorkload）
+ *   java -jar benchmarks/server/target/benchmarks.jar CommandParsing
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CommandParsingBench {
+
+    @Param({"SEND", "GROUP_MSG", "UNKNOWN", "BINARY_SEND"})
+    public String command;
+
+    private LongSupplier op;
+
+    @Setup
+    public void setup() throws Exception {
+        Workload w = Workload.load("CommandParsingWorkload");
+        w.setup(Map.of());
+        op = w.operation(command);
+    }
+
+    @Benchmark
+    public long parse() {
+        return op.getAsLong();
+    }
+}
@@ -0,0 +1,41 @@
+package chatroom.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * 一条群消息投递给全体在线成员并从发送队列取走（见 GroupFanoutWorkload），按群人数看扩展性；
+ * mode=legacy 为每个收件人各编码一次的原做法，与只编码一次的 shared 对比
+ *   java -jar benchmarks/server/target/benchmarks.jar ForwardGroupMessage -p members=10,1000 -p mode=shared,legacy
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ForwardGroupMessageBench {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int members;
+
+    @Param({"shared", "legacy"})
+    public String mode;
+
+    private LongSupplier op;
+
+    @Setup
+    public void setup() throws Exception {
+        Workload w = Workload.load("GroupFanoutWorkload");
+        w.setup(Map.of("members", Integer.toString(members), "mode", mode));
+        op = w.operation("forward");
+    }
+
+    @Benchmark
+    public long forward() {
+        return op.getAsLong();
+    }
+}
@@ -0,0 +1,40 @@
+package chatroom.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * 群的查找与成员操作（见 GroupRegistryWorkload），按群数量看索引是否随规模退化
+ *   java -jar benchmarks/server/target/benchmarks.jar GroupRegistry -p groups=10000
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class GroupRegistryBench {
+
+    @Param({"100", "10000"})
+    public int groups;
+
+    @Param({"findById", "isMember", "groupsOf", "addRemoveMember"})
+    public String operation;
+
+    private LongSupplier op;
+
+    @Setup
+    public void setup() throws Exception {
+        Workload w = Workload.load("GroupRegistryWorkload");
+        w.setup(Map.of("groups", Integer.toString(groups)));
+        op = w.operation(operation);
+    }
+
+    @Benchmark
+    public long run() {
+        return op.getAsLong();
+    }
+}
@@ -0,0 +1,71 @@
+package chatroom.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * 登录路径随账号数的变化（见 LoginWorkload、RegisterWorkload），三项都应基本持平
+ *   lookup    按用户名查账号
+ *   login     增量客户端登录再断开（在线状态的改变）
+ *   register  注册新账号；账号只增不删，改为每轮迭代重建目录后连续注册 REGISTER_BATCH 个，报告整批耗时
+ *   java -jar benchmarks/server/target/benchmarks.jar LoginBench -p accounts=1000,100000
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class LoginBench {
+    static final int REGISTER_BATCH = 10_000;
+
+    @Param({"1000", "10000", "100000"})
+    public int accounts;
+
+    private LongSupplier lookup;
+    private LongSupplier login;
+
+    @Setup
+    public void setup() throws Exception {
+        Workload w = Workload.load("LoginWorkload");
+        w.setup(Map.of("accounts", Integer.toString(accounts)));
+        lookup = w.operation("lookup");
+        login = w.operation("login");
+    }
+
+    @Benchmark
+    public long lookup() {
+        return lookup.getAsLong();
+    }
+
+    @Benchmark
+    public long login() {
+        return login.getAsLong();
+    }
+
+    /** register 用的目录：每轮迭代重建 */
+    @State(Scope.Thread)
+    public static class Registration {
+        LongSupplier register;
+
+        @Setup(Level.Iteration)
+        public void setup(BenchmarkParams params) throws Exception {
+            Workload w = Workload.load("RegisterWorkload");
+            w.setup(Map.of("accounts", params.getParam("accounts"), "batch", Integer.toString(REGISTER_BATCH)));
+            register = w.operation("register");
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 5, batchSize = REGISTER_BATCH)
+    @Measurement(iterations = 10, batchSize = REGISTER_BATCH)
+    public long register(Registration r) {
+        return r.register.getAsLong();
+    }
+}
@@ -0,0 +1,40 @@
+package chatroom.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * 全量用户列表的拼接与编码（见 UserListWorkload）：旧客户端的 USERLIST: 与增量协议首次同步的 USERLIST_FULL|
+ *   java -jar benchmarks/server/target/benchmarks.jar UserList -p users=10000
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class UserListBench {
+
+    @Param({"100", "1000", "10000"})
+    public int users;
+
+    @Param({"legacy", "sync"})
+    public String protocol;
+
+    private LongSupplier op;
+
+    @Setup
+    public void setup() throws Exception {
+        Workload w = Workload.load("UserListWorkload");
+        w.setup(Map.of("users", Integer.toString(users)));
+        op = w.operation(protocol);
+    }
+
+    @Benchmark
+    public long fullList() {
+        return op.getAsLong();
+    }
+}
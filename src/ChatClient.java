@@ -8,25 +8,32 @@
 //通过一个独立线程异步接收来自服务器的消息。
 //通过 sendCommand 方法向服务器发送格式化的命令（包括聊天消息、登录、登出、注册等）。
 //消息处理与分发: 解析服务器下发的不同类型的消息（聊天内容、用户状态、用户列表更新），并通过回调机制通知外部组件（如UI）。
-//编码: 使用 UTF-8 编码处理输入输出，支持多语言。
+//编码: 使用 UTF-8 编码处理输入输出，支持多语言；连接时协商二进制协议（见 BinaryProtocol），旧服务器不支持时继续用文本行。
 //错误处理: 对网络IO异常进行了基本的捕获和处理，并更新连接状态
 import chatclient.logger.MessageLogger;
 import javax.swing.*;
 import java.io.*;
 import java.net.InetAddress;
+import java.net.ProtocolException;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
 public class ChatClient {
     private Socket socket; // 用于与服务器进行网络通信的套接字
-    private BufferedReader in; // 从服务器读取数据的缓冲读取器
-    private BufferedWriter out; // 向服务器写入数据的缓冲写入器
+    private InputStream in; // 从服务器读取数据（文本模式自己按行切分，协商二进制后同一个流接着按帧读）
+    private OutputStream out; // 向服务器写入数据，写一条命令 flush 一次
+    private volatile boolean binary = false; // 已与服务器协商使用二进制协议
+    private final ByteArrayOutputStream lineBuf = new ByteArrayOutputStream(); // 未读完的半行（协商超时时可能读到一半）
+    private static final int NEGOTIATE_TIMEOUT_MS = 2000; // 旧服务器不回应协商，等这么久后按文本协议继续
     private String username; // 当前客户端的用户名
     private boolean isConnected = false; //标记客户端是否已连接到服务器，默认为 false
     private static final String SERVER_ADDRESS = "127.0.0.1"; // 服务器的 IP 地址 (本地回环地址)   此地址在不同设备登陆时需要改为实际服务器地址  总共有两个需要改
     private static final int SERVER_PORT = 8070; // 服务器监听的端口号
+    private static final String USER_CACHE = "userstmp.txt"; // 本地缓存的用户列表（顺序与服务器注册顺序一致）
 
 
     private static volatile String pendingPeer   = null;   // 发送端：对方
@@ -35,9 +42,29 @@ public class ChatClient {
     private static volatile File   incomingSave  = null;   // 接收端：保存路径
 
 
+    // 每个会话已收到的序号（会话 ID 与 MessageLogger 相同：私聊为对方用户名，群聊为 GROUP_群ID）
+    // 同一条消息可能经离线推送、实时转发、历史同步多次到达，按序号去重
+    private final ConcurrentMap<String, SeqWindow> seen = new ConcurrentHashMap<>();
+    private volatile boolean syncStateLoaded = false;
+
+    // 登录时的群快照还剩几条 ADDGROUP 没收到：快照期间不逐条存盘、刷新界面，收完统一做一次
+    private int groupSnapshotRemaining = 0;
+    // 正在接收的找群结果（GROUP_DIRECTORY 行），收到 GROUP_DIRECTORY_END 时交给回调
+    private final List<String[]> groupDirectory = new ArrayList<>();
+
+    // 服务器下行消息的分发表，见 buildHandlers；onServerMessage 注册的放在 custom 里，先于 HANDLERS 查
+    private static final ServerMessageDispatcher<ChatClient> HANDLERS = buildHandlers();
+    private final ServerMessageDispatcher<ChatClient> custom = new ServerMessageDispatcher<>();
+
     // 监听服务器消息的线程
     private Thread messageListener;
 
+    // 端到端延迟追踪（-Dchat.trace=true 时开启，见 MessageLatency）；以下三个字段只在监听线程使用
+    private final MessageLatency latency = Boolean.getBoolean("chat.trace") ? new MessageLatency() : null;
+    private long lastReadNanos;          // 监听线程读到当前这条消息的时间
+    private long tracedSeq = -1;         // 上一条实时聊天消息的序号，等紧跟其后的 TRACE 行
+    private long tracedArrivedNanos;
+
     // 消息回调接口，用于通知UI更新这个回调机制用于将从服务器接收到的信息（如新消息、用户状态改变）通知给用户界面 (UI) 或其他需要这些信息的组件，从而实现解耦。
     private MessageCallback messageCallback;
 
@@ -50,6 +77,9 @@ public class ChatClient {
         void onGroupMemberJoined(String groupId, String groupName, String username);
         void onGroupFileListReceived(String groupId, java.util.List<String> files);
 
+        /** 找群结果：每项为 {群ID, 群名, 创建者, 成员数}；nextOffset 为 -1 表示没有下一页 */
+        default void onGroupDirectory(java.util.List<String[]> groups, int nextOffset, int total) {}
+
     }
 
     public ChatClient(String username) {
@@ -64,16 +94,19 @@ public class ChatClient {
     public boolean connect(int mode) {
         try {
             socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
-            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+            in = new BufferedInputStream(socket.getInputStream(), 8 * 1024);
+            out = new BufferedOutputStream(socket.getOutputStream(), 8 * 1024);
 
+            List<String> early = negotiateProtocol();
+            if (latency != null) sendCommand("TRACE|1");
+            syncUserList();                          // 先报本地缓存的版本，服务器就不再推全量列表
             if(mode==1) {
                 sendCommand("TOLOGIN");
             }
 
-            startMessageListener();
-
             isConnected = true;
+            startMessageListener(early);
+            startLatencyDump();
             return true;
         } catch (IOException e) {
             e.printStackTrace();   // 看 stackTrace
@@ -90,6 +123,8 @@ public class ChatClient {
                 if(mode==1)
                 {sendCommand("LOGOUT:" + username);
                 }
+                saveSyncState();
+                if (latency != null) System.out.println(latency.report());
                 isConnected = false;
                 if (messageListener != null) {
                     messageListener.interrupt();
@@ -103,12 +138,62 @@ public class ChatClient {
             }
         }
     }
-    private void startMessageListener() {
+    /**
+     * 请求切换到二进制协议，等服务器应答后再发其他命令
+     * @return 应答之前收到的文本行（如欢迎语），交给监听线程照常处理
+     */
+    private List<String> negotiateProtocol() throws IOException {
+        List<String> early = new ArrayList<>();
+        sendCommand(BinaryProtocol.HELLO);
+        socket.setSoTimeout(NEGOTIATE_TIMEOUT_MS);
+        try {
+            String line;
+            while ((line = readLine()) != null) {
+                if (line.startsWith("PROTO_OK|")) {
+                    binary = BinaryProtocol.HELLO_OK.equals(line);
+                    break;
+                }
+                early.add(line);
+            }
+        } catch (SocketTimeoutException e) {
+            System.out.println("服务器未应答协议协商，使用文本协议");
+        } finally {
+            socket.setSoTimeout(0);
+        }
+        return early;
+    }
+
+    /** 文本模式读一行（UTF-8，不含行尾）；连接关闭返回 null */
+    private String readLine() throws IOException {
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                if (lineBuf.size() == 0) return null;
+                break;
+            }
+            if (b != '\r') lineBuf.write(b);
+        }
+        String line = lineBuf.toString(StandardCharsets.UTF_8);
+        lineBuf.reset();
+        return line;
+    }
+
+    private void startMessageListener(List<String> early) {
         messageListener = new Thread(() -> {
             try {
-                String message;
-                while (isConnected && (message = in.readLine()) != null) {
-                    processServerMessage(message);
+                for (String message : early) processServerMessage(message);
+                while (isConnected) {
+                    if (binary) {
+                        byte[] frame = BinaryProtocol.readFrame(in, BinaryProtocol.MAX_DOWNSTREAM_FRAME_BYTES);
+                        if (frame == null) break;
+                        lastReadNanos = System.nanoTime();
+                        processServerFrame(frame);
+                    } else {
+                        String message = readLine();
+                        if (message == null) break;
+                        lastReadNanos = System.nanoTime();
+                        processServerMessage(message);
+                    }
                 }
             } catch (IOException e) {
                 if (isConnected) {
@@ -120,339 +205,419 @@ public class ChatClient {
         messageListener.start();
     }
 
-    private void processServerMessage(String message) {
-        // ChatClient.processServerMessage
+    /** 处理一行下行消息（包内可见，供基准测试调用） */
+    void processServerMessage(String message) {
+        // 不认识的消息（如欢迎语）忽略
+        if (custom.isEmpty() || !custom.dispatch(this, message)) HANDLERS.dispatch(this, message);
+    }
 
-        if ("ACCOUNT_CONFLICT".equals(message)) {
-            javax.swing.JOptionPane.showMessageDialog(null,
-                    "账号已在另一处登录，您被迫下线！", "提示",
-                    javax.swing.JOptionPane.WARNING_MESSAGE);
+    /** 消息延迟统计（未开启追踪时为 null），供调试界面显示 */
+    public String getLatencyReport() {
+        return latency == null ? null : latency.report();
+    }
+
+    /** -Dchat.trace.dump.s=N：每 N 秒在控制台打印一次延迟统计 */
+    private void startLatencyDump() {
+        int seconds = Integer.getInteger("chat.trace.dump.s", 0);
+        if (latency == null || seconds <= 0) return;
+        Thread dumper = new Thread(() -> {
             try {
-                System.exit(0);
-            } catch (Exception ignore) {}
-
-            // 不直接调用System.exit(0)，而是通过回调通知UI层处理关闭逻辑
-            return;            // 别再往下解析
-        }
-        System.out.println("您已接收到一个消息"+message);
-        if (message.startsWith("MSG:")) {
-            // 格式: MSG:sender:receiver:content
-            String[] parts = message.split(":", 4);
-            if (parts.length >= 4 && messageCallback != null) {
-
-                String sender   = parts[1];
-                String receiver = parts[2];
-                String content  = parts[3];
-                if (sender.equalsIgnoreCase(this.username)) {
-                    // 这条消息是自己发的，UI 已经展示过，直接忽略
-                    return;
+                while (isConnected) {
+                    Thread.sleep(seconds * 1000L);
+                    System.out.println(latency.report());
                 }
-                //使按钮闪烁
-                /* ★ 关键：谁是“对话对象”？ */
-                // 如果 sender 就是自己 ⇒ peer = receiver
-                // 否则 peer = sender          （正常收到别人发来的私聊）
-                String peer = sender.equalsIgnoreCase(this.username)
-                        ? receiver
-                        : sender;
-                /* —— 日志保持不变，存到以 peer 命名的会话目录 —— */
-                MessageLogger.write(this.username,  // 当前登录人目录
-                        peer,           // 会话 ID          (★)
-                        sender,         // 真实发送者
-                        content);       // 文本内容
-
-                /* —— 只把 peer 传回 UI —— */
-                messageCallback.onMessageReceived(peer, content);
+            } catch (InterruptedException ignored) {
             }
-        }
-
-        else if (message.startsWith("GROUP_MSG|")) {
-            // 群聊消息格式: GROUP_MSG|发送者|群组ID|群组名|内容
-            String[] parts = message.split("\\|", 5);
-            if (parts.length >= 5 && messageCallback != null) {
-                String sender = parts[1];
-                String groupId = parts[2];
-                String groupName = parts[3];
-                String content = parts[4];
-
-                // 为这种消息类型添加一个新的回调方法
-                // 或者使用现有的 onMessageReceived，但标明是群消息
-                // 例如：messageCallback.onGroupMessageReceived(sender, groupId, groupName, content);
+        }, "latency-dump");
+        dumper.setDaemon(true);
+        dumper.start();
+    }
 
-                MessageLogger.write(this.username,
-                        "GROUP_" + groupId,
-                        sender,
-                        content);
+    /** 记下刚收到的实时聊天消息，紧跟其后的 TRACE 行按序号与它对上 */
+    private void noteTraced(long seq) {
+        if (latency == null) return;
+        tracedSeq = seq;
+        tracedArrivedNanos = lastReadNanos;
+    }
 
-                // 如果选择使用现有回调，可以在消息前添加标识
-                messageCallback.onGroupMessageReceived(sender, groupId, content);
-            }
+    /** TRACE|序号|服务器收到|开始投递|写出（纪元微秒） */
+    private void onTrace(String[] p) {
+        if (latency == null) return;
+        long seq = parseSeq(p[1]);
+        if (seq <= 0 || seq != tracedSeq) {
+            latency.recordUnmatched();
+            return;
         }
-        // 在 ChatClient 的消息处理中添加
-        else if (message.equals("ACCOUNT_CONFLICT")) {
-            System.err.println("账号在其他地方登录，已被迫下线！");
-            try { socket.close(); } catch (IOException ex) {}
-            isConnected = false;
+        tracedSeq = -1;
+        try {
+            latency.record(Long.parseLong(p[2]), Long.parseLong(p[3]), Long.parseLong(p[4]), tracedArrivedNanos);
+        } catch (NumberFormatException e) {
+            latency.recordUnmatched();
         }
-        else if (message.startsWith("GROUP_MEMBER_JOINED|")) {
-            String[] parts = message.split("\\|");
-            if (parts.length >= 4) {
-                String groupId = parts[1];
-                String groupName = parts[2];
-                String username = parts[3];
+    }
 
-                if (messageCallback != null) {
-                    messageCallback.onGroupMemberJoined(groupId, groupName, username);
-                }
-            }
-        }else if (message.startsWith("STATUSOFF:")) {
-            String[] parts = message.split(" ", 2);
-            if (parts.length >= 2 && messageCallback != null) {
-                for (user u : user.userList) {
-                    if (u.getName().equals(parts[1])) {
-                        u.setStatus(false);
-                        System.out.println("用户 " + parts[1] + " 已下线");
+    /**
+     * 为本连接注册一种下行消息的处理器（内置的同名处理器会被覆盖），如
+     * onServerMessage("NOTICE|", (client, msg) -> ...)。消息字的规则见 ServerMessageDispatcher。
+     */
+    public void onServerMessage(String key, ServerMessageDispatcher.LineHandler<ChatClient> handler) {
+        custom.on(key, handler);
+    }
+
+    /**
+     * 下行消息分发表：所有连接共用，处理器按 (连接, 消息) 调用（同服务器的 ClientHandler.COMMANDS）。
+     * 不在构造函数里逐个注册捕获 this 的 lambda，对象还没构造完就不会被交出去。
+     * 高频的聊天消息写在前面只是为了好读，查表与顺序无关
+     */
+    private static ServerMessageDispatcher<ChatClient> buildHandlers() {
+        return new ServerMessageDispatcher<ChatClient>()
+                /* ========== 聊天 ========== */
+                // 格式: MSG:sender:receiver:seq:content
+                .on("MSG:", 5, (c, p) -> c.onPrivateMessage(p[1], p[2], parseSeq(p[3]), p[4]))
+                // 群聊消息格式: GROUP_MSG|发送者|群组ID|群组名|序号|内容
+                .on("GROUP_MSG|", 6, (c, p) -> c.onGroupMessage(p[1], p[2], parseSeq(p[4]), p[5]))
+                // 自己发出的私聊已入库: MSG_ACK:receiver:seq
+                .on("MSG_ACK:", 3, (c, p) -> c.markSeen(p[1], parseSeq(p[2])))
+                // 链路追踪，紧跟在 MSG / GROUP_MSG 后面: TRACE|序号|收到|投递|写出
+                .on("TRACE|", 5, ChatClient::onTrace)
+                // 一页历史发完: SYNC_PAGE|会话|本页最后序号|还有没有(1/0)
+                .on("SYNC_PAGE|", 4, (c, p) -> {
+                    if ("1".equals(p[3])) c.sendCommand("SYNC_NEXT|" + p[1] + "=" + p[2]);
+                    else c.saveSyncState();
+                })
+
+                /* ========== 上下线与用户列表 ========== */
+                .on("PRESENCE|", ChatClient::onPresence)
+                .on("ONLINE_LIST|", (c, message) -> {
+                    // 当前在线的用户: ONLINE_LIST|a,b,c
+                    Set<String> online = new HashSet<>(Arrays.asList(message.substring("ONLINE_LIST|".length()).split(",")));
+                    synchronized (user.userList) {
+                        for (user u : user.userList) u.setStatus(online.contains(u.getName()));
                     }
-                }
-                user.saveUsersToFile("userstmp.txt");
-                messageCallback.onUserStatusChanged();
-            }
-        } else if(message.startsWith("STATUSON:")) {
-            String[] parts = message.split(" ", 2);
-            if (parts.length >= 2 && messageCallback != null) {
-                int ifcunzai=0;
-                for (user u : user.userList) {
-                    if (u.getName().equals(parts[1])) {
-                        u.setStatus(true);
-                        System.out.println("用户 " + parts[1] + " 已上线");
-                        ifcunzai++;
+                    if (c.messageCallback != null) c.messageCallback.onUserStatusChanged();
+                })
+                .on("STATUSON:", 2, (c, p) -> c.onStatus(p[1].trim(), true))
+                .on("STATUSOFF:", 2, (c, p) -> c.onStatus(p[1].trim(), false))
+                .on("USERLIST_FULL|", 3, (c, p) -> {
+                    // 全量用户列表: USERLIST_FULL|版本|name,pw,status;...
+                    synchronized (user.userList) {
+                        user.userList.clear();
+                        user.userList.addAll(parseUserEntries(p[2]));
+                        user.saveUsersToFile(USER_CACHE);
                     }
-                }
-                if(ifcunzai==0)
-                {
-                    user u=new user(parts[1],"***",true);
-                    user.userList.add(u);
-                }
-                user.saveUsersToFile("userstmp.txt");
-                messageCallback.onUserStatusChanged();
-            }
-        } else if (message.equals("USERLIST")) {
-            // 用户列表请求
-            sendCommand("USERLIST:" + username);
-        }
-        else if (message.equals("USERLIST_UPDATED")) {
-            // 用户列表已更新
-            if (messageCallback != null) {
-                messageCallback.onUserListUpdated();
-            }
-        }
-        else if (message.startsWith("ADDGROUP|")) {
-            // 解析群组信息: ADDGROUP|groupId|groupName|creatorName|members
-            String[] parts = message.split("\\|");
-            if (parts.length >= 5) {
-                String groupId = parts[1];
-                String groupName = parts[2];
-                String creatorName = parts[3];
-                String[] memberArray = parts[4].split(",");
-
-                // 检查这个群组是否已经存在
-                boolean groupExists = false;
-                for (Group group : Group.GroupList) {
-                    if (group.getId().equals(groupId)) {
-                        groupExists = true;
-                        break;
+                    if (c.messageCallback != null) c.messageCallback.onUserListUpdated();
+                })
+                // 增量用户列表: USERLIST_DELTA|起始版本|新版本|name,pw,status;...
+                .on("USERLIST_DELTA|", 4, (c, p) -> c.onUserListDelta(Integer.parseInt(p[1]), Integer.parseInt(p[2]), p[3]))
+                .on("USERLIST", (c, message) -> {
+                    // 用户列表请求
+                    c.sendCommand("USERLIST:" + c.username);
+                })
+                .on("USERLIST_UPDATED", (c, message) -> {
+                    // 用户列表已更新
+                    if (c.messageCallback != null) c.messageCallback.onUserListUpdated();
+                })
+                .on("USERLIST:", (c, message) -> {
+                    // 解析用户列表信息
+                    String userListData = message.substring(9); // 去掉"USERLIST:"前缀
+                    synchronized (user.userList) {
+                        user.userList.clear(); // 清空现有列表避免重复
+                        user.userList.addAll(parseUserEntries(userListData));
+                        user.saveUsersToFile(USER_CACHE);
                     }
-                }
-
-                // 如果群组不存在，则添加到本地群组列表中
-                if (!groupExists) {
-                    // 创建成员列表
-                    List<String> memberList = new ArrayList<>();
-                    for (String member : memberArray) {
-                        if (!member.trim().isEmpty()) {
-                            memberList.add(member.trim());
-                        }
-                    }
-
-                    // 创建新群组
-                    Group newGroup = new Group(groupName, creatorName, memberList);
-
-                    // 设置正确的群组ID（因为构造函数会生成新ID）
+                })
+                .on("ACCOUNT_CONFLICT", (c, message) -> {
+                    javax.swing.JOptionPane.showMessageDialog(null,
+                            "账号已在另一处登录，您被迫下线！", "提示",
+                            javax.swing.JOptionPane.WARNING_MESSAGE);
                     try {
-                        java.lang.reflect.Field idField = Group.class.getDeclaredField("id");
-                        idField.setAccessible(true);
-                        idField.set(newGroup, groupId);
-                    } catch (Exception e) {
-                        System.err.println("无法设置群聊ID: " + e.getMessage());
+                        System.exit(0);
+                    } catch (Exception ignore) {}
+                })
+
+                /* ========== 群组 ========== */
+                .on("ADDGROUP|", 5, ChatClient::onAddGroup)
+                // 登录时的群快照: GROUP_SNAPSHOT|群数，后面紧跟这么多条 ADDGROUP
+                .on("GROUP_SNAPSHOT|", 2, (c, p) -> c.groupSnapshotRemaining = Integer.parseInt(p[1].trim()))
+                .on("GROUP_MEMBER_JOINED|", 4, (c, p) -> {
+                    if (c.messageCallback != null) c.messageCallback.onGroupMemberJoined(p[1], p[2], p[3]);
+                })
+                // 找群结果: GROUP_DIRECTORY|群ID|群名|创建者|成员数
+                .on("GROUP_DIRECTORY|", 5, (c, p) -> c.groupDirectory.add(new String[]{p[1], p[2], p[3], p[4]}))
+                .on("GROUP_DIRECTORY_END|", 3, (c, p) -> {
+                    // GROUP_DIRECTORY_END|下一页起始位置|匹配总数
+                    List<String[]> page = new ArrayList<>(c.groupDirectory);
+                    c.groupDirectory.clear();
+                    if (c.messageCallback != null) {
+                        c.messageCallback.onGroupDirectory(page, Integer.parseInt(p[1]), Integer.parseInt(p[2]));
                     }
+                })
+                .on("GROUP_FILE_LIST|", 3, (c, p) -> {
+                    // 格式: GROUP_FILE_LIST|<groupId>|file1,file2,...
+                    if (c.messageCallback == null) return;
+                    List<String> files = p[2].isEmpty()
+                            ? Collections.emptyList()
+                            : Arrays.asList(p[2].split(","));
+                    c.messageCallback.onGroupFileListReceived(p[1], files);
+                })
+
+                /* ========== 私聊文件 ========== */
+                // FILE_OFFER <toUser> <fromUser> <fileName> <size>
+                .on("FILE_OFFER ", 5, ChatClient::onFileOffer)
+                .on("FILE_ACCEPT ", (c, message) -> c.onFileAccept())
+                .on("FILE_DENY ", (c, message) -> {
+                    // 对方拒绝：直接清空发送端状态
+                    pendingPeer = null;
+                    pendingFile = null;
+                    JOptionPane.showMessageDialog(null, "对方拒绝接收文件");
+                })
+                // FILE_CONNECT <toUser> <fromUser> <ip> <port> <fileName>
+                .on("FILE_CONNECT ", 6, ChatClient::onFileConnect);
+    }
 
-                    // 添加到群组列表并保存到文件
-                    Group.GroupList.add(newGroup);
-                    Group.saveGroupsToFile("groupstmp.txt");
-
-                    System.out.println("已添加新群组: " + groupName + " (ID: " + groupId + ")");
+    /** 合并后的上下线变化: PRESENCE|+上线者,-下线者,... */
+    private void onPresence(String message) {
+        Map<String, Boolean> changes = new HashMap<>();
+        for (String entry : message.substring("PRESENCE|".length()).split(",")) {
+            if (entry.length() > 1) changes.put(entry.substring(1), entry.charAt(0) == '+');
+        }
+        boolean unknown;
+        synchronized (user.userList) {
+            for (user u : user.userList) {
+                Boolean on = changes.remove(u.getName());
+                if (on != null) u.setStatus(on);
+            }
+            unknown = changes.containsValue(Boolean.TRUE);
+        }
+        if (unknown) syncUserList();                 // 有本地列表里没有的人上线：缓存落后了
+        if (messageCallback != null) messageCallback.onUserStatusChanged();
+    }
 
-                    // 如果当前用户是群组成员，通知UI更新群组列表
-                    if (messageCallback != null && newGroup.isMember(username)) {
-                        messageCallback.onUserListUpdated();
-                    }
+    /** 旧服务器逐条推送的 STATUSON: / STATUSOFF: */
+    private void onStatus(String name, boolean online) {
+        if (messageCallback == null) return;
+        boolean known = false;
+        synchronized (user.userList) {
+            for (user u : user.userList) {
+                if (u.getName().equals(name)) {
+                    u.setStatus(online);
+                    known = true;
                 }
-            } else {
-                System.err.println("收到格式不正确的群组信息: " + message);
             }
         }
-        else if (message.startsWith("USERLIST:")) {
-            // 解析用户列表信息
-            user.userList.clear(); // 清空现有列表避免重复
-            String userListData = message.substring(9); // 去掉"USERLIST:"前缀
-            System.out.println("测试客户端是否收到用户信息："+userListData);
-            String[] userEntries = userListData.split(";");
-            for (String userEntry : userEntries) {
-                if (userEntry.isEmpty()) continue;
-
-                String[] userData = userEntry.split(",");
-                if (userData.length >= 3) {
-                    String name = userData[0];
-                    String password = userData[1];
-                    boolean status = Boolean.parseBoolean(userData[2]);
-
-                    user u = new user(name, password,status);
-                    user.userList.add(u);
-                }
+        if (online && !known) {
+            // 本地列表里没有这个人，说明缓存落后了，补一次增量
+            syncUserList();
+        }
+        messageCallback.onUserStatusChanged();
+    }
+
+    private void onUserListDelta(int from, int to, String entries) {
+        boolean applied;
+        synchronized (user.userList) {
+            int have = user.userList.size();
+            applied = have == from;
+            if (applied) {
+                user.userList.addAll(parseUserEntries(entries));
+                user.saveUsersToFile(USER_CACHE);
+            } else if (have >= to) {
+                return;                          // 已经有了（多个连接都同步过）
             }
+        }
+        if (!applied) syncUserList();            // 中间缺了一段：重新按本地版本同步
+        else if (messageCallback != null) messageCallback.onUserListUpdated();
+    }
 
-            user.saveUsersToFile("userstmp.txt");
+    /** 解析群组信息: ADDGROUP|groupId|groupName|creatorName|members */
+    private void onAddGroup(String[] parts) {
+        Group newGroup = addGroupFromServer(parts);
 
-            System.out.println("测试是否将用户加入");
-            for(user u : user.userList) {
-                System.out.println("用户名: " + u.getName() + ", 密码: " + u.getPassword() + ", 在线状态: " + u.isStatus());
+        if (groupSnapshotRemaining > 0) {
+            // 登录快照中的一条：收完最后一条再统一存盘、刷新
+            if (--groupSnapshotRemaining == 0) {
+                Group.saveGroupsToFile("groupstmp.txt");
+                if (messageCallback != null) messageCallback.onUserListUpdated();
+            }
+        } else if (newGroup != null) {
+            Group.saveGroupsToFile("groupstmp.txt");
+            // 如果当前用户是群组成员，通知UI更新群组列表
+            if (messageCallback != null && newGroup.isMember(username)) {
+                messageCallback.onUserListUpdated();
             }
         }
+    }
 
-        else if (message.startsWith("GROUP_FILE_LIST|")) {
-            // 格式: GROUP_FILE_LIST|<groupId>|file1,file2,...
-            String[] parts = message.split("\\|", 3);
-            if (parts.length == 3 && messageCallback != null) {
-                String groupId = parts[1];
-                List<String> files = parts[2].isEmpty()
-                        ? Collections.emptyList()
-                        : Arrays.asList(parts[2].split(","));
-                messageCallback.onGroupFileListReceived(groupId, files);
-            }
+    /* A. 收到文件邀请 → 只弹一次“保存到哪儿” */
+    private void onFileOffer(String[] p) {
+        if (incomingSave != null)
+        { sendCommand("FILE_DENY " + username); return; }
+
+        String from = p[2];
+        String FileName = p[3];
+        String size = p[4];
+
+        JFileChooser fc = new JFileChooser();
+        fc.setDialogTitle(from + " 想发送文件 (" + size + " bytes)");
+        fc.setSelectedFile(new File(FileName));
+
+        if (fc.showSaveDialog(null) == JFileChooser.APPROVE_OPTION) {
+            incomingPeer = from;           // 发送者昵称
+            incomingSave = fc.getSelectedFile();
+            // ★ ACK 填发送者昵称
+            sendCommand("FILE_ACCEPT " + from);
+        } else {
+            sendCommand("FILE_DENY " + from);
         }
+    }
 
-        /* A. 收到文件邀请 → 只弹一次“保存到哪儿” */
-        else if (message.startsWith("FILE_OFFER ")) {
-            if (incomingSave != null)
-            { sendCommand("FILE_DENY " + username); return; }
-
-            String[] p = message.split(" ", 5);
-            String to   = p[1];
-            String from = p[2];
-            String FileName = p[3];
-            String size = p[4];
-
-            JFileChooser fc = new JFileChooser();
-            fc.setDialogTitle(from + " 想发送文件 (" + size + " bytes)");
-            fc.setSelectedFile(new File(FileName));
-
-            if (fc.showSaveDialog(null) == JFileChooser.APPROVE_OPTION) {
-                incomingPeer = from;           // 发送者昵称
-                incomingSave = fc.getSelectedFile();
-                // ★ ACK 填发送者昵称
-                sendCommand("FILE_ACCEPT " + from);
-            } else {
-                sendCommand("FILE_DENY " + from);
-            }
+    /* B. 我（发送端）收到对方的 ACCEPT */
+    private void onFileAccept() {
+        if (pendingPeer == null || pendingFile == null) {
+            System.out.println("Peer="+pendingPeer+" File="+pendingFile);
+            System.err.println("⚠️ 没有待发送文件，却收到了 FILE_ACCEPT");
+            return;
         }
 
+        try {
+            int    port = FileTransferManager.serveFileOnce(pendingFile);
+            String ip   = InetAddress.getLocalHost().getHostAddress();
+
+            /* ★★★ 在第 2 段加上自己的昵称 (myName / username) ★★★ */
+            String cmd = "FILE_CONNECT "
+                    + pendingPeer      // 字段 1: 目标 (toUser)
+                    + " " + username     // 字段 2: 发送者 (fromUser)
+                    + " " + ip
+                    + " " + port
+                    + " " + pendingFile.getName();
+
+            System.out.println("SEND>> " + cmd);
+            sendCommand(cmd);
+        } catch (Exception ex) {
+            JOptionPane.showMessageDialog(null,
+                    "文件发送失败: " + ex.getMessage(), "错误", JOptionPane.ERROR_MESSAGE);
+            ex.printStackTrace();
+        } finally {
+            pendingPeer = null;
+            pendingFile = null;
+        }
+    }
 
-        /* B. 我（发送端）收到对方的 ACCEPT */
-        else if (message.startsWith("FILE_ACCEPT ")) {
+    /* D. 收到连接信息 → 开始下载 */
+    private void onFileConnect(String[] p) {
+        String fromUser = p[2];          // ltytest
+        String ip       = p[3];
+        int    port     = Integer.parseInt(p[4]);
 
-            if (pendingPeer == null || pendingFile == null) {
-                System.out.println("Peer="+pendingPeer+" File="+pendingFile);
-                System.err.println("⚠️ 没有待发送文件，却收到了 FILE_ACCEPT");
-                return;
-            }
+        /* ★ 校验：fromUser 必须等于我们之前记下的 incomingPeer */
+        if (!fromUser.equals(incomingPeer) || incomingSave == null) {
+            System.out.println("拦截: "+fromUser+" vs "+incomingPeer);
+            return;
+        }
 
+        new Thread(() -> {
             try {
-                int    port = FileTransferManager.serveFileOnce(pendingFile);
-                String ip   = InetAddress.getLocalHost().getHostAddress();
-
-                /* ★★★ 在第 2 段加上自己的昵称 (myName / username) ★★★ */
-                String cmd = "FILE_CONNECT "
-                        + pendingPeer      // 字段 1: 目标 (toUser)
-                        + " " + username     // 字段 2: 发送者 (fromUser)
-                        + " " + ip
-                        + " " + port
-                        + " " + pendingFile.getName();
-
-                System.out.println("SEND>> " + cmd);
-                sendCommand(cmd);
+                System.out.println("[DEBUG] try connect "+ip+":"+port);
+                FileTransferManager.receiveFile(ip, port, incomingSave);
+                JOptionPane.showMessageDialog(null,
+                        "文件接收完成，已保存到:\n" + incomingSave.getAbsolutePath());
             } catch (Exception ex) {
+                if (incomingSave.exists()) incomingSave.delete();
                 JOptionPane.showMessageDialog(null,
-                        "文件发送失败: " + ex.getMessage(), "错误", JOptionPane.ERROR_MESSAGE);
+                        "文件接收失败: " + ex.getMessage(),
+                        "错误", JOptionPane.ERROR_MESSAGE);
                 ex.printStackTrace();
             } finally {
-                pendingPeer = null;
-                pendingFile = null;
+                incomingPeer = null;
+                incomingSave = null;
             }
-        }
-
+        }).start();
+    }
 
-        /* C. 对方拒绝 */
-        else if (message.startsWith("FILE_DENY ")) {
-            // 直接清空发送端状态
-            pendingPeer = null;
-            pendingFile = null;
-            JOptionPane.showMessageDialog(null, "对方拒绝接收文件");
-        }
-
-        /* D. 我（接收端）收到连接信息 → 开始下载 */
-        /* D. 收到连接信息 → 开始下载 */
-        else if (message.startsWith("FILE_CONNECT ")) {
-            // FILE_CONNECT <toUser> <fromUser> <ip> <port> <fileName>
-            String[] p = message.split(" ", 6);
-            String toUser   = p[1];          // lty
-            String fromUser = p[2];          // ltytest
-            String ip       = p[3];
-            int    port     = Integer.parseInt(p[4]);
-
-            /* ★ 校验：fromUser 必须等于我们之前记下的 incomingPeer */
-            if (!fromUser.equals(incomingPeer) || incomingSave == null) {
-                System.out.println("拦截: "+fromUser+" vs "+incomingPeer);
-                return;
+    /** 二进制协议下收到的一帧：聊天消息直接取字段，其余命令仍是文本行（包内可见，供基准测试调用） */
+    void processServerFrame(byte[] frame) throws ProtocolException {
+        BinaryProtocol.Decoder d = new BinaryProtocol.Decoder(frame, 0, frame.length);
+        int op = d.op();
+        switch (op) {
+            case BinaryProtocol.OP_SERVER_TEXT:
+                processServerMessage(d.string());
+                break;
+            case BinaryProtocol.OP_MSG: {
+                String sender = d.string();
+                String receiver = d.string();
+                long seq = d.varint();
+                onPrivateMessage(sender, receiver, seq, d.string());
+                break;
+            }
+            case BinaryProtocol.OP_GROUP_MSG: {
+                String sender = d.string();
+                String groupId = d.string();
+                d.string();                                   // 群名，本地已有
+                long seq = d.varint();
+                onGroupMessage(sender, groupId, seq, d.string());
+                break;
+            }
+            case BinaryProtocol.OP_MSG_ACK: {
+                String receiver = d.string();
+                markSeen(receiver, d.varint());
+                break;
             }
+            default:
+                System.err.println("收到未知操作码 " + op + "，忽略");
+        }
+    }
 
-            new Thread(() -> {
-                try {
-                    System.out.println("[DEBUG] try connect "+ip+":"+port);
-                    FileTransferManager.receiveFile(ip, port, incomingSave);
-                    JOptionPane.showMessageDialog(null,
-                            "文件接收完成，已保存到:\n" + incomingSave.getAbsolutePath());
-                } catch (Exception ex) {
-                    if (incomingSave.exists()) incomingSave.delete();
-                    JOptionPane.showMessageDialog(null,
-                            "文件接收失败: " + ex.getMessage(),
-                            "错误", JOptionPane.ERROR_MESSAGE);
-                    ex.printStackTrace();
-                } finally {
-                    incomingPeer = null;
-                    incomingSave = null;
-                }
-            }).start();
+    /** 私聊消息（文本 MSG: 行与二进制 MSG 帧共用） */
+    private void onPrivateMessage(String sender, String receiver, long seq, String content) {
+        noteTraced(seq);
+        if (messageCallback == null) return;
+        //使按钮闪烁
+        /* ★ 关键：谁是“对话对象”？ */
+        // 如果 sender 就是自己 ⇒ peer = receiver
+        // 否则 peer = sender          （正常收到别人发来的私聊）
+        String peer = sender.equalsIgnoreCase(this.username)
+                ? receiver
+                : sender;
+        if (!markSeen(peer, seq)) {
+            // 已经收到过（离线推送和历史同步可能重复），忽略
+            return;
         }
+        if (sender.equalsIgnoreCase(this.username)) {
+            // 自己发的（只会来自历史同步，如换了电脑）：只补进本地记录，不再回调 UI
+            MessageLogger.write(this.username, peer, sender, content);
+            return;
+        }
+        /* —— 日志保持不变，存到以 peer 命名的会话目录 —— */
+        MessageLogger.write(this.username,  // 当前登录人目录
+                peer,           // 会话 ID          (★)
+                sender,         // 真实发送者
+                content);       // 文本内容
+
+        /* —— 只把 peer 传回 UI —— */
+        messageCallback.onMessageReceived(peer, content);
+    }
 
+    /** 群聊消息（文本 GROUP_MSG| 行与二进制 GROUP_MSG 帧共用） */
+    private void onGroupMessage(String sender, String groupId, long seq, String content) {
+        noteTraced(seq);
+        if (messageCallback == null) return;
+        if (!markSeen("GROUP_" + groupId, seq)) return;   // 重复到达
 
+        MessageLogger.write(this.username,
+                "GROUP_" + groupId,
+                sender,
+                content);
 
+        messageCallback.onGroupMessageReceived(sender, groupId, content);
     }
+
     //向服务器发送聊天消息
 
 
     public void sendMessage(String recipient, String content) {
         if (isConnected) {
-            // 消息格式: SEND:接收者:内容
-            sendCommand("SEND:" + recipient + ":" + content);
+            // 消息格式: SEND:接收者:内容（二进制协议下为 SEND 帧，内容不受分隔符限制）
+            if (binary) writeFrame(new BinaryProtocol.Encoder(BinaryProtocol.OP_SEND).string(recipient).string(content).frame());
+            else sendCommand("SEND:" + recipient + ":" + content);
             MessageLogger.write(this.username, recipient, this.username, content);
             System.out.println("1");
         }
@@ -470,6 +635,12 @@ public class ChatClient {
         sendCommand(cmd);
     }
 
+    /** 发送群聊消息: GROUP_MSG|群组ID|内容（二进制协议下为 GROUP_SEND 帧） */
+    public void sendGroupMessage(String groupId, String content) {
+        if (binary) writeFrame(new BinaryProtocol.Encoder(BinaryProtocol.OP_GROUP_SEND).string(groupId).string(content).frame());
+        else sendCommand("GROUP_MSG|" + groupId + "|" + content);
+    }
+
     /** 客户端加群 */
     public void joinGroup(String groupId, String username) {
         sendCommand("JOIN_GROUP|" + groupId + "|" + username);
@@ -486,10 +657,15 @@ public class ChatClient {
 
     //这是一个私有的辅助方法，用于将格式化后的命令字符串发送到服务器
     public void sendCommand(String command) {
+        if (binary) writeFrame(new BinaryProtocol.Encoder(BinaryProtocol.OP_TEXT).string(command).frame());
+        else writeFrame((command + "\n").getBytes(StandardCharsets.UTF_8));   // 一定要有行尾分隔，否则服务器读不到整行
+    }
+
+    /** 写出一条完整的命令；界面线程和监听线程都会发命令，整条写完再放开 */
+    private synchronized void writeFrame(byte[] data) {
         try {
-            out.write(command);   // 写入缓冲区
-            out.newLine();    // ① *一定* 要有行尾分隔，否则 readLine() 永远阻塞
-            out.flush();      // ② *一定* flush，别等缓冲区自己满
+            out.write(data);
+            out.flush();      // 一定 flush，别等缓冲区自己满
         } catch (IOException e) {
             e.printStackTrace();
             isConnected = false;
@@ -506,7 +682,7 @@ public class ChatClient {
     public List<String> listGroupFiles(String groupId) {
         sendCommand("GROUP_FILE_LIST_REQUEST|" + groupId);  // 同步/异步由你决定
         try {
-            String resp = in.readLine();       // 阻塞读一行
+            String resp = readServerLine();    // 阻塞读一行
             if (resp != null && resp.startsWith("FILES|")) {
                 String csv = resp.substring(6);   // 去掉 "FILES|"
                 if (csv.isEmpty()) return Collections.emptyList();
@@ -520,6 +696,15 @@ public class ChatClient {
 
 
 
+    /** 直接读下一条文本消息（二进制协议下取 TEXT 帧里的那一行） */
+    private String readServerLine() throws IOException {
+        if (!binary) return readLine();
+        byte[] frame = BinaryProtocol.readFrame(in, BinaryProtocol.MAX_DOWNSTREAM_FRAME_BYTES);
+        if (frame == null) return null;
+        BinaryProtocol.Decoder d = new BinaryProtocol.Decoder(frame, 0, frame.length);
+        return d.op() == BinaryProtocol.OP_SERVER_TEXT ? d.string() : null;
+    }
+
     /* === 向群上传文件 === */
     public void uploadGroupFile(String gid, File f) {
         sendCommand("GROUP_FILE_UPLOAD "+gid+" "+f.getName()+" "+f.length());
@@ -542,7 +727,176 @@ public class ChatClient {
         sendCommand("FILE_OFFER " + toUser + " " + username + " " + f.getName() + " " + f.length());
     }
 
+    /* === 群组 === */
+
+    /**
+     * 把服务器下发的 ADDGROUP 加入本地群列表
+     * @return 新加入的群；本地已有该群时返回 null
+     */
+    private Group addGroupFromServer(String[] parts) {
+        String groupId = parts[1];
+        String groupName = parts[2];
+        String creatorName = parts[3];
+        String[] memberArray = parts[4].split(",");
+
+        // 检查这个群组是否已经存在
+        for (Group group : Group.GroupList) {
+            if (group.getId().equals(groupId)) return null;
+        }
 
-}
+        // 创建成员列表
+        List<String> memberList = new ArrayList<>();
+        for (String member : memberArray) {
+            if (!member.trim().isEmpty()) {
+                memberList.add(member.trim());
+            }
+        }
+
+        // 创建新群组
+        Group newGroup = new Group(groupName, creatorName, memberList);
+
+        // 设置正确的群组ID（因为构造函数会生成新ID）
+        try {
+            java.lang.reflect.Field idField = Group.class.getDeclaredField("id");
+            idField.setAccessible(true);
+            idField.set(newGroup, groupId);
+        } catch (Exception e) {
+            System.err.println("无法设置群聊ID: " + e.getMessage());
+        }
 
+        Group.GroupList.add(newGroup);
+        System.out.println("已添加新群组: " + groupName + " (ID: " + groupId + ")");
+        return newGroup;
+    }
+
+    /** 分页找群（不在其中的群登录时不再下发），结果经 MessageCallback.onGroupDirectory 返回 */
+    public void discoverGroups(int offset, int limit, String keyword) {
+        sendCommand("DISCOVER_GROUPS|" + offset + "|" + limit + "|" + (keyword == null ? "" : keyword));
+    }
 
+    /* === 用户列表 === */
+
+    /** name,pw,status;name,pw,status;... */
+    private static List<user> parseUserEntries(String data) {
+        List<user> users = new ArrayList<>();
+        for (String userEntry : data.split(";")) {
+            if (userEntry.isEmpty()) continue;
+            String[] userData = userEntry.split(",");
+            if (userData.length >= 3) {
+                users.add(new user(userData[0], userData[1], Boolean.parseBoolean(userData[2])));
+            }
+        }
+        return users;
+    }
+
+    /**
+     * 报上本地用户列表的版本（账号数 + 最后一个账号名），服务器只回缺的部分。
+     * 首次调用时先从本地缓存文件加载；缓存里的在线状态已过期，一律置为离线，等 ONLINE_LIST 更新。
+     */
+    public void syncUserList() {
+        int version;
+        String last;
+        synchronized (user.userList) {
+            if (user.userList.isEmpty() && new File(USER_CACHE).exists()) {
+                user.loadUsersFromFile(USER_CACHE);
+                for (user u : user.userList) u.setStatus(false);
+            }
+            version = user.userList.size();
+            last = version == 0 ? "" : user.userList.get(version - 1).getName();
+        }
+        sendCommand("USERLIST_SYNC|" + version + "|" + last);
+    }
+
+    /* === 上下线订阅 === */
+
+    /** 服务器只推送关注者的上下线（私聊过、同群），其他人需要显式订阅，本次登录期间有效 */
+    public void subscribePresence(String... names) {
+        if (names.length > 0) sendCommand("SUBSCRIBE|" + String.join(",", names));
+    }
+
+    public void unsubscribePresence(String... names) {
+        if (names.length > 0) sendCommand("UNSUBSCRIBE|" + String.join(",", names));
+    }
+
+    /* === 会话序号与历史同步 === */
+
+    /**
+     * 一个会话已收到的序号：连续部分只记上沿，之后零散到达的单独记，补齐后并入连续部分。
+     * 没有人补的缺口（如 sync.properties 里没有、本次也没同步的私聊）会让零散部分一直涨，
+     * 超过 MAX_AHEAD 个时放弃最前面的缺口，把连续部分推到第一个零散序号
+     */
+    private static final class SeqWindow {
+        private static final int MAX_AHEAD = 4096;
+        private long contiguous;
+        private final TreeSet<Long> ahead = new TreeSet<>();
+
+        SeqWindow(long contiguous) {
+            this.contiguous = contiguous;
+        }
+
+        /** @return 是否第一次收到 */
+        synchronized boolean add(long seq) {
+            if (seq <= contiguous || !ahead.add(seq)) return false;
+            if (ahead.size() > MAX_AHEAD) contiguous = ahead.first() - 1;
+            while (ahead.remove(contiguous + 1)) contiguous++;
+            return true;
+        }
+
+        synchronized long contiguous() {
+            return contiguous;
+        }
+    }
+
+    /** 文本协议里的序号字段；没有序号的旧格式消息返回 0 */
+    private static long parseSeq(String seqText) {
+        try {
+            return Long.parseLong(seqText.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * 记录收到的序号
+     * @return false 表示这条消息之前已经收到过；没有序号（0）的旧格式消息一律当作新消息
+     */
+    private boolean markSeen(String convo, long seq) {
+        if (seq <= 0) return true;                   // 旧服务器发来的不带序号的消息
+        return seen.computeIfAbsent(convo, k -> new SeqWindow(0)).add(seq);
+    }
+
+    /** 该会话从 1 开始连续收到的最大序号，没有收到过返回 0 */
+    public long getLastSeq(String convo) {
+        SeqWindow w = seen.get(convo);
+        return w == null ? 0 : w.contiguous();
+    }
+
+    /**
+     * 登录后调用：报上各会话已收到的序号，服务器只补发缺的部分（分页，见 SYNC_PAGE）。
+     * 本机没记录过的群由服务器自动补上；本机记录过的私聊在上次运行时已保存。
+     */
+    public void syncHistory() {
+        loadSyncState();
+        StringBuilder spec = new StringBuilder("SYNC|");
+        for (Map.Entry<String, SeqWindow> e : seen.entrySet()) {
+            if (spec.length() > 5) spec.append(',');
+            spec.append(e.getKey()).append('=').append(e.getValue().contiguous());
+        }
+        sendCommand(spec.toString());
+    }
+
+    private void loadSyncState() {
+        if (syncStateLoaded) return;
+        syncStateLoaded = true;
+        for (Map.Entry<String, Long> e : MessageLogger.readSyncState(username).entrySet()) {
+            seen.putIfAbsent(e.getKey(), new SeqWindow(e.getValue()));
+        }
+    }
+
+    private void saveSyncState() {
+        if (!syncStateLoaded) return;                // 没同步过（如注册用的临时连接），不覆盖已有记录
+        Map<String, Long> state = new TreeMap<>();
+        for (Map.Entry<String, SeqWindow> e : seen.entrySet()) state.put(e.getKey(), e.getValue().contiguous());
+        MessageLogger.writeSyncState(username, state);
+    }
+}
@@ -51,6 +51,9 @@ public class ChatFrame extends JFrame implements ActionListener {
         initComponentsLayout();
         loadHistory();
 
+        // 还没聊过的人服务器不会推他的上下线，打开窗口时显式订阅
+        if (host.getChatClient() != null) host.getChatClient().subscribePresence(peerId);
+
         pack();
         setSize(700, 800);
         setMinimumSize(new Dimension(700, 800));
@@ -31,12 +31,16 @@ public class FileTransferManager {
 
     /* ====== 私聊：发起端监听并发送文件 ====== */
     /* 发送端：serveFileOnce */
+    private static final int SERVE_TIMEOUT_MS = 120_000;   // 对方迟迟不连过来就放弃，释放端口和线程
+
     public static int serveFileOnce(File f) throws IOException {
         ServerSocket ss = new ServerSocket(0);
+        ss.setSoTimeout(SERVE_TIMEOUT_MS);
         System.out.println("[DEBUG] serveFileOnce listen port=" + ss.getLocalPort());
 
         new Thread(() -> {
-            try (Socket peer = ss.accept();
+            try (ServerSocket listen = ss;
+                 Socket peer = listen.accept();
                  FileInputStream fis = new FileInputStream(f);
                  OutputStream os = peer.getOutputStream()) {
 
@@ -47,6 +51,8 @@ public class FileTransferManager {
                     total += n;
                 }
                 System.out.println("[DEBUG] send finished, bytes=" + total);
+            } catch (SocketTimeoutException ex) {
+                System.out.println("[DEBUG] 对方未连接，放弃发送 " + f.getName());
             } catch (Exception ex) {
                 ex.printStackTrace();
             }
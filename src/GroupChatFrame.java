@@ -289,7 +289,7 @@ public class GroupChatFrame extends JFrame implements ActionListener {
     private void sendMessage() {
         String txt = messageField.getText().trim();
         if (txt.isEmpty()) return;
-        currentUser.getChatClient().sendCommand("GROUP_MSG|" + group.getId() + "|" + txt);
+        currentUser.getChatClient().sendGroupMessage(group.getId(), txt);
         messageField.setText("");
         messageField.requestFocusInWindow();
     }
@@ -558,7 +558,9 @@ public class HomePageFrame extends JFrame implements ChatClient.MessageCallback
 
         Group grp = Group.findById(groupId);
         if (grp == null) {
-            JOptionPane.showMessageDialog(this, "找不到该群聊", "错误", JOptionPane.ERROR_MESSAGE);
+            // 登录时只下发自己所在的群，本地找不到不代表不存在：交给服务器判断，加入成功会收到 ADDGROUP
+            currentUser.getChatClient().joinGroup(groupId, currentUser.getName());
+            JOptionPane.showMessageDialog(this, "已发送加入群聊 " + groupId + " 的请求", "提示", JOptionPane.INFORMATION_MESSAGE);
             return;
         }
         if (grp.isMember(currentUser.getName())) {
@@ -45,6 +45,7 @@ public class LoginFrame extends JFrame implements ActionListener {
 
                     /* ③ 回调已就绪，安全发送登录指令 */
                     chatClient.sendCommand("LOGIN:" + host.getName());
+                    chatClient.syncHistory();                // 补齐离线期间缺的历史
 
                     this.setVisible(false);                  // 关闭登录窗
                     System.out.println("登录成功");
@@ -0,0 +1,102 @@
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+
+/**
+ * 聊天消息的端到端延迟（调试用，启动时加 -Dchat.trace=true 开启）
+ *
+ * 开启后客户端连接时发 TRACE|1，服务器在每条实时 MSG / GROUP_MSG 后面紧跟一行
+ *   TRACE|序号|服务器收到时间|开始投递时间|写出时间        （Unix 纪元微秒）
+ * 与本地读到该消息的时间一起，分成四段记录：
+ *   server   服务器读到命令 -> 开始投递（含落盘），forwardMessage / forwardGroupMessage 本身的耗时
+ *   queue    开始投递 -> 写出到本连接，发送队列里的排队时间
+ *   network  写出 -> 本客户端读到（跨机器时含两边时钟的误差）
+ *   total    服务器读到命令 -> 本客户端读到
+ * 自己发到群里的消息也会回到自己，那一条的 total 接近“发送到收到”的完整耗时。
+ *
+ * 每段一个对数线性直方图：每个 2 的幂区间平分 8 格，误差不超过 12.5%，内存固定。
+ * report() 输出各段的分位数；-Dchat.trace.dump.s=N 时每 N 秒打印一次，断开连接时也打印一次。
+ */
+final class MessageLatency {
+
+    private static final String[] STAGES = {"server", "queue", "network", "total"};
+    private static final int SUB_BITS = 3;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_COUNT;
+
+    // System.nanoTime() 换算成纪元微秒的基准，与服务器的换算方式相同
+    private static final long BASE_NANOS = System.nanoTime();
+    private static final long BASE_EPOCH_MICROS = ChronoUnit.MICROS.between(Instant.EPOCH, Instant.now());
+
+    private final long[][] counts = new long[STAGES.length][BUCKETS];
+    private final long[] max = new long[STAGES.length];
+    private long unmatched;                        // 找不到对应消息的 TRACE 行
+
+    static long epochMicros(long nanos) {
+        return BASE_EPOCH_MICROS + (nanos - BASE_NANOS) / 1000;
+    }
+
+    /**
+     * 记录一条消息的各段耗时（微秒）
+     * @param arrivedNanos 本地读到该消息时的 System.nanoTime()
+     */
+    synchronized void record(long receivedMicros, long dispatchedMicros, long writtenMicros, long arrivedNanos) {
+        long arrived = epochMicros(arrivedNanos);
+        add(0, dispatchedMicros - receivedMicros);
+        add(1, writtenMicros - dispatchedMicros);
+        add(2, arrived - writtenMicros);
+        add(3, arrived - receivedMicros);
+    }
+
+    synchronized void recordUnmatched() {
+        unmatched++;
+    }
+
+    private void add(int stage, long micros) {
+        if (micros < 0) micros = 0;                // 跨机器时钟误差
+        counts[stage][indexOf(micros)]++;
+        if (micros > max[stage]) max[stage] = micros;
+    }
+
+    /** 各段的条数、p50 / p90 / p99 / 最大值（毫秒） */
+    synchronized String report() {
+        StringBuilder sb = new StringBuilder("消息延迟 (ms)");
+        for (int s = 0; s < STAGES.length; s++) {
+            long n = 0;
+            for (long c : counts[s]) n += c;
+            sb.append(System.lineSeparator()).append(String.format("  %-8s n=%-8d p50=%-9s p90=%-9s p99=%-9s max=%s",
+                    STAGES[s], n, ms(quantile(s, n, 0.50)), ms(quantile(s, n, 0.90)), ms(quantile(s, n, 0.99)),
+                    ms(max[s])));
+        }
+        if (unmatched > 0) sb.append(System.lineSeparator()).append("  未匹配的 TRACE: ").append(unmatched);
+        return sb.toString();
+    }
+
+    private long quantile(int stage, long n, double q) {
+        if (n == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(q * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[stage][i];
+            if (seen >= rank) return Math.min(upperBound(i), max[stage]);
+        }
+        return max[stage];
+    }
+
+    private static int indexOf(long v) {
+        if (v < SUB_COUNT) return (int) v;
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    private static long upperBound(int index) {
+        if (index < SUB_COUNT) return index;
+        int exp = index / SUB_COUNT + SUB_BITS - 1;
+        long next = (SUB_COUNT + index % SUB_COUNT + 1L) << (exp - SUB_BITS);
+        return next <= 0 ? Long.MAX_VALUE : next - 1;
+    }
+
+    private static String ms(long micros) {
+        return String.format("%.3f", micros / 1000.0);
+    }
+}
@@ -0,0 +1,93 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 服务器下行消息的分发表（替代 ChatClient.processServerMessage 里逐个 startsWith 的 if/else 链）
+ *
+ * 按“消息字”查表：行首到第一个 ':' / '|' / ' '（含该分隔符）为消息字，如 "MSG:"、"GROUP_MSG|"、"FILE_OFFER "；
+ * 没有分隔符的整行就是消息字，如 "ACCOUNT_CONFLICT"。一次哈希查找即可定位，
+ * 群里消息再多也不用和十几个前缀逐个比较。
+ *
+ * 处理器分两种，都以收到消息的连接 C 为第一个参数（分发表可以是 static 的，多个连接共用）：
+ *   - 整行处理器：自己解析，适合格式不规则的消息
+ *   - 字段处理器：注册时给出字段数，按消息字末尾的分隔符只切一次（最后一个字段保留剩余部分，可含分隔符），
+ *     字段不足的消息直接丢弃，处理器里不必再判断长度
+ * 处理器抛出的 RuntimeException 在这里记录后吞掉，一条格式异常的消息不会结束监听线程。
+ * 新的消息类型用 ChatClient.onServerMessage 注册即可，不用改分发代码。
+ */
+final class ServerMessageDispatcher<C> {
+
+    /** 整行处理器 */
+    public interface LineHandler<C> {
+        void handle(C client, String message);
+    }
+
+    /** 字段处理器：fields[0] 为消息字本身（不含分隔符） */
+    public interface FieldsHandler<C> {
+        void handle(C client, String[] fields);
+    }
+
+    private static final int MAX_KEY_LENGTH = 32;            // 消息字都很短，超过的直接当未知消息
+
+    private final Map<String, LineHandler<C>> handlers = new HashMap<>();
+
+    /** 注册（或替换）整行处理器 */
+    ServerMessageDispatcher<C> on(String key, LineHandler<C> handler) {
+        handlers.put(key, handler);
+        return this;
+    }
+
+    /** 注册（或替换）字段处理器：按 key 末尾的分隔符切成 fieldCount 段 */
+    ServerMessageDispatcher<C> on(String key, int fieldCount, FieldsHandler<C> handler) {
+        char sep = key.charAt(key.length() - 1);
+        return on(key, (client, message) -> {
+            String[] fields = split(message, sep, fieldCount);
+            if (fields.length == fieldCount) handler.handle(client, fields);
+            else System.err.println("收到格式不正确的消息: " + message);
+        });
+    }
+
+    boolean isEmpty() {
+        return handlers.isEmpty();
+    }
+
+    /** @return false 表示不认识的消息；认识但处理出错的仍返回 true */
+    boolean dispatch(C client, String message) {
+        String key = keyOf(message);
+        LineHandler<C> handler = key == null ? null : handlers.get(key);
+        if (handler == null) return false;
+        try {
+            handler.handle(client, message);
+        } catch (RuntimeException e) {
+            // 如数字字段不是数字：丢掉这一条，监听线程继续读后面的消息
+            System.err.println("处理服务器消息出错: " + message + " (" + e + ")");
+        }
+        return true;
+    }
+
+    /** 行首到第一个分隔符（含）；没有分隔符时为整行；过长返回 null */
+    static String keyOf(String message) {
+        int n = Math.min(message.length(), MAX_KEY_LENGTH + 1);
+        for (int i = 0; i < n; i++) {
+            char c = message.charAt(i);
+            if (c == ':' || c == '|' || c == ' ') return message.substring(0, i + 1);
+        }
+        return message.length() <= MAX_KEY_LENGTH ? message : null;
+    }
+
+    /** 与 String.split(sep, limit) 相同，但不走正则，也不丢弃末尾的空字段 */
+    static String[] split(String s, char sep, int limit) {
+        List<String> out = new ArrayList<>(limit);
+        int start = 0;
+        while (out.size() < limit - 1) {
+            int i = s.indexOf(sep, start);
+            if (i < 0) break;
+            out.add(s.substring(start, i));
+            start = i + 1;
+        }
+        out.add(s.substring(start));
+        return out.toArray(new String[0]);
+    }
+}
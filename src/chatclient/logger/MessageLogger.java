@@ -4,6 +4,9 @@ import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
 
 public final class MessageLogger {
     private static final String ROOT =
@@ -39,6 +42,33 @@ public final class MessageLogger {
             while ((line = br.readLine()) != null) printer.accept(line);
         } catch (IOException ignored) {}
     }
-}
 
+    /* 各会话已同步到的序号，存在 ChatLogs/<登录用户>/sync.properties */
+    public static Map<String, Long> readSyncState(String loginUser) {
+        Map<String, Long> state = new HashMap<>();
+        File f = new File(ROOT + loginUser, "sync.properties");
+        if (!f.exists()) return state;
+        Properties p = new Properties();
+        try (Reader r = new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8)) {
+            p.load(r);
+        } catch (IOException ignored) {
+            return state;
+        }
+        for (String k : p.stringPropertyNames()) {
+            try {
+                state.put(k, Long.parseLong(p.getProperty(k)));
+            } catch (NumberFormatException ignored) {}
+        }
+        return state;
+    }
 
+    public static void writeSyncState(String loginUser, Map<String, Long> state) {
+        Properties p = new Properties();
+        for (Map.Entry<String, Long> e : state.entrySet()) p.setProperty(e.getKey(), Long.toString(e.getValue()));
+        File f = new File(ROOT + loginUser, "sync.properties");
+        f.getParentFile().mkdirs();
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(f), StandardCharsets.UTF_8)) {
+            p.store(w, null);
+        } catch (IOException ignored) {}
+    }
+}